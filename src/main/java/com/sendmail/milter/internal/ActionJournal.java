@@ -0,0 +1,217 @@
+package com.sendmail.milter.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Header and recipient changes of one message, recorded instead of sent, and reduced to the fewest that have the same
+ * effect on the MTA before they are sent together.
+ * <p>
+ * The reductions follow what Sendmail does with the changes:
+ * <ul>
+ * <li>A header is changed by its 1-based index among the headers of the same name, originals first, then added ones.
+ * A deleted header keeps its index. Changes to a header added by the same message are folded into its addition, an
+ * added header deleted again is not added at all, and repeated changes of an original header leave only the last.
+ * Changing an index past the last header adds one. This needs the number of original headers of the name, so headers
+ * must be {@linkplain #countHeader(String) counted} as they arrive, up to {@link #endOfHeaders()}; changes to headers
+ * of a name also inserted at some position are sent as they were made.</li>
+ * <li>Deleting a recipient removes every recipient with that exact address, including added ones: an addition
+ * followed by a deletion of the same address is sent as the deletion alone. Repeated additions or deletions with
+ * nothing in between are sent once.</li>
+ * </ul>
+ */
+final class ActionJournal {
+
+	static final int ADD_HEADER = 0;
+	static final int INSERT_HEADER = 1;
+	static final int CHANGE_HEADER = 2;
+	static final int ADD_RECIPIENT = 3;
+	static final int DELETE_RECIPIENT = 4;
+
+	/**
+	 * One recorded change.
+	 */
+	static final class Action {
+
+		int type;
+		final String name;
+		final int index;
+		String value;
+		boolean dropped = false;
+		// an added header deleted by a later change
+		boolean deleted = false;
+
+		Action(final int type, final String name, final int index, final String value) {
+			this.type = type;
+			this.name = name;
+			this.index = index;
+			this.value = value;
+		}
+	}
+
+	private final List<Action> actions = new ArrayList<>();
+	private final Map<String, int[]> originalCounts = new HashMap<>();
+	private boolean headersCounted = false;
+
+	/**
+	 * Counts a header of the message as it arrives from the MTA.
+	 *
+	 * @param name the header name.
+	 */
+	void countHeader(final String name) {
+		final String key = name.toLowerCase(Locale.ROOT);
+		final int[] count = originalCounts.get(key);
+		if (count == null) {
+			originalCounts.put(key, new int[]{1});
+		}
+		else {
+			++count[0];
+		}
+	}
+
+	/**
+	 * Marks the end of the headers of the message. Until then, header changes are only reduced to the last change of
+	 * each index. Not to be called if the MTA was told not to send the headers, since none were counted.
+	 */
+	void endOfHeaders() {
+		headersCounted = true;
+	}
+
+	void record(final int type, final String name, final int index, final String value) {
+		actions.add(new Action(type, name, index, value));
+	}
+
+	boolean isEmpty() {
+		return actions.isEmpty();
+	}
+
+	/**
+	 * Reduces the recorded changes.
+	 *
+	 * @return the changes to send, in the order they were made.
+	 */
+	List<Action> reduce() {
+		final Map<String, List<Action>> byHeader = new HashMap<>();
+		final Map<String, Action[]> byRecipient = new HashMap<>();
+		for (Action action : actions) {
+			if (action.type == ADD_RECIPIENT || action.type == DELETE_RECIPIENT) {
+				Action[] state = byRecipient.get(action.name);
+				if (state == null) {
+					// live addition, live deletion, deletion before the live addition
+					state = new Action[3];
+					byRecipient.put(action.name, state);
+				}
+				reduceRecipient(action, state);
+			}
+			else {
+				final String key = action.name.toLowerCase(Locale.ROOT);
+				List<Action> list = byHeader.get(key);
+				if (list == null) {
+					list = new ArrayList<>();
+					byHeader.put(key, list);
+				}
+				list.add(action);
+			}
+		}
+		for (Map.Entry<String, List<Action>> e : byHeader.entrySet()) {
+			final int[] counted = originalCounts.get(e.getKey());
+			reduceHeader(e.getValue(), !headersCounted ? Integer.MAX_VALUE : counted == null ? 0 : counted[0]);
+		}
+
+		final List<Action> result = new ArrayList<>(actions.size());
+		for (Action action : actions) {
+			if (!action.dropped) {
+				result.add(action);
+			}
+		}
+		return result;
+	}
+
+	private static void reduceRecipient(final Action action, final Action[] state) {
+		if (action.type == ADD_RECIPIENT) {
+			if (state[0] != null) {
+				action.dropped = true;
+			}
+			else {
+				state[0] = action;
+				state[2] = state[1];
+				state[1] = null;
+			}
+		}
+		else if (state[0] != null) {
+			// removes the recipient added before, so that addition need not be sent
+			state[0].dropped = true;
+			state[0] = null;
+			if (state[2] != null) {
+				action.dropped = true;
+				state[1] = state[2];
+			}
+			else {
+				state[1] = action;
+			}
+		}
+		else if (state[1] != null) {
+			action.dropped = true;
+		}
+		else {
+			state[1] = action;
+		}
+	}
+
+	private static void reduceHeader(final List<Action> list, final int original) {
+		for (Action action : list) {
+			if (action.type == INSERT_HEADER) {
+				return;
+			}
+		}
+		final List<Action> added = new ArrayList<>();
+		final Map<Integer, Action> changed = new HashMap<>();
+		for (Action action : list) {
+			if (action.type == ADD_HEADER) {
+				added.add(action);
+			}
+			else if (action.index <= original) {
+				final Action previous = changed.put(action.index, action);
+				if (previous != null) {
+					previous.dropped = true;
+				}
+			}
+			else if (action.index - original <= added.size()) {
+				final Action target = added.get(action.index - original - 1);
+				target.deleted = isDelete(action.value);
+				if (!target.deleted) {
+					target.value = action.value;
+				}
+				action.dropped = true;
+			}
+			else if (isDelete(action.value)) {
+				action.dropped = true;
+			}
+			else {
+				action.type = ADD_HEADER;
+				added.add(action);
+			}
+		}
+		for (Action action : added) {
+			if (action.deleted) {
+				action.dropped = true;
+			}
+		}
+	}
+
+	private static boolean isDelete(final String value) {
+		return value == null || value.isEmpty();
+	}
+
+	/**
+	 * Forgets the changes and header counts of the current message.
+	 */
+	void clear() {
+		actions.clear();
+		originalCounts.clear();
+		headersCounted = false;
+	}
+}
@@ -0,0 +1,373 @@
+package com.sendmail.milter.internal;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue for the tasks of a {@link MilterStage} that hands out urgent tasks first, without starving the
+ * others. Tasks carry the priority they were {@linkplain MilterStage#execute(Runnable, int) submitted} with, clamped to
+ * the levels of the queue, and wait in a first-in first-out list per level.
+ * <p>
+ * A task is taken from the level whose oldest task ranks best, the rank being the level less one for each aging
+ * interval the task has waited. Under overload urgent work is therefore served first, but a task never waits more
+ * than its level times the aging interval behind work that arrived after it.
+ */
+public class AgingPriorityQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+	private final ArrayDeque<Runnable>[] levels;
+	private final int capacity;
+	private final long agingNanos;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private int count = 0;
+	// guarded by the lock
+	private final long[] taken;
+	private long aged = 0;
+
+	/**
+	 * @param capacity the most tasks waiting.
+	 * @param levels the number of priorities, 0 being the most urgent.
+	 * @param aging the time a task waits to rank one level higher, 0 for strict priorities.
+	 * @param unit the unit of <code>aging</code>.
+	 */
+	@SuppressWarnings("unchecked")
+	public AgingPriorityQueue(final int capacity, final int levels, final long aging, final TimeUnit unit) {
+		if (capacity < 1 || levels < 1) {
+			throw new IllegalArgumentException("Capacity and levels must be positive");
+		}
+		this.capacity = capacity;
+		this.levels = new ArrayDeque[levels];
+		for (int i = 0; i < levels; ++i) {
+			this.levels[i] = new ArrayDeque<>();
+		}
+		this.taken = new long[levels];
+		this.agingNanos = unit.toNanos(aging);
+	}
+
+	private int levelOf(final Runnable task) {
+		final int priority = task instanceof MilterStage.Queued ? ((MilterStage.Queued) task).priority
+				: PriorityPolicy.UNCLASSIFIED;
+		return Math.max(0, Math.min(levels.length - 1, priority));
+	}
+
+	/**
+	 * @return the level to take the next task from, or -1 if empty. Called with the lock held.
+	 */
+	private int select() {
+		final long now = System.nanoTime();
+		int best = -1;
+		long bestRank = Long.MAX_VALUE;
+		for (int i = 0; i < levels.length; ++i) {
+			final Runnable head = levels[i].peekFirst();
+			if (head == null) {
+				continue;
+			}
+			long rank = i;
+			if (agingNanos > 0 && head instanceof MilterStage.Queued) {
+				rank -= (now - ((MilterStage.Queued) head).queued) / agingNanos;
+			}
+			if (rank < bestRank) {
+				best = i;
+				bestRank = rank;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Takes the next task. Called with the lock held, when not empty.
+	 */
+	private Runnable dequeue() {
+		final int level = select();
+		final Runnable task = levels[level].pollFirst();
+		--count;
+		++taken[level];
+		for (int i = 0; i < level; ++i) {
+			if (!levels[i].isEmpty()) {
+				// passed a more urgent task that has not waited as long
+				++aged;
+				break;
+			}
+		}
+		notFull.signal();
+		return task;
+	}
+
+	private void enqueue(final Runnable task) {
+		levels[levelOf(task)].addLast(task);
+		++count;
+		notEmpty.signal();
+	}
+
+	@Override
+	public boolean offer(final Runnable task) {
+		if (task == null) {
+			throw new NullPointerException();
+		}
+		lock.lock();
+		try {
+			if (count == capacity) {
+				return false;
+			}
+			enqueue(task);
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(final Runnable task, final long timeout, final TimeUnit unit) throws InterruptedException {
+		if (task == null) {
+			throw new NullPointerException();
+		}
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == capacity) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			enqueue(task);
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(final Runnable task) throws InterruptedException {
+		if (task == null) {
+			throw new NullPointerException();
+		}
+		lock.lockInterruptibly();
+		try {
+			while (count == capacity) {
+				notFull.await();
+			}
+			enqueue(task);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				notEmpty.await();
+			}
+			return dequeue();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable poll() {
+		lock.lock();
+		try {
+			return count == 0 ? null : dequeue();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable peek() {
+		lock.lock();
+		try {
+			return count == 0 ? null : levels[select()].peekFirst();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(final Object task) {
+		lock.lock();
+		try {
+			for (ArrayDeque<Runnable> level : levels) {
+				if (level.removeFirstOccurrence(task)) {
+					--count;
+					notFull.signal();
+					return true;
+				}
+			}
+			return false;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		lock.lock();
+		try {
+			return capacity - count;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(final Collection<? super Runnable> target) {
+		return drainTo(target, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(final Collection<? super Runnable> target, final int maxElements) {
+		if (target == this) {
+			throw new IllegalArgumentException();
+		}
+		lock.lock();
+		try {
+			int drained = 0;
+			while (drained < maxElements && count > 0) {
+				target.add(dequeue());
+				++drained;
+			}
+			return drained;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return an iterator over the tasks waiting when it was created, most urgent level first.
+	 */
+	@Override
+	public Iterator<Runnable> iterator() {
+		final List<Runnable> snapshot = new ArrayList<>();
+		lock.lock();
+		try {
+			for (ArrayDeque<Runnable> level : levels) {
+				snapshot.addAll(level);
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		return new Iterator<Runnable>() {
+			private int next = 0;
+			private Runnable last = null;
+
+			@Override
+			public boolean hasNext() {
+				return next < snapshot.size();
+			}
+
+			@Override
+			public Runnable next() {
+				if (next >= snapshot.size()) {
+					throw new NoSuchElementException();
+				}
+				last = snapshot.get(next++);
+				return last;
+			}
+
+			@Override
+			public void remove() {
+				if (last == null) {
+					throw new IllegalStateException();
+				}
+				AgingPriorityQueue.this.remove(last);
+				last = null;
+			}
+		};
+	}
+
+	/**
+	 * @return tasks taken from each level.
+	 */
+	public long[] getTaken() {
+		lock.lock();
+		try {
+			return taken.clone();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return tasks taken ahead of more urgent ones because they had waited long enough.
+	 */
+	public long getAged() {
+		lock.lock();
+		try {
+			return aged;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder waiting = new StringBuilder();
+		final StringBuilder served = new StringBuilder();
+		lock.lock();
+		try {
+			for (int i = 0; i < levels.length; ++i) {
+				waiting.append(i == 0 ? "" : ",").append(levels[i].size());
+				served.append(i == 0 ? "" : ",").append(taken[i]);
+			}
+			return "priority queue: waiting=" + waiting + " taken=" + served + " aged=" + aged;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+}
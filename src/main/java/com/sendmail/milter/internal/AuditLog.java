@@ -0,0 +1,285 @@
+package com.sendmail.milter.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A log of every transaction the runner sees, written as {@link AuditRecord}s to segment files for offline analysis.
+ * <p>
+ * Conversation threads never wait for the log: a finished record is copied into a bounded ring of preallocated slots
+ * that threads claim without locks, and if the ring is full the record is dropped and counted. A background thread
+ * moves records from the ring into the current segment, a memory-mapped file, in batches. A segment is closed and a new
+ * one started when it is full or old enough, and the oldest segments beyond the number kept are deleted.
+ * <p>
+ * A segment is a header of {@link #HEADER} bytes, the magic number, the format version, the record size and the time
+ * the segment was started, followed by records. The file has its full size from the start; the records end at the
+ * first one that is all zeroes.
+ */
+public class AuditLog {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AuditLog.class);
+
+	public static final long MAGIC = 0x4D696C7441756474L; // "MiltAudt"
+	public static final int VERSION = 1;
+	public static final int HEADER = 64;
+	public static final String SUFFIX = ".seg";
+
+	private final Path directory;
+	private final int segmentRecords;
+	private final long rotateMillis;
+	private final int keep;
+
+	// the ring: slot i holds a record when its sequence is one past the position it was claimed at
+	private final int mask;
+	private final byte[] slots;
+	private final AtomicLongArray sequence;
+	private final AtomicLong tail = new AtomicLong();
+	// only the writer moves it
+	private volatile long head = 0;
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong segments = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	private final Thread writer;
+	private volatile boolean running = true;
+	private RandomAccessFile file = null;
+	private MappedByteBuffer segment = null;
+	private long segmentStarted;
+
+	/**
+	 * Creates the log and starts its writer thread.
+	 *
+	 * @param directory where the segments are written.
+	 * @param capacity records the ring holds, rounded up to a power of two.
+	 * @param segmentSize bytes per segment.
+	 * @param rotate the longest time a segment is written to, 0 for no limit.
+	 * @param unit the unit of <code>rotate</code>.
+	 * @param keep segments kept, the newest ones, 0 to keep all.
+	 * <p>
+	 * @throws IOException if the directory cannot be created.
+	 */
+	public AuditLog(final Path directory, final int capacity, final long segmentSize, final long rotate,
+			final TimeUnit unit, final int keep) throws IOException {
+		if (capacity < 1 || capacity > 1 << 24 || segmentSize < HEADER + AuditRecord.SIZE
+				|| segmentSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Bad audit log sizes");
+		}
+		Files.createDirectories(directory);
+		this.directory = directory;
+		this.segmentRecords = (int) ((segmentSize - HEADER) / AuditRecord.SIZE);
+		this.rotateMillis = unit.toMillis(rotate);
+		this.keep = keep;
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.slots = new byte[size * AuditRecord.SIZE];
+		this.sequence = new AtomicLongArray(size);
+		for (int i = 0; i < size; ++i) {
+			sequence.set(i, i);
+		}
+		this.writer = new Thread("Milter Audit Writer") {
+			@Override
+			public void run() {
+				write();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queues a record, or drops it if the ring is full.
+	 *
+	 * @param record {@link AuditRecord#SIZE} bytes.
+	 * <p>
+	 * @return <code>false</code> if the record was dropped.
+	 */
+	boolean offer(final byte[] record) {
+		long position = tail.get();
+		int index;
+		while (true) {
+			index = (int) (position & mask);
+			final long difference = sequence.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+				position = tail.get();
+			}
+			else if (difference < 0) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			else {
+				position = tail.get();
+			}
+		}
+		System.arraycopy(record, 0, slots, index * AuditRecord.SIZE, AuditRecord.SIZE);
+		sequence.lazySet(index, position + 1);
+		return true;
+	}
+
+	/**
+	 * Moves records from the ring to the segments until the log is closed and the ring is empty.
+	 */
+	private void write() {
+		while (true) {
+			int batch = 0;
+			while (true) {
+				final int index = (int) (head & mask);
+				if (sequence.get(index) != head + 1) {
+					break;
+				}
+				try {
+					if (segment == null || !segment.hasRemaining()
+							|| rotateMillis > 0 && System.currentTimeMillis() - segmentStarted >= rotateMillis) {
+						rotate();
+					}
+					segment.put(slots, index * AuditRecord.SIZE, AuditRecord.SIZE);
+					written.incrementAndGet();
+				}
+				catch (IOException | RuntimeException e) {
+					if (failures.getAndIncrement() == 0) {
+						LOG.error("Cannot write the audit log, records are dropped until it can", e);
+					}
+					dropped.incrementAndGet();
+					closeSegment();
+				}
+				sequence.lazySet(index, head + mask + 1);
+				head = head + 1;
+				++batch;
+			}
+			if (batch == 0) {
+				if (!running) {
+					break;
+				}
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+			}
+		}
+		closeSegment();
+	}
+
+	private void rotate() throws IOException {
+		closeSegment();
+		segmentStarted = System.currentTimeMillis();
+		File next = segmentFile(segmentStarted);
+		for (long name = segmentStarted + 1; next.exists(); ++name) {
+			// segments filled within the same millisecond
+			next = segmentFile(name);
+		}
+		file = new RandomAccessFile(next, "rw");
+		segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				HEADER + (long) segmentRecords * AuditRecord.SIZE);
+		segment.putLong(MAGIC).putInt(VERSION).putInt(AuditRecord.SIZE).putLong(segmentStarted);
+		segment.position(HEADER);
+		segments.incrementAndGet();
+		LOG.debug("Started audit segment {}", next);
+		prune();
+	}
+
+	private File segmentFile(final long name) {
+		return directory.resolve(String.format("audit-%013d%s", name, SUFFIX)).toFile();
+	}
+
+	private void closeSegment() {
+		if (segment != null) {
+			segment.force();
+			segment = null;
+		}
+		if (file != null) {
+			try {
+				file.close();
+			}
+			catch (IOException e) {
+				LOG.debug("Unexpected exception", e);
+			}
+			file = null;
+		}
+	}
+
+	/**
+	 * Deletes the oldest segments beyond the number kept.
+	 */
+	private void prune() {
+		if (keep <= 0) {
+			return;
+		}
+		final File[] files = directory.toFile().listFiles();
+		if (files == null) {
+			return;
+		}
+		final String[] names = new String[files.length];
+		int count = 0;
+		for (File f : files) {
+			if (f.getName().startsWith("audit-") && f.getName().endsWith(SUFFIX)) {
+				names[count++] = f.getName();
+			}
+		}
+		Arrays.sort(names, 0, count);
+		for (int i = 0; i < count - keep; ++i) {
+			try {
+				Files.deleteIfExists(directory.resolve(names[i]));
+			}
+			catch (IOException e) {
+				LOG.warn("Cannot delete the audit segment " + names[i], e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the queued records and closes the current segment.
+	 *
+	 * @param timeout how long to wait for the writer.
+	 * @param unit the unit of <code>timeout</code>.
+	 * <p>
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public void close(final long timeout, final TimeUnit unit) throws InterruptedException {
+		running = false;
+		writer.join(Math.max(unit.toMillis(timeout), 1));
+	}
+
+	/**
+	 * @return records written to the segments.
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * @return records dropped because the ring was full or the segment could not be written.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return records waiting in the ring.
+	 */
+	public long getQueued() {
+		return Math.max(tail.get() - head, 0);
+	}
+
+	@Override
+	public String toString() {
+		return "audit log " + directory + ": written=" + written.get() + " dropped=" + dropped.get() + " segments="
+				+ segments.get() + " queued=" + getQueued();
+	}
+}
@@ -0,0 +1,413 @@
+package com.sendmail.milter.internal;
+
+import com.sendmail.milter.MilterConstants;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * The record of one transaction in the {@link AuditLog}, from the envelope sender to the verdict, in a fixed layout of
+ * {@link #SIZE} bytes. A processor fills one record in place for each transaction it sees; the static methods read
+ * records back for the audit reader.
+ */
+public final class AuditRecord {
+
+	/**
+	 * Bytes per record.
+	 */
+	public static final int SIZE = 256;
+
+	/**
+	 * The verdict came from the verdict cache.
+	 */
+	public static final int CACHED = 1;
+	/**
+	 * The client was over the rate limit.
+	 */
+	public static final int LIMITED = 2;
+	/**
+	 * A handler callback threw an exception.
+	 */
+	public static final int FAILED = 4;
+	/**
+	 * The rest of the body was refused while memory was short.
+	 */
+	public static final int SHED = 8;
+
+	// record layout
+	private static final int TIME = 0;
+	private static final int CONNECTION = 8;
+	private static final int ADDRESS = 16;
+	private static final int FAMILY = 32;
+	private static final int VERDICT = 33;
+	private static final int STAGE = 34;
+	private static final int FLAGS = 35;
+	private static final int RECIPIENTS = 36;
+	private static final int REJECTED = 40;
+	private static final int HEADERS = 44;
+	private static final int BODY = 48;
+	private static final int MICROS = 56;
+	private static final int TOTAL = 84;
+	private static final int SENDER_LENGTH = 88;
+	private static final int SENDER = 90;
+	private static final int SENDER_SIZE = SIZE - SENDER;
+
+	/**
+	 * The transaction stages timed, in the order of their times in the record.
+	 */
+	private static final String[] STAGES = {"envfrom", "envrcpt", "data", "header", "eoh", "body", "eom"};
+
+	private static final Charset ISO8859 = Charset.forName("ISO-8859-1");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final AuditLog log;
+	private final ByteBuffer record = ByteBuffer.allocate(SIZE);
+	private final byte[] address = new byte[16];
+	private byte family = 0;
+	private boolean open = false;
+	private boolean ending = false;
+	private long started;
+
+	/**
+	 * @param log where finished records go.
+	 */
+	AuditRecord(final AuditLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * Sets the client address for the transactions to come.
+	 *
+	 * @param client the client, or <code>null</code> if unknown.
+	 */
+	void connected(final InetAddress client) {
+		Arrays.fill(address, (byte) 0);
+		if (client == null) {
+			family = 0;
+		}
+		else {
+			final byte[] raw = client.getAddress();
+			System.arraycopy(raw, 0, address, 16 - raw.length, raw.length);
+			family = (byte) (client instanceof Inet4Address ? 4 : 6);
+		}
+	}
+
+	/**
+	 * Starts the record of a transaction, at the envelope sender.
+	 *
+	 * @param connectionId the conversation.
+	 * @param sender the envelope sender.
+	 * @param started when the envelope sender packet was read, in {@link System#nanoTime()}.
+	 */
+	void begin(final long connectionId, final String sender, final long started) {
+		if (open) {
+			end(MilterConstants.SMFIC_MAIL);
+		}
+		Arrays.fill(record.array(), (byte) 0);
+		this.started = started;
+		record.putLong(TIME, System.currentTimeMillis());
+		record.putLong(CONNECTION, connectionId);
+		System.arraycopy(address, 0, record.array(), ADDRESS, 16);
+		record.put(FAMILY, family);
+		final byte[] raw = sender.getBytes(ISO8859);
+		final int length = Math.min(raw.length, SENDER_SIZE);
+		record.putShort(SENDER_LENGTH, (short) length);
+		System.arraycopy(raw, 0, record.array(), SENDER, length);
+		open = true;
+		ending = false;
+	}
+
+	void flag(final int flag) {
+		if (open) {
+			record.put(FLAGS, (byte) (record.get(FLAGS) | flag));
+		}
+	}
+
+	/**
+	 * Notes a reply. Anything but a continue ends the transaction, except for a recipient, which is only counted as
+	 * rejected; the reply to the end of the message always ends it.
+	 */
+	void replied(final int command, final int code) {
+		if (!open) {
+			return;
+		}
+		if (command == MilterConstants.SMFIC_RCPT) {
+			if (code != MilterConstants.SMFIR_CONTINUE && code != MilterConstants.SMFIR_ACCEPT) {
+				record.putInt(REJECTED, record.getInt(REJECTED) + 1);
+			}
+		}
+		else if (code != MilterConstants.SMFIR_CONTINUE || command == MilterConstants.SMFIC_BODYEOB) {
+			record.put(VERDICT, (byte) code);
+			record.put(STAGE, (byte) command);
+			ending = true;
+		}
+	}
+
+	/**
+	 * Counts a packet of the transaction and the time taken over it, and sends the record off if the packet ended the
+	 * transaction.
+	 *
+	 * @param command the packet command.
+	 * @param length the packet data length.
+	 * @param nanos the time taken, from reading the packet to replying.
+	 */
+	void processed(final int command, final int length, final long nanos) {
+		if (!open) {
+			return;
+		}
+		final int stage;
+		switch (command) {
+			case MilterConstants.SMFIC_MAIL:
+				stage = 0;
+				break;
+			case MilterConstants.SMFIC_RCPT:
+				record.putInt(RECIPIENTS, record.getInt(RECIPIENTS) + 1);
+				stage = 1;
+				break;
+			case MilterConstants.SMFIC_DATA:
+				stage = 2;
+				break;
+			case MilterConstants.SMFIC_HEADER:
+				record.putInt(HEADERS, record.getInt(HEADERS) + 1);
+				stage = 3;
+				break;
+			case MilterConstants.SMFIC_EOH:
+				stage = 4;
+				break;
+			case MilterConstants.SMFIC_BODY:
+				record.putLong(BODY, record.getLong(BODY) + length);
+				stage = 5;
+				break;
+			case MilterConstants.SMFIC_BODYEOB:
+				stage = 6;
+				break;
+			case MilterConstants.SMFIC_ABORT:
+				end(command);
+				return;
+			default:
+				return;
+		}
+		final int offset = MICROS + stage * 4;
+		record.putInt(offset, micros(record.getInt(offset) + nanos / 1000));
+		if (ending) {
+			finish();
+		}
+	}
+
+	/**
+	 * Ends the transaction in progress, if any, without a verdict.
+	 *
+	 * @param command what ended it: an abort, the end of the conversation, or a new transaction.
+	 */
+	void end(final int command) {
+		if (open) {
+			record.put(STAGE, (byte) command);
+			finish();
+		}
+	}
+
+	private void finish() {
+		record.putInt(TOTAL, micros((System.nanoTime() - started) / 1000));
+		open = false;
+		ending = false;
+		log.offer(record.array());
+	}
+
+	private static int micros(final long micros) {
+		return (int) Math.min(micros, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return the header of the CSV written by {@link #appendCsv(StringBuilder, ByteBuffer, int)}.
+	 */
+	public static String csvHeader() {
+		final StringBuilder header = new StringBuilder(
+				"time,connection,client,sender,recipients,rejectedRecipients,headers,bodyBytes,verdict,stage,flags");
+		for (String stage : STAGES) {
+			header.append(',').append(stage).append("Micros");
+		}
+		return header.append(",totalMicros").toString();
+	}
+
+	/**
+	 * @param records records read back from a segment.
+	 * @param offset where the record starts.
+	 * <p>
+	 * @return <code>false</code> if there is no record at the offset, only the zeroes after the last one.
+	 */
+	public static boolean exists(final ByteBuffer records, final int offset) {
+		return records.getLong(offset + TIME) != 0;
+	}
+
+	/**
+	 * Appends a record as a line of CSV, without the line end.
+	 */
+	public static void appendCsv(final StringBuilder out, final ByteBuffer records, final int offset) {
+		out.append(time(records, offset)).append(',').append(records.getLong(offset + CONNECTION)).append(',')
+				.append(client(records, offset)).append(',');
+		final String sender = sender(records, offset);
+		if (sender.indexOf(',') >= 0 || sender.indexOf('"') >= 0) {
+			out.append('"').append(sender.replace("\"", "\"\"")).append('"');
+		}
+		else {
+			out.append(sender);
+		}
+		out.append(',').append(records.getInt(offset + RECIPIENTS)).append(',')
+				.append(records.getInt(offset + REJECTED)).append(',').append(records.getInt(offset + HEADERS))
+				.append(',').append(records.getLong(offset + BODY)).append(',').append(verdict(records, offset))
+				.append(',').append(stage(records, offset)).append(',').append(flags(records, offset));
+		for (int i = 0; i < STAGES.length; ++i) {
+			out.append(',').append(records.getInt(offset + MICROS + i * 4));
+		}
+		out.append(',').append(records.getInt(offset + TOTAL));
+	}
+
+	/**
+	 * Appends a record as a JSON object, without the line end.
+	 */
+	public static void appendJson(final StringBuilder out, final ByteBuffer records, final int offset) {
+		out.append("{\"time\":\"").append(time(records, offset)).append("\",\"connection\":")
+				.append(records.getLong(offset + CONNECTION)).append(",\"client\":");
+		final String client = client(records, offset);
+		if (client.isEmpty()) {
+			out.append("null");
+		}
+		else {
+			out.append('"').append(client).append('"');
+		}
+		out.append(",\"sender\":");
+		appendJsonString(out, sender(records, offset));
+		out.append(",\"recipients\":").append(records.getInt(offset + RECIPIENTS))
+				.append(",\"rejectedRecipients\":").append(records.getInt(offset + REJECTED))
+				.append(",\"headers\":").append(records.getInt(offset + HEADERS))
+				.append(",\"bodyBytes\":").append(records.getLong(offset + BODY))
+				.append(",\"verdict\":\"").append(verdict(records, offset))
+				.append("\",\"stage\":\"").append(stage(records, offset))
+				.append("\",\"flags\":\"").append(flags(records, offset)).append("\",\"micros\":{");
+		for (int i = 0; i < STAGES.length; ++i) {
+			out.append(i == 0 ? "\"" : ",\"").append(STAGES[i]).append("\":")
+					.append(records.getInt(offset + MICROS + i * 4));
+		}
+		out.append("},\"totalMicros\":").append(records.getInt(offset + TOTAL)).append('}');
+	}
+
+	private static void appendJsonString(final StringBuilder out, final String value) {
+		out.append('"');
+		for (int i = 0; i < value.length(); ++i) {
+			final char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.append('\\').append(c);
+			}
+			else if (c < 0x20) {
+				out.append(String.format("\\u%04x", (int) c));
+			}
+			else {
+				out.append(c);
+			}
+		}
+		out.append('"');
+	}
+
+	private static String time(final ByteBuffer records, final int offset) {
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date(records.getLong(offset + TIME)));
+	}
+
+	private static String client(final ByteBuffer records, final int offset) {
+		final int family = records.get(offset + FAMILY);
+		if (family != 4 && family != 6) {
+			return "";
+		}
+		final byte[] raw = new byte[family == 4 ? 4 : 16];
+		for (int i = 0; i < raw.length; ++i) {
+			raw[i] = records.get(offset + ADDRESS + 16 - raw.length + i);
+		}
+		try {
+			return InetAddress.getByAddress(raw).getHostAddress();
+		}
+		catch (UnknownHostException e) {
+			return "";
+		}
+	}
+
+	private static String sender(final ByteBuffer records, final int offset) {
+		final byte[] raw = new byte[Math.min(records.getShort(offset + SENDER_LENGTH) & 0xFFFF, SENDER_SIZE)];
+		for (int i = 0; i < raw.length; ++i) {
+			raw[i] = records.get(offset + SENDER + i);
+		}
+		return new String(raw, UTF8);
+	}
+
+	private static String verdict(final ByteBuffer records, final int offset) {
+		final int code = records.get(offset + VERDICT) & 0xFF;
+		switch (code) {
+			case 0:
+				return "";
+			case MilterConstants.SMFIR_ACCEPT:
+				return "accept";
+			case MilterConstants.SMFIR_CONTINUE:
+				return "continue";
+			case MilterConstants.SMFIR_DISCARD:
+				return "discard";
+			case MilterConstants.SMFIR_REJECT:
+				return "reject";
+			case MilterConstants.SMFIR_TEMPFAIL:
+				return "tempfail";
+			case MilterConstants.SMFIR_REPLYCODE:
+				return "replycode";
+			default:
+				return String.valueOf((char) code);
+		}
+	}
+
+	private static String stage(final ByteBuffer records, final int offset) {
+		final int command = records.get(offset + STAGE) & 0xFF;
+		switch (command) {
+			case MilterConstants.SMFIC_MAIL:
+				return "envfrom";
+			case MilterConstants.SMFIC_DATA:
+				return "data";
+			case MilterConstants.SMFIC_HEADER:
+				return "header";
+			case MilterConstants.SMFIC_EOH:
+				return "eoh";
+			case MilterConstants.SMFIC_BODY:
+				return "body";
+			case MilterConstants.SMFIC_BODYEOB:
+				return "eom";
+			case MilterConstants.SMFIC_ABORT:
+				return "abort";
+			case MilterConstants.SMFIC_QUIT:
+			case MilterConstants.SMFIC_QUIT_NC:
+				return "quit";
+			default:
+				return String.valueOf((char) command);
+		}
+	}
+
+	private static String flags(final ByteBuffer records, final int offset) {
+		final int flags = records.get(offset + FLAGS);
+		final StringBuilder out = new StringBuilder();
+		if ((flags & CACHED) != 0) {
+			out.append("cached");
+		}
+		if ((flags & LIMITED) != 0) {
+			out.append(out.length() == 0 ? "" : "|").append("limited");
+		}
+		if ((flags & FAILED) != 0) {
+			out.append(out.length() == 0 ? "" : "|").append("failed");
+		}
+		if ((flags & SHED) != 0) {
+			out.append(out.length() == 0 ? "" : "|").append("shed");
+		}
+		return out.toString();
+	}
+}
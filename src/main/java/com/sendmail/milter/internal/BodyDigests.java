@@ -0,0 +1,240 @@
+package com.sendmail.milter.internal;
+
+import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.MilterConstants;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Digests of message bodies, computed by the runner as the body arrives, and the end-of-message verdicts of the
+ * handler for each digest, so that copies of a body already judged are answered without calling the handler again.
+ * <p>
+ * The digest is handed to the handler at end-of-message as the {@link #MACRO} macro, in lowercase hex. It is normally
+ * taken over the body with whitespace relaxed the way DKIM does: carriage returns dropped, runs of spaces and tabs
+ * reduced to one space and removed at the ends of lines, and empty lines at the end removed, so that the same text
+ * gets the same digest however it was re-encoded in transit.
+ * <p>
+ * Cached verdicts are the terminal ones, and accepting or continuing replies to messages the handler did not change;
+ * a verdict that came with header, recipient or body changes is not cached, since the changes would be lost. When a
+ * cached verdict is used, the handler is told that the message was aborted instead of getting the end-of-message
+ * callback. No digest is taken, and nothing cached, when the handler does not get the whole body. Nor is anything
+ * cached for bodies shorter than a minimum: all empty or nearly empty bodies share a few digests, and the verdicts
+ * for them depend on the sender and headers rather than the body.
+ * <p>
+ * The cache is only correct for handlers whose end-of-message verdict depends on the body alone.
+ */
+public class BodyDigests {
+
+	/**
+	 * The macro holding the digest at end-of-message.
+	 */
+	public static final String MACRO = "{body_digest}";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * The digest of the body of one message. Reused for the messages of a connection, not thread-safe.
+	 */
+	final class Digest {
+
+		private final MessageDigest digest;
+		private final byte[] out = new byte[8192];
+		// for the relaxed body, what is held back until a character that is not whitespace follows
+		private boolean pendingSpace = false;
+		private int pendingLines = 0;
+		private boolean empty = true;
+		private boolean complete = true;
+		// bytes digested so far, after relaxing
+		private long digested = 0;
+		// whether the verdict for the message just finished may be cached
+		private boolean cacheable = false;
+
+		Digest() {
+			try {
+				digest = MessageDigest.getInstance(algorithm);
+			}
+			catch (NoSuchAlgorithmException e) {
+				// checked by the constructor of the owner
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * @param chunk the next body chunk. Its position is not moved.
+		 */
+		void update(final ByteBuffer chunk) {
+			if (!relaxed) {
+				digested += chunk.remaining();
+				digest.update(chunk.duplicate());
+				return;
+			}
+			int length = 0;
+			for (int i = chunk.position(); i < chunk.limit(); ++i) {
+				final byte b = chunk.get(i);
+				switch (b) {
+					case '\r':
+						break;
+					case ' ':
+					case '\t':
+						pendingSpace = true;
+						break;
+					case '\n':
+						pendingSpace = false;
+						++pendingLines;
+						break;
+					default:
+						for (; pendingLines > 0; --pendingLines) {
+							if (length == out.length) {
+								flush(length);
+								length = 0;
+							}
+							out[length++] = '\n';
+						}
+						if (length + 2 > out.length) {
+							flush(length);
+							length = 0;
+						}
+						if (pendingSpace) {
+							out[length++] = ' ';
+							pendingSpace = false;
+						}
+						out[length++] = b;
+						empty = false;
+						break;
+				}
+			}
+			flush(length);
+		}
+
+		private void flush(final int length) {
+			digested += length;
+			digest.update(out, 0, length);
+		}
+
+		/**
+		 * Marks the digest as not covering the whole body, because the MTA was told to stop sending it.
+		 */
+		void incomplete() {
+			complete = false;
+		}
+
+		/**
+		 * Ends the digest of the current message and starts the next one.
+		 *
+		 * @return the digest in hex, or <code>null</code> if it does not cover the whole body.
+		 */
+		String finish() {
+			if (relaxed && !empty) {
+				digest.update((byte) '\n');
+			}
+			final byte[] bytes = digest.digest();
+			final boolean whole = complete;
+			final boolean longEnough = digested >= minCachedLength;
+			reset();
+			if (!whole) {
+				return null;
+			}
+			cacheable = cache != null && longEnough;
+			final char[] hex = new char[bytes.length * 2];
+			for (int i = 0; i < bytes.length; ++i) {
+				hex[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+				hex[2 * i + 1] = HEX[bytes[i] & 0xF];
+			}
+			return new String(hex);
+		}
+
+		/**
+		 * @return <code>true</code> if the verdict for the message last {@linkplain #finish() finished} may be looked up
+		 * and cached.
+		 */
+		boolean isCacheable() {
+			return cacheable;
+		}
+
+		/**
+		 * Forgets the body seen so far.
+		 */
+		void reset() {
+			digest.reset();
+			digested = 0;
+			cacheable = false;
+			pendingSpace = false;
+			pendingLines = 0;
+			empty = true;
+			complete = true;
+		}
+	}
+
+	private final String algorithm;
+	private final boolean relaxed;
+	private final long ttlMillis;
+	private final int minCachedLength;
+	private final ExpiringCache<String, IMilterStatus> cache;
+
+	/**
+	 * @param algorithm the name of the {@link MessageDigest}, like <code>SHA-256</code>.
+	 * @param relaxed <code>true</code> to relax whitespace before taking the digest.
+	 * @param capacity the most verdicts cached, 0 not to cache verdicts.
+	 * @param ttl how long a verdict is reused.
+	 * @param unit the unit of <code>ttl</code>.
+	 * @param minCachedLength the shortest body, in bytes after relaxing, whose verdict is cached.
+	 * <p>
+	 * @throws NoSuchAlgorithmException if the algorithm is not available.
+	 */
+	public BodyDigests(final String algorithm, final boolean relaxed, final int capacity, final long ttl,
+			final TimeUnit unit, final int minCachedLength) throws NoSuchAlgorithmException {
+		MessageDigest.getInstance(algorithm);
+		this.algorithm = algorithm;
+		this.relaxed = relaxed;
+		this.ttlMillis = unit.toMillis(ttl);
+		this.minCachedLength = minCachedLength;
+		this.cache = capacity > 0 ? new ExpiringCache<String, IMilterStatus>(capacity, 16) : null;
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @return the cache of verdicts, for its hit, miss and eviction counters, or <code>null</code> if verdicts are
+	 * not cached.
+	 */
+	public ExpiringCache<String, IMilterStatus> getCache() {
+		return cache;
+	}
+
+	/**
+	 * @param digest a digest in hex.
+	 * <p>
+	 * @return the cached verdict for the body, or <code>null</code>.
+	 */
+	IMilterStatus lookup(final String digest) {
+		return cache == null ? null : cache.get(digest);
+	}
+
+	/**
+	 * Remembers an end-of-message verdict, if it can be reused.
+	 *
+	 * @param digest a digest in hex.
+	 * @param status the handler result.
+	 * @param modified <code>true</code> if the handler changed the message.
+	 */
+	void record(final String digest, final IMilterStatus status, final boolean modified) {
+		if (cache == null || status == null) {
+			return;
+		}
+		final int code = status.getCode();
+		if (VerdictCache.isTerminal(status) || !modified
+				&& (code == MilterConstants.SMFIR_ACCEPT || code == MilterConstants.SMFIR_CONTINUE)) {
+			cache.put(digest, status, ttlMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "body digests " + algorithm + (relaxed ? " relaxed" : "") + (cache == null ? "" : ": " + cache);
+	}
+}
@@ -0,0 +1,356 @@
+package com.sendmail.milter.internal;
+
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.MilterConstants;
+import com.sendmail.milter.runtime.IMilterHeaderBlockHandler;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounds the time handler callbacks may take, moves heavy ones off the conversation threads, and stops calling a
+ * handler that keeps failing.
+ * <p>
+ * A callback with a time budget runs on a thread of its own while the conversation waits for it. If the budget runs
+ * out, the conversation replies with the fallback status and abandons the callback: its result is discarded, and the
+ * handler is not called again for the rest of the conversation, but closed once the callback returns.
+ * <p>
+ * A callback {@linkplain #setStage(String, MilterStage) assigned to a stage}, typically the body and end-of-message
+ * ones that scan content, runs on the threads of that stage instead, within its budget if it has one. The stage limits
+ * how many such callbacks run at once, however many conversations there are, and makes conversations wait for room in
+ * its queue when it is full. Other callbacks run on the conversation thread as usual.
+ * <p>
+ * Timeouts and exceptions count against a circuit breaker per callback, shared by the handlers of a listener, so that
+ * a backend failing only at one stage is not hidden by the others succeeding. After enough failures of a callback in a
+ * row its breaker opens, and the callback is answered with the fallback without calling the handler. Once the open
+ * time has passed, a single call is let through as a probe: if it succeeds the breaker closes, otherwise it stays open
+ * for another period.
+ */
+public class CallbackGuard {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CallbackGuard.class);
+
+	/**
+	 * The names of the callbacks that can be given a budget.
+	 */
+	public static final String[] CALLBACKS = {
+		"connect", "helo", "envfrom", "envrcpt", "data", "header", "eoh", "body", "eom", "unknown"
+	};
+	private static final int[] COMMANDS = {
+		MilterConstants.SMFIC_CONNECT, MilterConstants.SMFIC_HELO, MilterConstants.SMFIC_MAIL,
+		MilterConstants.SMFIC_RCPT, MilterConstants.SMFIC_DATA, MilterConstants.SMFIC_HEADER, MilterConstants.SMFIC_EOH,
+		MilterConstants.SMFIC_BODY, MilterConstants.SMFIC_BODYEOB, MilterConstants.SMFIC_UNKNOWN
+	};
+
+	private final IMilterStatus fallback;
+	private final int failureThreshold;
+	private final long openNanos;
+	// by command
+	private final long[] budgetNanos = new long[128];
+	private final MilterStage[] stages = new MilterStage[128];
+	private final ThreadPoolExecutor executor;
+
+	// breakers by command: failures in a row, when to let a probe through, and whether one is running
+	private final AtomicIntegerArray failures = new AtomicIntegerArray(128);
+	private final AtomicLongArray probeAt = new AtomicLongArray(128);
+	private final AtomicIntegerArray probing = new AtomicIntegerArray(128);
+
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong exceptions = new AtomicLong();
+	private final AtomicLong shortCircuited = new AtomicLong();
+	private final AtomicLong trips = new AtomicLong();
+
+	/**
+	 * @param fallback the reply when a callback runs out of time or the breaker is open.
+	 * @param failureThreshold timeouts and exceptions in a row that open the breaker. 0 for no breaker.
+	 * @param openTime how long the breaker stays open before a probe.
+	 * @param unit the unit of <code>openTime</code>.
+	 */
+	public CallbackGuard(final IMilterStatus fallback, final int failureThreshold, final long openTime,
+			final TimeUnit unit) {
+		this.fallback = fallback;
+		this.failureThreshold = failureThreshold;
+		this.openNanos = unit.toNanos(openTime);
+		this.executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread th = new Thread(r, "Milter Callback-" + count.getAndIncrement());
+						th.setDaemon(true);
+						return th;
+					}
+				});
+	}
+
+	/**
+	 * @param name <code>continue</code>, <code>accept</code> or <code>tempfail</code>.
+	 * <p>
+	 * @return the fallback status.
+	 */
+	public static IMilterStatus parseFallback(final String name) {
+		if ("continue".equalsIgnoreCase(name)) {
+			return IMilterStatus.SMFIS_CONTINUE;
+		}
+		if ("accept".equalsIgnoreCase(name)) {
+			return IMilterStatus.SMFIS_ACCEPT;
+		}
+		if ("tempfail".equalsIgnoreCase(name)) {
+			return IMilterStatus.SMFIS_TEMPFAIL;
+		}
+		throw new IllegalArgumentException("Unknown fallback status: " + name);
+	}
+
+	/**
+	 * Sets the budget of a callback. Callbacks have none until set.
+	 *
+	 * @param callback one of {@link #CALLBACKS}.
+	 * @param budget the time the callback may take, 0 for no limit.
+	 * @param unit the unit of <code>budget</code>.
+	 */
+	public void setBudget(final String callback, final long budget, final TimeUnit unit) {
+		budgetNanos[commandOf(callback)] = unit.toNanos(budget);
+	}
+
+	/**
+	 * Runs a callback on the threads of a stage rather than the conversation thread.
+	 *
+	 * @param callback one of {@link #CALLBACKS}.
+	 * @param stage the stage, or <code>null</code> for the conversation thread.
+	 */
+	public void setStage(final String callback, final MilterStage stage) {
+		stages[commandOf(callback)] = stage;
+	}
+
+	private static int commandOf(final String callback) {
+		for (int i = 0; i < CALLBACKS.length; ++i) {
+			if (CALLBACKS[i].equals(callback)) {
+				return COMMANDS[i];
+			}
+		}
+		throw new IllegalArgumentException("Unknown callback: " + callback);
+	}
+
+	private static String callbackOf(final int command) {
+		for (int i = 0; i < COMMANDS.length; ++i) {
+			if (COMMANDS[i] == command) {
+				return CALLBACKS[i];
+			}
+		}
+		return String.valueOf((char) command);
+	}
+
+	public IMilterStatus getFallback() {
+		return fallback;
+	}
+
+	/**
+	 * @param handler a handler for a new conversation.
+	 * <p>
+	 * @return the handler, guarded.
+	 */
+	GuardedMilterHandler wrap(final IMilterHandler handler) {
+		return handler instanceof IMilterHeaderBlockHandler
+				? new GuardedMilterHandler.HeaderBlocks(this, (IMilterHeaderBlockHandler) handler)
+				: new GuardedMilterHandler(this, handler);
+	}
+
+	/**
+	 * Runs a callback within its budget, on its stage.
+	 *
+	 * @param handler the guarded handler the callback belongs to.
+	 * @param command the command the callback handles.
+	 * @param callback the call to the handler.
+	 * <p>
+	 * @return the result of the callback, or the fallback.
+	 */
+	IMilterStatus call(final GuardedMilterHandler handler, final int command, final Callable<IMilterStatus> callback) {
+		final boolean probe;
+		if (failureThreshold > 0 && failures.get(command) >= failureThreshold) {
+			if (System.nanoTime() - probeAt.get(command) < 0 || !probing.compareAndSet(command, 0, 1)) {
+				shortCircuited.incrementAndGet();
+				return handler.fellBack(fallback);
+			}
+			probe = true;
+		}
+		else {
+			probe = false;
+		}
+
+		final long budget = budgetNanos[command];
+		final MilterStage stage = stages[command];
+		IMilterStatus result;
+		try {
+			if (budget <= 0 && stage == null) {
+				result = callback.call();
+			}
+			else {
+				final FutureTask<IMilterStatus> task = handler.start(callback);
+				try {
+					if (stage != null) {
+						stage.execute(task, handler.getPriority());
+					}
+					else {
+						executor.execute(task);
+					}
+				}
+				catch (RejectedExecutionException e) {
+					// shutting down; the callback never ran, so this says nothing about the handler
+					task.cancel(false);
+					if (probe) {
+						probing.set(command, 0);
+					}
+					LOG.warn("Handler {} could not be queued, replying with the fallback: {}", callbackOf(command),
+							e.getMessage());
+					return handler.fellBack(fallback);
+				}
+				try {
+					result = budget <= 0 ? task.get() : task.get(budget, TimeUnit.NANOSECONDS);
+				}
+				catch (TimeoutException e) {
+					if (handler.abandon()) {
+						timeouts.incrementAndGet();
+						LOG.warn("Handler {} exceeded its budget of {} ms, replying with the fallback", callbackOf(command),
+								TimeUnit.NANOSECONDS.toMillis(budget));
+						failed(command, probe);
+						return handler.fellBack(fallback);
+					}
+					// returned just in time
+					result = task.get();
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			// the runner is shutting down, which says nothing about the handler
+			Thread.currentThread().interrupt();
+			handler.abandon();
+			if (probe) {
+				probing.set(command, 0);
+			}
+			return handler.fellBack(fallback);
+		}
+		catch (ExecutionException e) {
+			exceptions.incrementAndGet();
+			failed(command, probe);
+			throw unchecked(e.getCause());
+		}
+		catch (Exception e) {
+			exceptions.incrementAndGet();
+			failed(command, probe);
+			throw unchecked(e);
+		}
+		catch (Error e) {
+			exceptions.incrementAndGet();
+			failed(command, probe);
+			throw e;
+		}
+		succeeded(command, probe);
+		return result;
+	}
+
+	private static RuntimeException unchecked(final Throwable t) {
+		if (t instanceof RuntimeException) {
+			return (RuntimeException) t;
+		}
+		if (t instanceof Error) {
+			throw (Error) t;
+		}
+		return new RuntimeException(t);
+	}
+
+	private void succeeded(final int command, final boolean probe) {
+		if (failures.get(command) != 0) {
+			failures.set(command, 0);
+		}
+		if (probe) {
+			probing.set(command, 0);
+			LOG.info("Handler {} probe succeeded, circuit breaker closed", callbackOf(command));
+		}
+	}
+
+	private void failed(final int command, final boolean probe) {
+		if (failureThreshold <= 0) {
+			return;
+		}
+		final int count = failures.incrementAndGet(command);
+		if (probe || count == failureThreshold) {
+			probeAt.set(command, System.nanoTime() + openNanos);
+			trips.incrementAndGet();
+			LOG.error("Circuit breaker of handler {} open after {} failures in a row, replying with the fallback for {} ms",
+					callbackOf(command), count, TimeUnit.NANOSECONDS.toMillis(openNanos));
+		}
+		if (probe) {
+			probing.set(command, 0);
+		}
+	}
+
+	/**
+	 * @param callback one of {@link #CALLBACKS}.
+	 * <p>
+	 * @return <code>true</code> if the breaker of the callback is open, or letting a probe through.
+	 */
+	public boolean isOpen(final String callback) {
+		for (int i = 0; i < CALLBACKS.length; ++i) {
+			if (CALLBACKS[i].equals(callback)) {
+				return failureThreshold > 0 && failures.get(COMMANDS[i]) >= failureThreshold;
+			}
+		}
+		throw new IllegalArgumentException("Unknown callback: " + callback);
+	}
+
+	/**
+	 * @return callbacks abandoned for running out of time.
+	 */
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	/**
+	 * @return callbacks that threw an exception.
+	 */
+	public long getExceptions() {
+		return exceptions.get();
+	}
+
+	/**
+	 * @return callbacks answered with the fallback because the breaker was open.
+	 */
+	public long getShortCircuited() {
+		return shortCircuited.get();
+	}
+
+	/**
+	 * @return times the breaker opened.
+	 */
+	public long getTrips() {
+		return trips.get();
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder open = new StringBuilder();
+		for (String callback : CALLBACKS) {
+			if (isOpen(callback)) {
+				open.append(open.length() == 0 ? "" : ",").append(callback);
+			}
+		}
+		return "callback guard: open=" + (open.length() == 0 ? "-" : open) + " timeouts=" + timeouts.get()
+				+ " exceptions=" + exceptions.get() + " shortCircuited=" + shortCircuited.get() + " trips=" + trips.get();
+	}
+}
@@ -0,0 +1,188 @@
+package com.sendmail.milter.internal;
+
+import com.sendmail.milter.IMilterStatus;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Limits the rate of conversations per client with token buckets, in bounded memory no matter how many distinct
+ * clients there are.
+ * <p>
+ * The buckets form a count-min style sketch: <code>depth</code> rows of <code>width</code> buckets, each key mapping to
+ * one bucket per row. Every bucket is a single <code>long</code> holding its token count and last refill time, updated
+ * with compare-and-set, so no lock is ever taken. A request takes a token from each of its buckets and is allowed if
+ * at least one of them had a token left. Clients sharing every bucket with a heavy hitter are therefore limited along
+ * with it, which with a few rows of a few thousand buckets is unlikely for any but the heaviest hitters.
+ */
+public class ConnectionRateLimiter {
+
+	/**
+	 * What the limit applies to.
+	 */
+	public enum Key {
+		/**
+		 * The client address, checked at connect before the handler sees the connection.
+		 */
+		CLIENT_ADDRESS,
+		/**
+		 * The <code>{auth_authen}</code> macro, checked at the envelope sender. Unauthenticated senders are not limited.
+		 */
+		AUTH,
+		/**
+		 * The envelope sender, checked when it is received.
+		 */
+		SENDER;
+
+		/**
+		 * @param name <code>address</code>, <code>auth</code> or <code>sender</code>.
+		 * <p>
+		 * @return the key type.
+		 */
+		public static Key parse(final String name) {
+			if ("address".equalsIgnoreCase(name)) {
+				return CLIENT_ADDRESS;
+			}
+			if ("auth".equalsIgnoreCase(name)) {
+				return AUTH;
+			}
+			if ("sender".equalsIgnoreCase(name)) {
+				return SENDER;
+			}
+			throw new IllegalArgumentException("Unknown rate limit key: " + name);
+		}
+	}
+
+	// bucket layout: last refill time in milliseconds in the high 42 bits, milli-tokens in the low 22
+	private static final int TOKEN_BITS = 22;
+	private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+	private static final long ONE_TOKEN = 1000;
+	private static final int MAX_BURST = (int) (TOKEN_MASK / ONE_TOKEN);
+
+	private final Key key;
+	private final AtomicLongArray buckets;
+	private final int depth;
+	private final int widthMask;
+	// one token per second is one milli-token per millisecond
+	private final double refillPerMilli;
+	private final long capacity;
+	private final long epoch;
+	private final IMilterStatus overLimitStatus;
+	private final AtomicLong allowed = new AtomicLong();
+	private final AtomicLong limited = new AtomicLong();
+
+	/**
+	 * @param key what the limit applies to.
+	 * @param ratePerSecond sustained conversations per second allowed for each key.
+	 * @param burst conversations a key may open at once after being idle.
+	 * @param width buckets per row, rounded up to a power of two.
+	 * @param depth number of rows.
+	 * @param overLimitStatus the reply to clients over the limit.
+	 */
+	public ConnectionRateLimiter(final Key key, final double ratePerSecond, final int burst, final int width,
+			final int depth, final IMilterStatus overLimitStatus) {
+		if (ratePerSecond <= 0 || burst < 1 || burst > MAX_BURST || width < 1 || depth < 1) {
+			throw new IllegalArgumentException("Rate must be positive, burst between 1 and " + MAX_BURST
+					+ ", width and depth at least 1");
+		}
+		this.key = key;
+		final int roundedWidth = Integer.highestOneBit(width - 1) << 1;
+		this.widthMask = (width == 1 ? 1 : roundedWidth) - 1;
+		this.depth = depth;
+		this.buckets = new AtomicLongArray((widthMask + 1) * depth);
+		this.refillPerMilli = ratePerSecond;
+		this.capacity = burst * ONE_TOKEN;
+		// start the clock far enough in the past for untouched buckets to be full
+		this.epoch = System.nanoTime() / 1000000 - (long) Math.ceil(capacity / refillPerMilli) - 1;
+		this.overLimitStatus = overLimitStatus;
+	}
+
+	public Key getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the reply to clients over the limit.
+	 */
+	public IMilterStatus getOverLimitStatus() {
+		return overLimitStatus;
+	}
+
+	/**
+	 * Takes a token for a key.
+	 *
+	 * @param value the client address, authenticated user or sender, depending on {@link #getKey()}.
+	 * <p>
+	 * @return <code>false</code> if the key is over its limit.
+	 */
+	public boolean tryAcquire(final String value) {
+		final String normalized = key == Key.CLIENT_ADDRESS ? value : value.toLowerCase(Locale.ROOT);
+		final int h1 = mix(normalized.hashCode());
+		// odd, so that successive rows never map a key to the same column
+		final int h2 = mix(h1 ^ 0x5BD1E995) | 1;
+		final long now = System.nanoTime() / 1000000 - epoch;
+
+		boolean granted = false;
+		for (int row = 0; row < depth; ++row) {
+			final int index = row * (widthMask + 1) + ((h1 + row * h2) & widthMask);
+			granted |= take(index, now);
+		}
+		(granted ? allowed : limited).incrementAndGet();
+		return granted;
+	}
+
+	private boolean take(final int index, final long now) {
+		while (true) {
+			final long current = buckets.get(index);
+			final long last = current >>> TOKEN_BITS;
+			long tokens = current & TOKEN_MASK;
+			long refilled = last;
+
+			final long elapsed = now - last;
+			if (elapsed > 0) {
+				final double added = elapsed * refillPerMilli;
+				if (tokens + added >= capacity) {
+					tokens = capacity;
+					refilled = now;
+				}
+				else {
+					tokens += (long) added;
+					// only move the clock by the time actually turned into tokens, so slow rates still refill
+					refilled = last + (long) ((long) added / refillPerMilli);
+				}
+			}
+
+			final boolean granted = tokens >= ONE_TOKEN;
+			if (granted) {
+				tokens -= ONE_TOKEN;
+			}
+			if (buckets.compareAndSet(index, current, (refilled << TOKEN_BITS) | tokens)) {
+				return granted;
+			}
+		}
+	}
+
+	private static int mix(int h) {
+		// murmur3 finalizer
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	public long getAllowed() {
+		return allowed.get();
+	}
+
+	public long getLimited() {
+		return limited.get();
+	}
+
+	@Override
+	public String toString() {
+		return "rate limit by " + key + ": allowed=" + allowed.get() + " limited=" + limited.get();
+	}
+}
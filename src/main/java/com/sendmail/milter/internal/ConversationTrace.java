@@ -0,0 +1,117 @@
+package com.sendmail.milter.internal;
+
+import java.util.Locale;
+
+/**
+ * The recent events of one conversation, in a ring allocated once when the conversation starts. Recording an event
+ * is three array stores; the events are only formatted if the {@link MilterTracer} decides to emit them.
+ */
+final class ConversationTrace {
+
+	/**
+	 * A packet from the MTA. The value is its data length.
+	 */
+	static final char RECEIVED = '>';
+	/**
+	 * A reply to the MTA. The value is unused.
+	 */
+	static final char REPLIED = '<';
+	/**
+	 * A reply taken from the verdict cache instead of the handler.
+	 */
+	static final char CACHED = '=';
+	/**
+	 * A client over the rate limit.
+	 */
+	static final char LIMITED = '#';
+	/**
+	 * Work refused by the {@link MemoryGovernor} while memory is short.
+	 */
+	static final char SHED = '~';
+	/**
+	 * A handler exception.
+	 */
+	static final char FAILED = '!';
+
+	private final long id;
+	private final boolean sampled;
+	private final long start = System.nanoTime();
+	private final long[] times;
+	// kind in the high half, command in the low half
+	private final int[] codes;
+	private final int[] values;
+	private int next = 0;
+	private long count = 0;
+
+	/**
+	 * @param id the connection id.
+	 * @param sampled whether the conversation is emitted regardless of how long it takes.
+	 * @param capacity the number of most recent events kept.
+	 */
+	ConversationTrace(final long id, final boolean sampled, final int capacity) {
+		this.id = id;
+		this.sampled = sampled;
+		this.times = new long[capacity];
+		this.codes = new int[capacity];
+		this.values = new int[capacity];
+	}
+
+	void record(final char kind, final int command, final int value) {
+		times[next] = System.nanoTime();
+		codes[next] = kind << 16 | command & 0xFFFF;
+		values[next] = value;
+		if (++next == times.length) {
+			next = 0;
+		}
+		++count;
+	}
+
+	long getId() {
+		return id;
+	}
+
+	boolean isSampled() {
+		return sampled;
+	}
+
+	long getElapsedNanos() {
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * @param client the client address, or <code>null</code> if unknown.
+	 * <p>
+	 * @return the trace as a single line of <code>key=value</code> pairs, the events as offsets in milliseconds from
+	 * the start of the conversation, followed by the kind, the command and the value if any.
+	 */
+	String format(final String client) {
+		final int kept = (int) Math.min(count, times.length);
+		final StringBuilder sb = new StringBuilder(64 + kept * 16);
+		sb.append("conversation=").append(id)
+				.append(" client=").append(client == null ? "-" : client)
+				.append(" sampled=").append(sampled)
+				.append(" duration=").append(millis(getElapsedNanos()))
+				.append(" events=").append(count)
+				.append(" dropped=").append(count - kept)
+				.append(" trace=[");
+		int index = count > times.length ? next : 0;
+		for (int i = 0; i < kept; ++i) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(millis(times[index] - start)).append(' ')
+					.append((char) (codes[index] >>> 16)).append((char) (codes[index] & 0xFFFF));
+			if (codes[index] >>> 16 == RECEIVED) {
+				sb.append(' ').append(values[index]);
+			}
+			if (++index == times.length) {
+				index = 0;
+			}
+		}
+		return sb.append(']').toString();
+	}
+
+	private static String millis(final long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1000000.0);
+	}
+}
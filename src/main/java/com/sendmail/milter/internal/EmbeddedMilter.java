@@ -0,0 +1,504 @@
+package com.sendmail.milter.internal;
+
+import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.MilterConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Runs a filter in the JVM of the MTA, without the Milter wire format: the MTA calls a method for each event of the
+ * SMTP session and gets the reply back as the return value. One instance serves one SMTP session, the way a
+ * connection to the runner would, and is not safe for use by several threads at once.
+ * <p>
+ * The events go through the same {@link MilterProcessor} code as packets do, so the handler sees exactly what it would
+ * over a socket: the same callbacks with the same arguments, the services of the {@link MilterContext}, the verdict
+ * cache, rate limits, tracing and auditing, and a new handler after {@link #reset()}. Options are negotiated when the
+ * instance is created; events the filter asked not to get with {@link #getProtocolFlags()} should be skipped, as an
+ * MTA would. Body chunks are cut to the size an MTA sends.
+ * <p>
+ * Changes made at the end of the message come back as {@link Change}s, reduced to the fewest with the same effect, as
+ * with the action journal, and a replaced body as a buffer. Strings are passed to the handler as UTF-8, as an MTA
+ * supporting SMTPUTF8 sends them.
+ */
+public class EmbeddedMilter {
+
+	/**
+	 * A header or recipient change requested by the filter.
+	 */
+	public static final class Change {
+
+		/**
+		 * The kinds of change, named after the {@link com.sendmail.milter.IMilterActions} methods.
+		 */
+		public enum Type {
+
+			ADD_HEADER, INSERT_HEADER, CHANGE_HEADER, ADD_RECIPIENT, DELETE_RECIPIENT
+		}
+
+		private final Type type;
+		private final String name;
+		private final int index;
+		private final String value;
+
+		Change(final ActionJournal.Action action) {
+			this.type = Type.values()[action.type];
+			this.name = action.name;
+			this.index = action.index;
+			this.value = action.value;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * @return the header name, or the recipient.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the 1-based index among the headers of the same name, for {@link Type#CHANGE_HEADER}.
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return the header value, empty to delete the header, or <code>null</code> for recipients.
+		 */
+		public String getValue() {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return type + " " + name + (type == Type.CHANGE_HEADER ? "[" + index + "]" : "")
+					+ (value == null ? "" : ": " + value);
+		}
+	}
+
+	/**
+	 * Keeps the changes as objects instead of sending them.
+	 */
+	private final class Actions extends MilterActionsImpl {
+
+		Actions() {
+			super(null, true);
+		}
+
+		@Override
+		public void replacebody(final ByteBuffer bodyp) {
+			if (bodyp.hasArray()) {
+				body.write(bodyp.array(), bodyp.arrayOffset() + bodyp.position(), bodyp.remaining());
+				bodyp.position(bodyp.limit());
+			}
+			else {
+				final byte[] bytes = new byte[bodyp.remaining()];
+				bodyp.get(bytes);
+				body.write(bytes, 0, bytes.length);
+			}
+			bodyReplaced = true;
+			modified = true;
+		}
+
+		@Override
+		public void replacebody(final ReadableByteChannel channel) throws IOException {
+			final ByteBuffer chunk = ByteBuffer.allocate(MilterServerPacketUtil.MAX_BODY_CHUNK);
+			while (channel.read(chunk) >= 0) {
+				chunk.flip();
+				replacebody(chunk);
+				chunk.clear();
+			}
+			bodyReplaced = true;
+			modified = true;
+		}
+
+		@Override
+		public void replacebody(final FileChannel channel, final long position, final long count) throws IOException {
+			final WritableByteChannel target = Channels.newChannel(body);
+			long done = 0;
+			while (done < count) {
+				final long moved = channel.transferTo(position + done, count - done, target);
+				if (moved <= 0) {
+					break;
+				}
+				done += moved;
+			}
+			bodyReplaced = true;
+			modified = true;
+		}
+
+		@Override
+		public void progress() {
+			// nothing waits on the filter but the caller
+		}
+
+		@Override
+		public void finish(final IMilterStatus status) {
+			if (status != null) {
+				replied(status);
+			}
+		}
+
+		@Override
+		void sendWithReply(final IMilterStatus status) {
+			final ActionJournal journal = getJournal();
+			if (!journal.isEmpty() && !VerdictCache.isTerminal(status)) {
+				for (ActionJournal.Action action : journal.reduce()) {
+					changes.add(new Change(action));
+				}
+			}
+			journal.clear();
+			replied(status);
+		}
+	}
+
+	/**
+	 * The actions and protocol flags of a recent Sendmail, everything but the optional replies.
+	 */
+	private static final int ALL_ACTIONS = 0x000001FF;
+	private static final int ALL_PROTOCOL = 0x001FFFFF & ~(MilterConstants.SMFIP_NR_CONN
+			| MilterConstants.SMFIP_NR_HELO | MilterConstants.SMFIP_NR_MAIL | MilterConstants.SMFIP_NR_RCPT
+			| MilterConstants.SMFIP_NR_DATA | MilterConstants.SMFIP_NR_UNKN | MilterConstants.SMFIP_NR_HDR
+			| MilterConstants.SMFIP_NR_EOH | MilterConstants.SMFIP_NR_BODY);
+
+	private final MilterProcessor processor;
+	private final List<Change> changes = new ArrayList<>();
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream(0);
+	private boolean bodyReplaced = false;
+	private IMilterStatus reply = null;
+	private boolean closed = false;
+
+	/**
+	 * Creates a session for an MTA that supports every action and expects a reply to every event.
+	 *
+	 * @param context the handler factory and services.
+	 * <p>
+	 * @throws IOException if the filter cannot work with the MTA.
+	 */
+	public EmbeddedMilter(final MilterContext context) throws IOException {
+		this(context, ALL_ACTIONS, ALL_PROTOCOL);
+	}
+
+	/**
+	 * Creates a session and negotiates options with the filter.
+	 *
+	 * @param context the handler factory and services.
+	 * @param actions the <code>SMFIF_</code> actions the MTA supports.
+	 * @param protocol the <code>SMFIP_</code> protocol flags the MTA supports. Events the filter does not reply to
+	 * because of the <code>SMFIP_NR_</code> flags return {@link IMilterStatus#SMFIS_CONTINUE}.
+	 * <p>
+	 * @throws IOException if the filter cannot work with the MTA.
+	 */
+	@SuppressWarnings("LeakingThisInConstructor")
+	public EmbeddedMilter(final MilterContext context, final int actions, final int protocol) throws IOException {
+		processor = new MilterProcessor(context, new Actions(), this);
+		begin(MilterConstants.SMFIC_OPTNEG, 12);
+		// the version of the current Sendmail
+		final boolean negotiated = processor.negotiate(6, actions, protocol);
+		end(12);
+		if (!negotiated) {
+			close();
+			throw new IOException("The filter cannot work with actions " + Integer.toHexString(actions)
+					+ " and protocol " + Integer.toHexString(protocol));
+		}
+	}
+
+	/**
+	 * @return the id of this session, unique within the runner, for correlating log records.
+	 */
+	public long getConnectionId() {
+		return processor.getConnectionId();
+	}
+
+	/**
+	 * @return the <code>SMFIF_</code> actions the filter may take.
+	 */
+	public int getActionFlags() {
+		return processor.getNegotiatedActions();
+	}
+
+	/**
+	 * @return the <code>SMFIP_</code> protocol flags the filter asked for.
+	 */
+	public int getProtocolFlags() {
+		return processor.getNegotiatedProtocol();
+	}
+
+	/**
+	 * Sets the macros passed with the following events.
+	 *
+	 * @param macros the macros, in place of those set before. They are not copied.
+	 * <p>
+	 * @throws IOException if the session is closed.
+	 */
+	public void macros(final Properties macros) throws IOException {
+		begin(MilterConstants.SMFIC_MACRO, 0);
+		processor.macros(macros);
+		end(0);
+	}
+
+	/**
+	 * @param hostname the name of the client.
+	 * @param address the address of the client, or <code>null</code> if it has none.
+	 * <p>
+	 * @return the reply.
+	 * <p>
+	 * @throws IOException if the session is closed.
+	 */
+	public IMilterStatus connect(final String hostname, final InetAddress address) throws IOException {
+		begin(MilterConstants.SMFIC_CONNECT, 0);
+		processor.connect(hostname, address);
+		return end(0);
+	}
+
+	/**
+	 * @param helohost the host name given with HELO or EHLO.
+	 * <p>
+	 * @return the reply.
+	 * <p>
+	 * @throws IOException if the session is closed.
+	 */
+	public IMilterStatus helo(final String helohost) throws IOException {
+		begin(MilterConstants.SMFIC_HELO, 0);
+		processor.helo(helohost);
+		return end(0);
+	}
+
+	/**
+	 * Starts a message.
+	 *
+	 * @param argv the sender, then the ESMTP arguments.
+	 * <p>
+	 * @return the reply.
+	 * <p>
+	 * @throws IOException if the session is closed.
+	 */
+	public IMilterStatus envfrom(final String... argv) throws IOException {
+		changes.clear();
+		clearBody();
+		begin(MilterConstants.SMFIC_MAIL, 0);
+		processor.envfrom(bytes(argv));
+		return end(0);
+	}
+
+	/**
+	 * @param argv the recipient, then the ESMTP arguments.
+	 * <p>
+	 * @return the reply.
+	 * <p>
+	 * @throws IOException if the session is closed.
+	 */
+	public IMilterStatus envrcpt(final String... argv) throws IOException {
+		begin(MilterConstants.SMFIC_RCPT, 0);
+		processor.envrcpt(bytes(argv));
+		return end(0);
+	}
+
+	/**
+	 * @return the reply.
+	 * <p>
+	 * @throws IOException if the session is closed.
+	 */
+	public IMilterStatus data() throws IOException {
+		begin(MilterConstants.SMFIC_DATA, 0);
+		processor.data();
+		return end(0);
+	}
+
+	/**
+	 * @param name the header name.
+	 * @param value the header value, unfolded or not, as the MTA keeps it.
+	 * <p>
+	 * @return the reply.
+	 * <p>
+	 * @throws IOException if the session is closed.
+	 */
+	public IMilterStatus header(final String name, final String value) throws IOException {
+		final byte[] nameBytes = name.getBytes(MilterServerPacketUtil.UTF8);
+		final byte[] valueBytes = value.getBytes(MilterServerPacketUtil.UTF8);
+		final int length = nameBytes.length + valueBytes.length + 2;
+		begin(MilterConstants.SMFIC_HEADER, length);
+		processor.header(nameBytes, valueBytes);
+		return end(length);
+	}
+
+	/**
+	 * @return the reply.
+	 * <p>
+	 * @throws IOException if the session is closed.
+	 */
+	public IMilterStatus eoh() throws IOException {
+		begin(MilterConstants.SMFIC_EOH, 0);
+		processor.eoh();
+		return end(0);
+	}
+
+	/**
+	 * Passes a part of the body, in chunks no larger than an MTA sends, until the filter replies with anything but
+	 * {@link IMilterStatus#SMFIS_CONTINUE}.
+	 *
+	 * @param bodyp the next part of the body. Its position is moved past the bytes passed.
+	 * <p>
+	 * @return the last reply.
+	 * <p>
+	 * @throws IOException if the session is closed.
+	 */
+	public IMilterStatus body(final ByteBuffer bodyp) throws IOException {
+		IMilterStatus status = IMilterStatus.SMFIS_CONTINUE;
+		while (bodyp.hasRemaining() && status.getCode() == IMilterStatus.SMFIS_CONTINUE.getCode()) {
+			final ByteBuffer chunk = bodyp.slice();
+			if (chunk.remaining() > MilterServerPacketUtil.MAX_BODY_CHUNK) {
+				chunk.limit(MilterServerPacketUtil.MAX_BODY_CHUNK);
+			}
+			final int length = chunk.remaining();
+			bodyp.position(bodyp.position() + length);
+			begin(MilterConstants.SMFIC_BODY, length);
+			processor.body(chunk);
+			status = end(length);
+		}
+		return status;
+	}
+
+	/**
+	 * Ends the message. The changes the filter made are then available from {@link #getChanges()} and
+	 * {@link #getReplacedBody()}.
+	 *
+	 * @return the reply.
+	 * <p>
+	 * @throws IOException if the session is closed.
+	 */
+	public IMilterStatus eom() throws IOException {
+		changes.clear();
+		begin(MilterConstants.SMFIC_BODYEOB, 0);
+		processor.eom();
+		return end(0);
+	}
+
+	/**
+	 * @param command the SMTP command the MTA does not know.
+	 * <p>
+	 * @return the reply.
+	 * <p>
+	 * @throws IOException if the session is closed.
+	 */
+	public IMilterStatus unknown(final String command) throws IOException {
+		final byte[] bytes = command.getBytes(MilterServerPacketUtil.UTF8);
+		// with the terminating NUL, as the handler gets it from a packet
+		final byte[] data = Arrays.copyOf(bytes, bytes.length + 1);
+		begin(MilterConstants.SMFIC_UNKNOWN, data.length);
+		processor.unknown(data);
+		return end(data.length);
+	}
+
+	/**
+	 * Aborts the current message.
+	 *
+	 * @throws IOException if the session is closed.
+	 */
+	public void abort() throws IOException {
+		changes.clear();
+		clearBody();
+		begin(MilterConstants.SMFIC_ABORT, 0);
+		processor.abort();
+		end(0);
+	}
+
+	/**
+	 * Ends the SMTP session but keeps this instance for the next one, as <code>SMFIC_QUIT_NC</code> does a
+	 * connection. The next session gets a fresh handler and keeps the options negotiated.
+	 *
+	 * @throws IOException if the session is closed.
+	 */
+	public void reset() throws IOException {
+		changes.clear();
+		clearBody();
+		begin(MilterConstants.SMFIC_QUIT_NC, 0);
+		processor.nextConversation();
+		end(0);
+	}
+
+	/**
+	 * @return the header and recipient changes the filter made at the end of the last message.
+	 */
+	public List<Change> getChanges() {
+		return Collections.unmodifiableList(changes);
+	}
+
+	/**
+	 * @return the body the filter replaced that of the current message with, or <code>null</code> if it did not.
+	 */
+	public ByteBuffer getReplacedBody() {
+		return bodyReplaced ? ByteBuffer.wrap(body.toByteArray()) : null;
+	}
+
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * Ends the session and releases the handler.
+	 */
+	public void close() {
+		if (!closed) {
+			closed = true;
+			processor.close();
+		}
+	}
+
+	/**
+	 * Takes a reply of the processor. Only the first reply to an event counts, as only the first would be read by an
+	 * MTA.
+	 */
+	void replied(final IMilterStatus status) {
+		if (reply == null) {
+			reply = status;
+		}
+	}
+
+	private void begin(final int command, final int length) throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		reply = null;
+		if (!processor.begin(command, length)) {
+			close();
+			throw new IOException("The filter asks for other options than were negotiated for the session");
+		}
+	}
+
+	private IMilterStatus end(final int length) {
+		processor.end(length);
+		final IMilterStatus status = reply;
+		reply = null;
+		return status == null ? IMilterStatus.SMFIS_CONTINUE : status;
+	}
+
+	private void clearBody() {
+		body.reset();
+		bodyReplaced = false;
+	}
+
+	private static byte[][] bytes(final String[] strings) {
+		final byte[][] bytes = new byte[strings.length][];
+		for (int i = 0; i < strings.length; ++i) {
+			bytes[i] = strings[i].getBytes(MilterServerPacketUtil.UTF8);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,185 @@
+package com.sendmail.milter.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe cache whose entries expire after a per-entry time to live.
+ * <p>
+ * Keys are spread over a fixed number of segments, each guarded by its own lock. Every segment is a least recently used
+ * list holding at most its share of the total capacity: inserting into a full segment evicts the entry of that segment
+ * that was read or written longest ago. Expired entries are dropped when they are next looked up, or earlier if they
+ * happen to be the least recently used ones.
+ *
+ * @param <K> key type.
+ * @param <V> value type.
+ */
+public class ExpiringCache<K, V> {
+
+	private final Segment<K, V>[] segments;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	/**
+	 * @param capacity the maximum number of entries held.
+	 * @param concurrency the number of independently locked segments.
+	 */
+	@SuppressWarnings("unchecked")
+	public ExpiringCache(final int capacity, final int concurrency) {
+		if (capacity <= 0 || concurrency <= 0) {
+			throw new IllegalArgumentException("Capacity and concurrency must be positive");
+		}
+		final int count = Math.min(capacity, concurrency);
+		segments = new Segment[count];
+		for (int i = 0; i < count; ++i) {
+			// spread the remainder over the first segments
+			segments[i] = new Segment<>(capacity / count + (i < capacity % count ? 1 : 0), evictions);
+		}
+	}
+
+	private Segment<K, V> segmentFor(final Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[(h & 0x7FFFFFFF) % segments.length];
+	}
+
+	/**
+	 * @param key the key to look up.
+	 * <p>
+	 * @return the cached value, or <code>null</code> if there is none or it has expired.
+	 */
+	public V get(final K key) {
+		final Segment<K, V> segment = segmentFor(key);
+		final long now = System.nanoTime();
+		synchronized (segment) {
+			final CacheEntry<V> entry = segment.get(key);
+			if (entry != null) {
+				if (now - entry.expires < 0) {
+					hits.incrementAndGet();
+					return entry.value;
+				}
+				segment.remove(key);
+				expirations.incrementAndGet();
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * @param key the key.
+	 * @param value the value, not <code>null</code>.
+	 * @param ttl how long the entry stays valid.
+	 * @param unit unit of <code>ttl</code>.
+	 */
+	public void put(final K key, final V value, final long ttl, final TimeUnit unit) {
+		if (value == null) {
+			throw new NullPointerException("Cannot cache null values");
+		}
+		final CacheEntry<V> entry = new CacheEntry<>(value, System.nanoTime() + unit.toNanos(ttl));
+		final Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			segment.put(key, entry);
+		}
+	}
+
+	/**
+	 * @param key the key to drop.
+	 */
+	public void remove(final K key) {
+		final Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			segment.remove(key);
+		}
+	}
+
+	/**
+	 * Drops all entries. Counters are kept.
+	 */
+	public void clear() {
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of entries held, including expired ones not dropped yet.
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of entries dropped to make room for newer ones.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the number of entries dropped because they had expired when looked up.
+	 */
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	@Override
+	public String toString() {
+		return "size=" + size() + " hits=" + hits.get() + " misses=" + misses.get() + " evictions=" + evictions.get()
+				+ " expirations=" + expirations.get();
+	}
+
+	private static final class CacheEntry<V> {
+
+		final V value;
+		final long expires;
+
+		CacheEntry(final V value, final long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	private static final class Segment<K, V> extends LinkedHashMap<K, CacheEntry<V>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+		private final AtomicLong evictions;
+
+		Segment(final int capacity, final AtomicLong evictions) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+			this.evictions = evictions;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<K, CacheEntry<V>> eldest) {
+			if (size() > capacity) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,419 @@
+package com.sendmail.milter.internal;
+
+import com.sendmail.milter.IMilterActions;
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.MilterConstants;
+import com.sendmail.milter.runtime.HeaderBlock;
+import com.sendmail.milter.runtime.IMilterHeaderBlockHandler;
+import com.sendmail.milter.runtime.IMilterStreamingActions;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A handler whose callbacks go through a {@link CallbackGuard}, for one conversation. Once a callback has been
+ * abandoned, every later one is answered with the fallback, and the handler is closed when the abandoned callback
+ * returns instead of being released for reuse. The actions of an abandoned callback fail with an
+ * {@link IOException}, so that nothing reaches the MTA after the fallback reply.
+ */
+class GuardedMilterHandler implements IMilterHandler {
+
+	/**
+	 * For handlers that take the headers as a block. When the callback is abandoned, the processor leaves the block to
+	 * it and collects the next message in a new one.
+	 */
+	static final class HeaderBlocks extends GuardedMilterHandler implements IMilterHeaderBlockHandler {
+
+		private final IMilterHeaderBlockHandler blockDelegate;
+
+		HeaderBlocks(final CallbackGuard guard, final IMilterHeaderBlockHandler delegate) {
+			super(guard, delegate);
+			this.blockDelegate = delegate;
+		}
+
+		@Override
+		public IMilterStatus eoh(final HeaderBlock headers, final IMilterActions actions,
+				final Properties properties) {
+			final IMilterActions guarded = guard(actions);
+			return call(MilterConstants.SMFIC_EOH, new Callable<IMilterStatus>() {
+				@Override
+				public IMilterStatus call() {
+					return blockDelegate.eoh(headers, guarded, properties);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Actions that fail once the callback using them is abandoned. The check and the action are atomic with respect
+	 * to {@link GuardedMilterHandler#abandon()}, which waits for an action in progress.
+	 */
+	private final class GuardedActions implements IMilterStreamingActions {
+
+		private final IMilterStreamingActions actions;
+
+		GuardedActions(final IMilterStreamingActions actions) {
+			this.actions = actions;
+		}
+
+		private void check() throws IOException {
+			if (abandoned) {
+				throw new IOException("The callback ran out of time and was abandoned");
+			}
+		}
+
+		@Override
+		public void addheader(final String headerf, final String headerv) throws IOException {
+			synchronized (GuardedMilterHandler.this) {
+				check();
+				actions.addheader(headerf, headerv);
+			}
+		}
+
+		@Override
+		public void insheader(final String headerf, final String headerv) throws IOException {
+			synchronized (GuardedMilterHandler.this) {
+				check();
+				actions.insheader(headerf, headerv);
+			}
+		}
+
+		@Override
+		public void chgheader(final String headerf, final int hdridx, final String headerv) throws IOException {
+			synchronized (GuardedMilterHandler.this) {
+				check();
+				actions.chgheader(headerf, hdridx, headerv);
+			}
+		}
+
+		@Override
+		public void addrcpt(final String rcpt) throws IOException {
+			synchronized (GuardedMilterHandler.this) {
+				check();
+				actions.addrcpt(rcpt);
+			}
+		}
+
+		@Override
+		public void delrcpt(final String rcpt) throws IOException {
+			synchronized (GuardedMilterHandler.this) {
+				check();
+				actions.delrcpt(rcpt);
+			}
+		}
+
+		@Override
+		public void replacebody(final ByteBuffer bodyp) throws IOException {
+			synchronized (GuardedMilterHandler.this) {
+				check();
+				actions.replacebody(bodyp);
+			}
+		}
+
+		@Override
+		public void replacebody(final ReadableByteChannel body) throws IOException {
+			synchronized (GuardedMilterHandler.this) {
+				check();
+				actions.replacebody(body);
+			}
+		}
+
+		@Override
+		public void replacebody(final FileChannel body, final long position, final long count) throws IOException {
+			synchronized (GuardedMilterHandler.this) {
+				check();
+				actions.replacebody(body, position, count);
+			}
+		}
+
+		@Override
+		public void progress() throws IOException {
+			synchronized (GuardedMilterHandler.this) {
+				check();
+				actions.progress();
+			}
+		}
+
+		@Override
+		public void finish(final IMilterStatus status) throws IOException {
+			synchronized (GuardedMilterHandler.this) {
+				check();
+				actions.finish(status);
+			}
+		}
+	}
+
+	private final CallbackGuard guard;
+	private final IMilterHandler delegate;
+	// set by the conversation thread, under the lock
+	private boolean abandoned = false;
+	// guarded by this
+	private boolean running = false;
+	private boolean released = false;
+	// the conversation thread only
+	private boolean fellBack = false;
+	private GuardedActions guardedActions = null;
+	private int priority = PriorityPolicy.UNCLASSIFIED;
+
+	GuardedMilterHandler(final CallbackGuard guard, final IMilterHandler delegate) {
+		this.guard = guard;
+		this.delegate = delegate;
+	}
+
+	IMilterHandler getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * @return the priority of the conversation, for the stages its callbacks run on.
+	 */
+	int getPriority() {
+		return priority;
+	}
+
+	void setPriority(final int priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * @return <code>true</code> if the result of the last callback was the fallback rather than the handler's.
+	 */
+	boolean isFallback() {
+		return fellBack;
+	}
+
+	IMilterStatus fellBack(final IMilterStatus fallback) {
+		fellBack = true;
+		return fallback;
+	}
+
+	final IMilterStatus call(final int command, final Callable<IMilterStatus> callback) {
+		fellBack = false;
+		if (abandoned) {
+			return fellBack(guard.getFallback());
+		}
+		return guard.call(this, command, callback);
+	}
+
+	final IMilterActions guard(final IMilterActions actions) {
+		if (!(actions instanceof IMilterStreamingActions)) {
+			return actions;
+		}
+		if (guardedActions == null || guardedActions.actions != actions) {
+			guardedActions = new GuardedActions((IMilterStreamingActions) actions);
+		}
+		return guardedActions;
+	}
+
+	/**
+	 * @return a task running the callback, unless it was abandoned while queued, which closes the handler when done if
+	 * it was released in the meantime.
+	 */
+	synchronized FutureTask<IMilterStatus> start(final Callable<IMilterStatus> callback) {
+		running = true;
+		return new FutureTask<IMilterStatus>(new Callable<IMilterStatus>() {
+			@Override
+			public IMilterStatus call() throws Exception {
+				synchronized (GuardedMilterHandler.this) {
+					if (abandoned) {
+						return null;
+					}
+				}
+				return callback.call();
+			}
+		}) {
+			@Override
+			protected void done() {
+				finished();
+			}
+		};
+	}
+
+	private void finished() {
+		synchronized (this) {
+			running = false;
+			if (!released) {
+				return;
+			}
+		}
+		delegate.close();
+	}
+
+	/**
+	 * Gives up on the running callback.
+	 *
+	 * @return <code>false</code> if it has just returned after all.
+	 */
+	synchronized boolean abandon() {
+		if (!running) {
+			return false;
+		}
+		abandoned = true;
+		return true;
+	}
+
+	/**
+	 * Ends the conversation.
+	 *
+	 * @return <code>true</code> if the handler can be released for reuse. Otherwise it has been closed, or will be
+	 * once an abandoned callback returns.
+	 */
+	boolean release() {
+		synchronized (this) {
+			if (running) {
+				released = true;
+				return false;
+			}
+		}
+		if (abandoned) {
+			delegate.close();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int negotiateVersion(final int mtaVersion, final int actionFlags, final int protocolFlags) {
+		return delegate.negotiateVersion(mtaVersion, actionFlags, protocolFlags);
+	}
+
+	@Override
+	public int getActionFlags() {
+		return delegate.getActionFlags();
+	}
+
+	@Override
+	public int getProtocolFlags() {
+		return delegate.getProtocolFlags();
+	}
+
+	@Override
+	public Map<Integer, Set<String>> getMacros() {
+		return delegate.getMacros();
+	}
+
+	@Override
+	public IMilterStatus connect(final String hostname, final InetAddress hostaddr, final Properties properties) {
+		return call(MilterConstants.SMFIC_CONNECT, new Callable<IMilterStatus>() {
+			@Override
+			public IMilterStatus call() {
+				return delegate.connect(hostname, hostaddr, properties);
+			}
+		});
+	}
+
+	@Override
+	public IMilterStatus helo(final String helohost, final Properties properties) {
+		return call(MilterConstants.SMFIC_HELO, new Callable<IMilterStatus>() {
+			@Override
+			public IMilterStatus call() {
+				return delegate.helo(helohost, properties);
+			}
+		});
+	}
+
+	@Override
+	public IMilterStatus envfrom(final byte[][] argv, final Properties properties) {
+		return call(MilterConstants.SMFIC_MAIL, new Callable<IMilterStatus>() {
+			@Override
+			public IMilterStatus call() {
+				return delegate.envfrom(argv, properties);
+			}
+		});
+	}
+
+	@Override
+	public IMilterStatus envrcpt(final byte[][] argv, final Properties properties) {
+		return call(MilterConstants.SMFIC_RCPT, new Callable<IMilterStatus>() {
+			@Override
+			public IMilterStatus call() {
+				return delegate.envrcpt(argv, properties);
+			}
+		});
+	}
+
+	@Override
+	public IMilterStatus data(final Properties properties) {
+		return call(MilterConstants.SMFIC_DATA, new Callable<IMilterStatus>() {
+			@Override
+			public IMilterStatus call() {
+				return delegate.data(properties);
+			}
+		});
+	}
+
+	@Override
+	public IMilterStatus header(final byte[] headerf, final byte[] headerv) {
+		return call(MilterConstants.SMFIC_HEADER, new Callable<IMilterStatus>() {
+			@Override
+			public IMilterStatus call() {
+				return delegate.header(headerf, headerv);
+			}
+		});
+	}
+
+	@Override
+	public IMilterStatus eoh(final IMilterActions actions, final Properties properties) {
+		final IMilterActions guarded = guard(actions);
+		return call(MilterConstants.SMFIC_EOH, new Callable<IMilterStatus>() {
+			@Override
+			public IMilterStatus call() {
+				return delegate.eoh(guarded, properties);
+			}
+		});
+	}
+
+	@Override
+	public IMilterStatus body(final ByteBuffer bodyp) {
+		return call(MilterConstants.SMFIC_BODY, new Callable<IMilterStatus>() {
+			@Override
+			public IMilterStatus call() {
+				return delegate.body(bodyp);
+			}
+		});
+	}
+
+	@Override
+	public IMilterStatus eom(final IMilterActions actions, final Properties properties) {
+		final IMilterActions guarded = guard(actions);
+		return call(MilterConstants.SMFIC_BODYEOB, new Callable<IMilterStatus>() {
+			@Override
+			public IMilterStatus call() {
+				return delegate.eom(guarded, properties);
+			}
+		});
+	}
+
+	@Override
+	public IMilterStatus unknown(final byte[] command, final Properties properties) {
+		return call(MilterConstants.SMFIC_UNKNOWN, new Callable<IMilterStatus>() {
+			@Override
+			public IMilterStatus call() {
+				return delegate.unknown(command, properties);
+			}
+		});
+	}
+
+	@Override
+	public void abort() {
+		if (!abandoned) {
+			delegate.abort();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (release()) {
+			delegate.close();
+		}
+	}
+}
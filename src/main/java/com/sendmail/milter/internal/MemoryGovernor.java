@@ -0,0 +1,328 @@
+package com.sendmail.milter.internal;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sheds new work when memory runs short, before the collector thrashes and every conversation suffers for the few
+ * that hold large messages.
+ * <p>
+ * Three things are watched, each with a high watermark that starts shedding and a low one that stops it: the heap
+ * left in use after a collection, from the collection usage thresholds of the heap pools; the direct buffers in use;
+ * and the message data the conversations of the runner hold, counted by the processors as headers and body arrive.
+ * The heap is checked when the JVM reports a threshold crossed or a collection done, and everything again as each
+ * conversation connects. While any of them is over its watermark, new conversations are refused at connect and
+ * messages in progress are refused the rest of their body, both with a temporary failure, so the MTA retries later.
+ * <p>
+ * Entering and leaving the shedding state is logged, along with the message data held for each listener.
+ */
+public class MemoryGovernor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MemoryGovernor.class);
+	private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+	/**
+	 * What the conversations of one listener hold.
+	 */
+	private static final class Usage {
+
+		final String listener;
+		final AtomicLong buffered = new AtomicLong();
+		final AtomicInteger conversations = new AtomicInteger();
+
+		Usage(final String listener) {
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * The message data one conversation holds. Not thread-safe, used by one processor.
+	 */
+	public final class Account {
+
+		private final Usage usage;
+		private long held = 0;
+		private boolean closed = false;
+
+		private Account(final Usage usage) {
+			this.usage = usage;
+			usage.conversations.incrementAndGet();
+		}
+
+		/**
+		 * @param bytes more message data received.
+		 */
+		void add(final int bytes) {
+			held += bytes;
+			usage.buffered.addAndGet(bytes);
+			if (buffered.addAndGet(bytes) > bufferedHigh && bufferedHigh > 0 && !bufferedOver) {
+				evaluate();
+			}
+		}
+
+		/**
+		 * Forgets the message data, at the end of a message.
+		 */
+		void clear() {
+			if (held > 0) {
+				usage.buffered.addAndGet(-held);
+				final long total = buffered.addAndGet(-held);
+				held = 0;
+				if (total <= bufferedLow && bufferedOver) {
+					evaluate();
+				}
+			}
+		}
+
+		/**
+		 * Ends the conversation.
+		 */
+		void close() {
+			clear();
+			if (!closed) {
+				closed = true;
+				usage.conversations.decrementAndGet();
+			}
+		}
+	}
+
+	private final double heapHigh;
+	private final double heapLow;
+	private final long directHigh;
+	private final long directLow;
+	private final long bufferedHigh;
+	private final long bufferedLow;
+	private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+	private final BufferPoolMXBean directPool;
+	private final ConcurrentHashMap<String, Usage> listeners = new ConcurrentHashMap<>();
+	private final AtomicLong buffered = new AtomicLong();
+	private volatile boolean heapOver = false;
+	private volatile boolean directOver = false;
+	private volatile boolean bufferedOver = false;
+	private volatile boolean shedding = false;
+	private final AtomicLong episodes = new AtomicLong();
+	private final AtomicLong refusedConnections = new AtomicLong();
+	private final AtomicLong refusedBodies = new AtomicLong();
+
+	/**
+	 * @param heapHigh the share of the heap, between 0 and 1, in use after a collection above which work is shed, 0
+	 * not to watch the heap.
+	 * @param heapLow the share below which shedding stops.
+	 * @param directHigh the bytes of direct buffers above which work is shed, 0 not to watch them.
+	 * @param bufferedHigh the bytes of message data held by conversations above which work is shed, 0 not to watch it.
+	 * @param lowRatio the low watermarks of direct buffers and message data, as a share of the high ones.
+	 */
+	public MemoryGovernor(final double heapHigh, final double heapLow, final long directHigh, final long bufferedHigh,
+			final double lowRatio) {
+		if (heapLow > heapHigh || heapHigh > 1 || lowRatio < 0 || lowRatio > 1) {
+			throw new IllegalArgumentException("Bad memory watermarks");
+		}
+		this.heapHigh = heapHigh;
+		this.heapLow = heapLow;
+		this.directHigh = directHigh;
+		this.directLow = (long) (directHigh * lowRatio);
+		this.bufferedHigh = bufferedHigh;
+		this.bufferedLow = (long) (bufferedHigh * lowRatio);
+
+		BufferPoolMXBean direct = null;
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if ("direct".equals(pool.getName())) {
+				direct = pool;
+			}
+		}
+		this.directPool = direct;
+		if (heapHigh > 0) {
+			watchHeap();
+		}
+	}
+
+	private void watchHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			final long max = pool.getUsage().getMax();
+			// the pools live objects end up in, like the old generation; young pools take no usage threshold
+			if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+					&& pool.isCollectionUsageThresholdSupported() && max > 0) {
+				pool.setCollectionUsageThreshold((long) (max * heapHigh));
+				heapPools.add(pool);
+			}
+		}
+		final NotificationListener listener = new NotificationListener() {
+			@Override
+			public void handleNotification(final Notification notification, final Object handback) {
+				final String type = notification.getType();
+				if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)
+						|| GC_NOTIFICATION.equals(type)) {
+					evaluate();
+				}
+			}
+		};
+		((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(listener, null, null);
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (collector instanceof NotificationEmitter) {
+				((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+			}
+		}
+	}
+
+	/**
+	 * @param listener the address the conversation was accepted on, or <code>null</code> if none.
+	 * <p>
+	 * @return the account of a new conversation, to be closed when it ends.
+	 */
+	public Account open(final SocketAddress listener) {
+		final String name = String.valueOf(listener);
+		Usage usage = listeners.get(name);
+		if (usage == null) {
+			usage = new Usage(name);
+			final Usage raced = listeners.putIfAbsent(name, usage);
+			if (raced != null) {
+				usage = raced;
+			}
+		}
+		return new Account(usage);
+	}
+
+	/**
+	 * Checks memory again, and counts the conversation as refused if work is being shed.
+	 *
+	 * @return <code>true</code> if a new conversation may go on.
+	 */
+	boolean admitConnection() {
+		evaluate();
+		if (shedding) {
+			refusedConnections.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Counts the message as refused if work is being shed.
+	 *
+	 * @return <code>true</code> if more of the body may be taken in.
+	 */
+	boolean admitBody() {
+		if (shedding) {
+			refusedBodies.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	public boolean isShedding() {
+		return shedding;
+	}
+
+	/**
+	 * Compares memory in use with the watermarks, and starts or stops shedding.
+	 */
+	void evaluate() {
+		if (heapHigh > 0) {
+			double worst = 0;
+			for (MemoryPoolMXBean pool : heapPools) {
+				final MemoryUsage usage = pool.getCollectionUsage();
+				if (usage != null && usage.getMax() > 0) {
+					worst = Math.max(worst, (double) usage.getUsed() / usage.getMax());
+				}
+			}
+			heapOver = heapOver ? worst > heapLow : worst > heapHigh;
+		}
+		if (directHigh > 0 && directPool != null) {
+			final long used = directPool.getMemoryUsed();
+			directOver = directOver ? used > directLow : used > directHigh;
+		}
+		if (bufferedHigh > 0) {
+			final long used = buffered.get();
+			bufferedOver = bufferedOver ? used > bufferedLow : used > bufferedHigh;
+		}
+		final boolean over = heapOver || directOver || bufferedOver;
+		synchronized (this) {
+			if (over == shedding) {
+				return;
+			}
+			shedding = over;
+		}
+		if (over) {
+			episodes.incrementAndGet();
+			LOG.warn("Memory is short, refusing new conversations and message bodies: {}; held by listener: {}",
+					usage(), holders());
+		}
+		else {
+			LOG.info("Memory is available again, taking new work: {}", usage());
+		}
+	}
+
+	private String usage() {
+		final StringBuilder text = new StringBuilder();
+		if (heapHigh > 0) {
+			for (MemoryPoolMXBean pool : heapPools) {
+				final MemoryUsage usage = pool.getCollectionUsage();
+				if (usage != null) {
+					text.append(pool.getName()).append(' ').append(usage.getUsed() >> 20).append("M of ")
+							.append(usage.getMax() >> 20).append("M after collection")
+							.append(heapOver ? " (over)" : "").append(", ");
+				}
+			}
+		}
+		if (directPool != null) {
+			text.append("direct ").append(directPool.getMemoryUsed() >> 20).append('M')
+					.append(directOver ? " (over)" : "").append(", ");
+		}
+		text.append("message data ").append(buffered.get() >> 10).append('K').append(bufferedOver ? " (over)" : "");
+		return text.toString();
+	}
+
+	private String holders() {
+		final List<Usage> usages = new ArrayList<>(listeners.values());
+		Collections.sort(usages, new Comparator<Usage>() {
+			@Override
+			public int compare(final Usage a, final Usage b) {
+				return Long.compare(b.buffered.get(), a.buffered.get());
+			}
+		});
+		final StringBuilder text = new StringBuilder();
+		for (Usage usage : usages) {
+			text.append(text.length() == 0 ? "" : ", ").append(usage.listener).append(' ')
+					.append(usage.buffered.get() >> 10).append("K in ").append(usage.conversations.get())
+					.append(" conversations");
+		}
+		return text.toString();
+	}
+
+	/**
+	 * @param listener the address of a listener.
+	 * <p>
+	 * @return the message data held by its conversations.
+	 */
+	public long getBuffered(final SocketAddress listener) {
+		final Usage usage = listeners.get(String.valueOf(listener));
+		return usage == null ? 0 : usage.buffered.get();
+	}
+
+	@Override
+	public String toString() {
+		return "memory governor: " + (shedding ? "shedding" : "normal") + ", " + usage() + ", episodes="
+				+ episodes.get() + " refusedConnections=" + refusedConnections.get() + " refusedBodies="
+				+ refusedBodies.get();
+	}
+}
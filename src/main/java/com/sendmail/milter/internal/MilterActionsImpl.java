@@ -3,65 +3,194 @@
  */
 package com.sendmail.milter.internal;
 
-import com.sendmail.milter.IMilterActions;
 import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.runtime.IMilterStreamingActions;
 
 import java.io.IOException;
 
 import java.nio.ByteBuffer;
 
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.List;
 
-public class MilterActionsImpl implements IMilterActions {
+public class MilterActionsImpl implements IMilterStreamingActions {
 
 	WritableByteChannel writeChannel = null;
+	private final MilterPacketEncoder encoder = new MilterPacketEncoder();
+	// for streamed bodies, allocated on first use
+	private ByteBuffer bodyChunk = null;
+	private final ActionJournal journal;
+	// whether the handler changed the current message
+	boolean modified = false;
 
 	public MilterActionsImpl(WritableByteChannel writeChannel) {
+		this(writeChannel, false);
+	}
+
+	/**
+	 * @param writeChannel the channel to the MTA.
+	 * @param journaled if <code>true</code>, header and recipient changes are held back until
+	 * {@link #sendWithReply(IMilterStatus)} and reduced to the fewest packets with the same effect.
+	 */
+	public MilterActionsImpl(WritableByteChannel writeChannel, boolean journaled) {
 		this.writeChannel = writeChannel;
+		this.journal = journaled ? new ActionJournal() : null;
 	}
 
 	@Override
 	public void addheader(String headerf, String headerv)
 			throws IOException {
-		MilterServerPacketUtil.sendAddHeaderPacket(this.writeChannel, headerf, headerv);
+		modified = true;
+		if (journal != null) {
+			journal.record(ActionJournal.ADD_HEADER, headerf, 0, headerv);
+			return;
+		}
+		encoder.addHeader(headerf, headerv);
+		encoder.flush(this.writeChannel);
 	}
 
 	@Override
 	public void insheader(String headerf, String headerv)
 			throws IOException {
-		MilterServerPacketUtil.sendInsertHeaderPacket(this.writeChannel, headerf, headerv);
+		modified = true;
+		if (journal != null) {
+			journal.record(ActionJournal.INSERT_HEADER, headerf, 0, headerv);
+			return;
+		}
+		encoder.insertHeader(headerf, headerv);
+		encoder.flush(this.writeChannel);
 	}
 
 	@Override
 	public void chgheader(String headerf, int hdridx, String headerv)
 			throws IOException {
-		MilterServerPacketUtil.sendChgHeaderPacket(this.writeChannel, hdridx, headerf, headerv);
+		modified = true;
+		if (journal != null) {
+			journal.record(ActionJournal.CHANGE_HEADER, headerf, hdridx, headerv);
+			return;
+		}
+		encoder.changeHeader(hdridx, headerf, headerv);
+		encoder.flush(this.writeChannel);
 	}
 
 	@Override
 	public void addrcpt(String rcpt)
 			throws IOException {
-		MilterServerPacketUtil.sendAddRcptPacket(this.writeChannel, rcpt);
+		modified = true;
+		if (journal != null) {
+			journal.record(ActionJournal.ADD_RECIPIENT, rcpt, 0, null);
+			return;
+		}
+		encoder.addRecipient(rcpt);
+		encoder.flush(this.writeChannel);
 	}
 
 	@Override
 	public void delrcpt(String rcpt)
 			throws IOException {
-		MilterServerPacketUtil.sendDelRcptPacket(this.writeChannel, rcpt);
+		modified = true;
+		if (journal != null) {
+			journal.record(ActionJournal.DELETE_RECIPIENT, rcpt, 0, null);
+			return;
+		}
+		encoder.deleteRecipient(rcpt);
+		encoder.flush(this.writeChannel);
 	}
 
 	@Override
 	public void replacebody(ByteBuffer bodyp)
 			throws IOException {
+		modified = true;
 		MilterServerPacketUtil.sendReplBodyPacket(this.writeChannel, bodyp);
 	}
 
+	@Override
+	public void replacebody(ReadableByteChannel body)
+			throws IOException {
+		modified = true;
+		if (body instanceof FileChannel) {
+			final FileChannel file = (FileChannel) body;
+			final long position = file.position();
+			replacebody(file, position, Math.max(0, file.size() - position));
+			return;
+		}
+		if (bodyChunk == null) {
+			bodyChunk = ByteBuffer.allocateDirect(MilterServerPacketUtil.MAX_BODY_CHUNK);
+		}
+		MilterServerPacketUtil.sendReplBodyPackets(this.writeChannel, body, bodyChunk);
+	}
+
+	@Override
+	public void replacebody(FileChannel body, long position, long count)
+			throws IOException {
+		modified = true;
+		MilterServerPacketUtil.sendReplBodyPackets(this.writeChannel, body, position, count);
+	}
+
 	@Override
 	public void progress()
 			throws IOException {
 		MilterServerPacketUtil.sendProgressPacket(this.writeChannel);
 	}
 
+	/**
+	 * @return the journal of held back changes, or <code>null</code> if changes are sent right away.
+	 */
+	ActionJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Sends the end-of-message reply, preceded by the changes held back in the journal, all in a single write. The
+	 * changes are dropped if the reply rejects, fails or discards the message, since the MTA ignores them then.
+	 *
+	 * @param status the reply.
+	 * <p>
+	 * @throws IOException on connection problems.
+	 */
+	void sendWithReply(IMilterStatus status)
+			throws IOException {
+		if (journal != null && !journal.isEmpty() && !VerdictCache.isTerminal(status)) {
+			final List<ActionJournal.Action> changes = journal.reduce();
+			for (ActionJournal.Action change : changes) {
+				switch (change.type) {
+					case ActionJournal.ADD_HEADER:
+						encoder.addHeader(change.name, change.value);
+						break;
+					case ActionJournal.INSERT_HEADER:
+						encoder.insertHeader(change.name, change.value);
+						break;
+					case ActionJournal.CHANGE_HEADER:
+						encoder.changeHeader(change.index, change.name, change.value);
+						break;
+					case ActionJournal.ADD_RECIPIENT:
+						encoder.addRecipient(change.name);
+						break;
+					default:
+						encoder.deleteRecipient(change.name);
+						break;
+				}
+			}
+		}
+		if (journal != null) {
+			journal.clear();
+		}
+		encoder.packet(status.getCode(), status.getMessage());
+		encoder.flush(this.writeChannel);
+	}
+
+	/**
+	 * Makes the actions usable again after {@link #finish(IMilterStatus)}, for the next message on the connection.
+	 *
+	 * @param channel the channel to the MTA.
+	 */
+	void reopen(WritableByteChannel channel) {
+		this.writeChannel = channel;
+		this.modified = false;
+	}
+
 	@Override
 	public void finish(IMilterStatus status)
 			throws IOException {
@@ -0,0 +1,219 @@
+package com.sendmail.milter.internal;
+
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.runtime.IMilterRuntimeAware;
+import com.sendmail.milter.runtime.IPooledMilterHandlerFactory;
+import com.sendmail.milter.runtime.MilterRuntime;
+import com.sendmail.milter.spi.IMilterHandlerFactory;
+
+import java.net.SocketAddress;
+
+/**
+ * Everything the {@link MilterProcessor} instances of one listener share: the handler factory and the services of the
+ * runner. Optional features are configured through the setters before the first processor is created.
+ */
+public class MilterContext {
+
+	private final IMilterHandlerFactory factory;
+	private final MilterRuntime runtime;
+	private final MilterHandlerPool pool;
+	private VerdictCache verdictCache = null;
+	private ConnectionRateLimiter rateLimiter = null;
+	private MilterTracer tracer = null;
+	private boolean actionJournal = false;
+	private CallbackGuard callbackGuard = null;
+	private AuditLog auditLog = null;
+	private MemoryGovernor memoryGovernor = null;
+	private BodyDigests bodyDigests = null;
+	private SocketAddress listener = null;
+	private PriorityPolicy priorityPolicy = null;
+
+	/**
+	 * @param factory the factory to create handlers with.
+	 * @param runtime the services to hand to {@link IMilterRuntimeAware} handlers. May be <code>null</code>.
+	 */
+	public MilterContext(final IMilterHandlerFactory factory, final MilterRuntime runtime) {
+		this.factory = factory;
+		this.runtime = runtime;
+		if (factory instanceof IPooledMilterHandlerFactory) {
+			pool = new MilterHandlerPool(((IPooledMilterHandlerFactory) factory).getPoolSize());
+		}
+		else {
+			pool = null;
+		}
+	}
+
+	public IMilterHandlerFactory getFactory() {
+		return factory;
+	}
+
+	public MilterRuntime getRuntime() {
+		return runtime;
+	}
+
+	/**
+	 * @return the pool of idle handlers, or <code>null</code> if the factory does not support reuse.
+	 */
+	public MilterHandlerPool getHandlerPool() {
+		return pool;
+	}
+
+	/**
+	 * @return the cache of terminal handler verdicts, or <code>null</code> if verdicts are not cached.
+	 */
+	public VerdictCache getVerdictCache() {
+		return verdictCache;
+	}
+
+	public void setVerdictCache(final VerdictCache verdictCache) {
+		this.verdictCache = verdictCache;
+	}
+
+	/**
+	 * @return the per-client rate limiter, or <code>null</code> if conversations are not rate limited.
+	 */
+	public ConnectionRateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	public void setRateLimiter(final ConnectionRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * @return the conversation tracer, or <code>null</code> if conversations are not traced.
+	 */
+	public MilterTracer getTracer() {
+		return tracer;
+	}
+
+	public void setTracer(final MilterTracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * @return <code>true</code> if header and recipient changes are held back until the end-of-message reply and
+	 * reduced to the fewest with the same effect.
+	 */
+	public boolean isActionJournal() {
+		return actionJournal;
+	}
+
+	public void setActionJournal(final boolean actionJournal) {
+		this.actionJournal = actionJournal;
+	}
+
+	/**
+	 * @return the guard bounding the time handler callbacks take, or <code>null</code> if they are called directly.
+	 */
+	public CallbackGuard getCallbackGuard() {
+		return callbackGuard;
+	}
+
+	public void setCallbackGuard(final CallbackGuard callbackGuard) {
+		this.callbackGuard = callbackGuard;
+	}
+
+	/**
+	 * @return the log of transactions, or <code>null</code> if transactions are not logged.
+	 */
+	public AuditLog getAuditLog() {
+		return auditLog;
+	}
+
+	public void setAuditLog(final AuditLog auditLog) {
+		this.auditLog = auditLog;
+	}
+
+	/**
+	 * @return the governor shedding work when memory runs short, or <code>null</code> if memory is not watched.
+	 */
+	public MemoryGovernor getMemoryGovernor() {
+		return memoryGovernor;
+	}
+
+	public void setMemoryGovernor(final MemoryGovernor memoryGovernor) {
+		this.memoryGovernor = memoryGovernor;
+	}
+
+	/**
+	 * @return the body digests and the verdicts cached for them, or <code>null</code> if bodies are not digested.
+	 */
+	public BodyDigests getBodyDigests() {
+		return bodyDigests;
+	}
+
+	public void setBodyDigests(final BodyDigests bodyDigests) {
+		this.bodyDigests = bodyDigests;
+	}
+
+	/**
+	 * @return the address the listener accepts connections on, or <code>null</code> if unknown.
+	 */
+	public SocketAddress getListener() {
+		return listener;
+	}
+
+	public void setListener(final SocketAddress listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return the policy classifying conversations for the priority queues, or <code>null</code> if there is none.
+	 */
+	public PriorityPolicy getPriorityPolicy() {
+		return priorityPolicy;
+	}
+
+	public void setPriorityPolicy(final PriorityPolicy priorityPolicy) {
+		this.priorityPolicy = priorityPolicy;
+	}
+
+	/**
+	 * Gets a handler for a new conversation, reusing an idle one if the factory supports it.
+	 *
+	 * @return the handler, with the runtime set if it asked for it.
+	 */
+	IMilterHandler newHandler() {
+		final IMilterHandler handler = createHandler();
+		return callbackGuard == null ? handler : callbackGuard.wrap(handler);
+	}
+
+	private IMilterHandler createHandler() {
+		IMilterHandler handler = pool == null ? null : pool.acquire();
+		if (handler != null) {
+			return handler;
+		}
+		final long start = System.nanoTime();
+		handler = factory.newInstance();
+		if (runtime != null && handler instanceof IMilterRuntimeAware) {
+			((IMilterRuntimeAware) handler).setRuntime(runtime);
+		}
+		if (pool != null) {
+			pool.created(System.nanoTime() - start);
+		}
+		return handler;
+	}
+
+	/**
+	 * Ends the use of a handler by a conversation: keeps it for reuse if possible, closes it otherwise.
+	 *
+	 * @param handler the handler obtained from {@link #newHandler()}.
+	 */
+	void releaseHandler(final IMilterHandler handler) {
+		IMilterHandler released = handler;
+		if (handler instanceof GuardedMilterHandler) {
+			final GuardedMilterHandler guarded = (GuardedMilterHandler) handler;
+			if (!guarded.release()) {
+				return;
+			}
+			released = guarded.getDelegate();
+		}
+		if (pool == null) {
+			released.close();
+		}
+		else {
+			pool.release(released);
+		}
+	}
+}
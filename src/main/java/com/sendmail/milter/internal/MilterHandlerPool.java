@@ -0,0 +1,120 @@
+package com.sendmail.milter.internal;
+
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.runtime.IResettableMilterHandler;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a bounded number of idle, reset handlers for reuse. Handlers that do not implement
+ * {@link IResettableMilterHandler}, that refuse to reset, or that find the pool full are closed and discarded.
+ */
+public class MilterHandlerPool {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MilterHandlerPool.class);
+
+	private final BlockingQueue<IMilterHandler> idle;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong discarded = new AtomicLong();
+	private final AtomicLong createNanos = new AtomicLong();
+
+	/**
+	 * @param size maximum number of idle handlers.
+	 */
+	public MilterHandlerPool(final int size) {
+		this.idle = new ArrayBlockingQueue<>(Math.max(size, 1));
+	}
+
+	/**
+	 * @return an idle handler, or <code>null</code> if the caller has to create one.
+	 */
+	IMilterHandler acquire() {
+		final IMilterHandler handler = idle.poll();
+		(handler == null ? misses : hits).incrementAndGet();
+		return handler;
+	}
+
+	/**
+	 * @param nanos time it took to create a handler after a miss.
+	 */
+	void created(final long nanos) {
+		createNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Resets a handler whose conversation is over and keeps it for reuse, or closes it.
+	 *
+	 * @param handler the handler.
+	 * <p>
+	 * @return <code>true</code> if the handler was kept for reuse.
+	 */
+	boolean release(final IMilterHandler handler) {
+		if (handler instanceof IResettableMilterHandler) {
+			boolean reusable;
+			try {
+				reusable = ((IResettableMilterHandler) handler).reset();
+			}
+			catch (Throwable t) {
+				LOG.error("Handler threw an unhandled exception on reset", t);
+				reusable = false;
+			}
+			if (reusable && idle.offer(handler)) {
+				return true;
+			}
+		}
+		discarded.incrementAndGet();
+		handler.close();
+		return false;
+	}
+
+	/**
+	 * Closes every idle handler.
+	 */
+	public void clear() {
+		IMilterHandler handler;
+		while ((handler = idle.poll()) != null) {
+			handler.close();
+		}
+	}
+
+	/**
+	 * @return conversations that got an idle handler.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return conversations that needed a new handler.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return handlers closed instead of being kept for reuse.
+	 */
+	public long getDiscarded() {
+		return discarded.get();
+	}
+
+	/**
+	 * @return total time spent creating handlers, in milliseconds.
+	 */
+	public long getCreateMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(createNanos.get());
+	}
+
+	@Override
+	public String toString() {
+		return "handler pool: idle=" + idle.size() + " hits=" + hits.get() + " misses=" + misses.get() + " discarded="
+				+ discarded.get() + " createMillis=" + getCreateMillis();
+	}
+}
@@ -0,0 +1,139 @@
+package com.sendmail.milter.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A connection to a filter in the same JVM, for an MTA that has its own Milter client code: what the MTA writes to the
+ * channel is processed right away, on the writing thread, and the replies can be read back as soon as the write
+ * returns. No socket, thread or copy is involved beyond the packets themselves. One channel serves one connection,
+ * like a socket, and all of it is the Milter wire format; see {@link EmbeddedMilter} to skip that too.
+ * <p>
+ * Reads never block: they return 0 when no reply is waiting, and -1 once the filter ended the connection and all
+ * replies were read.
+ */
+public class MilterLoopback implements ByteChannel {
+
+	/**
+	 * The filter's end, which collects the replies.
+	 */
+	private final class Replies implements WritableByteChannel {
+
+		@Override
+		public int write(final ByteBuffer src) {
+			final int length = src.remaining();
+			if (replies.remaining() < length) {
+				replies.flip();
+				final ByteBuffer larger = ByteBuffer.allocate(Math.max(replies.capacity() * 2,
+						replies.remaining() + length));
+				replies = larger.put(replies);
+			}
+			replies.put(src);
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private final MilterProcessor processor;
+	// filled by the filter, drained by the MTA
+	private ByteBuffer replies = ByteBuffer.allocate(1024);
+	private boolean open = true;
+	private boolean finished = false;
+
+	/**
+	 * @param context the handler factory and services.
+	 */
+	@SuppressWarnings("LeakingThisInConstructor")
+	public MilterLoopback(final MilterContext context) {
+		processor = new MilterProcessor(new Replies(), context);
+	}
+
+	/**
+	 * @return the id of this connection, unique within the runner, for correlating log records.
+	 */
+	public long getConnectionId() {
+		return processor.getConnectionId();
+	}
+
+	/**
+	 * Passes packets to the filter.
+	 *
+	 * @param src the packets, which may end or start in the middle of one.
+	 * <p>
+	 * @return the number of bytes taken, all of them.
+	 * <p>
+	 * @throws IOException if the channel is closed, or the filter ended the connection.
+	 */
+	@Override
+	public synchronized int write(final ByteBuffer src) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		if (finished) {
+			throw new IOException("Connection closed by the filter");
+		}
+		final int length = src.remaining();
+		if (!processor.process(src)) {
+			finished = true;
+			processor.close();
+		}
+		return length;
+	}
+
+	/**
+	 * Reads replies of the filter.
+	 *
+	 * @param dst where to put them.
+	 * <p>
+	 * @return the number of bytes read, 0 if no reply is waiting, or -1 if the filter ended the connection.
+	 * <p>
+	 * @throws IOException if the channel is closed.
+	 */
+	@Override
+	public synchronized int read(final ByteBuffer dst) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		if (replies.position() == 0) {
+			return finished ? -1 : 0;
+		}
+		replies.flip();
+		final int length = Math.min(replies.remaining(), dst.remaining());
+		final int limit = replies.limit();
+		replies.limit(replies.position() + length);
+		dst.put(replies);
+		replies.limit(limit);
+		replies.compact();
+		return length;
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Closes the connection, as the MTA closing its socket would.
+	 */
+	@Override
+	public synchronized void close() {
+		if (open) {
+			open = false;
+			if (!finished) {
+				finished = true;
+				processor.close();
+			}
+		}
+	}
+}
@@ -37,7 +37,6 @@ public class MilterPacket {
 		do {
 			switch (currentState) {
 				case STATE_COLLECTING_LENGTH:
-					LOG.debug("STATE_COLLECTING_LENGTH");
 					bytesToUse = Math.min(4 - currentLengthLength, dataBuffer.remaining());
 
 					for (int counter = 0; counter < bytesToUse; ++counter) {
@@ -49,34 +48,26 @@ public class MilterPacket {
 					if (currentLengthLength == 4) {
 						currentState = STATE_COLLECTING_COMMAND;
 						--currentLength;   // Minus one for the command byte
-						LOG.debug("Collected length is " + currentLength);
 						currentData = ByteBuffer.allocate(currentLength);
 					}
 
 					break;
 
 				case STATE_COLLECTING_COMMAND:
-					LOG.debug("STATE_COLLECTING_COMMAND");
-
 					currentCommand = unsignedByteToInt(dataBuffer.get());
-					LOG.debug("Collected command is '" + ((char) currentCommand) + "'");
 
 					currentState = (currentLength == 0) ? STATE_COMPLETED : STATE_COLLECTING_DATA;
-					LOG.debug("New state is " + currentState);
 					break;
 
 				case STATE_COLLECTING_DATA:
-					LOG.debug("STATE_COLLECTING_DATA");
 					bytesToUse = Math.min(currentLength - currentDataLength, dataBuffer.remaining());
 
 					currentData.put((ByteBuffer) dataBuffer.asReadOnlyBuffer().limit(dataBuffer.position() + bytesToUse));
 					dataBuffer.position(dataBuffer.position() + bytesToUse);
 
 					currentDataLength += bytesToUse;
-					LOG.debug("Found " + bytesToUse + " bytes to apply to data");
 
 					if (currentDataLength == currentLength) {
-						LOG.debug("Collected all the data");
 						currentData.flip();
 						currentState = STATE_COMPLETED;
 					}
@@ -84,7 +75,6 @@ public class MilterPacket {
 					break;
 
 				case STATE_COMPLETED:
-					LOG.debug("STATE_COMPLETED");
 					break;
 
 				default:
@@ -0,0 +1,277 @@
+package com.sendmail.milter.internal;
+
+import com.sendmail.milter.MilterConstants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes filter-to-MTA packets straight into a reusable buffer. One instance is meant to be owned by a single
+ * connection; it is not thread-safe.
+ * <p>
+ * Packets are built between {@link #begin(int)} and {@link #end()}, several of them may be queued, and
+ * {@link #flush(WritableByteChannel)} sends everything queued with as few writes as the channel allows.
+ */
+final class MilterPacketEncoder {
+
+	private static final int INITIAL_CAPACITY = 1024;
+	// buffers grown past this by an unusually large header are dropped after the flush
+	private static final int RETAINED_CAPACITY = 64 * 1024;
+	// lines in mail cannot be more than 998 bytes, so assuming this is the content of a header
+	// and the header is less than 90 bytes long, we should be safe with a new line every 900 bytes
+	private static final int QP_LINE = 900;
+
+	private static final byte[] HEXMAP = {
+		'0', '1', '2', '3', '4', '5', '6', '7',
+		'8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+	};
+
+	/**
+	 * Bytes that can be written to a header value as they are. Everything else is quoted-printable encoded.
+	 */
+	private static final boolean[] SAFE = new boolean[256];
+
+	static {
+		for (int b = 33; b < 128; ++b) {
+			SAFE[b] = true;
+		}
+		for (char c : "=()<>@,;:\\\"/[]?".toCharArray()) {
+			SAFE[c] = false;
+		}
+	}
+
+	private final CharsetEncoder utf8 = MilterServerPacketUtil.UTF8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+	private ByteBuffer scratch = ByteBuffer.allocate(INITIAL_CAPACITY);
+	private int packetStart = -1;
+
+	static boolean isSafe(final byte b) {
+		return SAFE[b & 0xFF];
+	}
+
+	static byte hexHigh(final byte b) {
+		return HEXMAP[(b >> 4) & 0x0F];
+	}
+
+	static byte hexLow(final byte b) {
+		return HEXMAP[b & 0x0F];
+	}
+
+	/**
+	 * Starts a new packet. The length is filled in by {@link #end()}.
+	 *
+	 * @param command the SMFIR_ command byte.
+	 */
+	void begin(final int command) {
+		ensureCapacity(5);
+		packetStart = buffer.position();
+		buffer.putInt(0);
+		buffer.put((byte) command);
+	}
+
+	/**
+	 * Completes the packet started by the last {@link #begin(int)}.
+	 */
+	void end() {
+		// the length includes the command byte, but not itself
+		buffer.putInt(packetStart, buffer.position() - packetStart - 4);
+		packetStart = -1;
+	}
+
+	void putInt(final int value) {
+		ensureCapacity(4);
+		buffer.putInt(value);
+	}
+
+	void putBytes(final ByteBuffer data) {
+		ensureCapacity(data.remaining());
+		buffer.put(data);
+	}
+
+	/**
+	 * Writes a string as NUL terminated UTF-8. A <code>null</code> string is written as an empty one.
+	 */
+	void putZeroTerminatedString(final String string) {
+		if (string != null) {
+			encodeUtf8(string, buffer);
+		}
+		ensureCapacity(1);
+		buffer.put((byte) 0);
+	}
+
+	/**
+	 * Writes a header value as NUL terminated UTF-8, quoted-printable encoding every byte that is not
+	 * {@linkplain #isSafe(byte) safe}. A <code>null</code> value is written as an empty one.
+	 */
+	void putZeroTerminatedQuotedPrintable(final String string) {
+		if (string != null) {
+			scratch.clear();
+			scratch = encodeUtf8(string, scratch);
+			final int size = scratch.position();
+			// worst case: every byte escaped, plus a line break every QP_LINE bytes
+			ensureCapacity(size * 3 + (size / QP_LINE + 1) * 2);
+
+			final byte[] in = scratch.array();
+			final byte[] out = buffer.array();
+			int pos = buffer.arrayOffset() + buffer.position();
+			boolean safeForNewLine = true;
+			boolean addNewLine = false;
+			for (int i = 0; i < size; ++i) {
+				if (addNewLine && safeForNewLine) {
+					out[pos++] = 13;
+					out[pos++] = 10;
+					addNewLine = false;
+				}
+				if (i > 0 && i % QP_LINE == 0) {
+					addNewLine = true;
+				}
+				final byte b = in[i];
+				if (SAFE[b & 0xFF]) {
+					out[pos++] = b;
+					safeForNewLine = true;
+				}
+				else {
+					out[pos++] = '=';
+					out[pos++] = HEXMAP[(b >> 4) & 0x0F];
+					out[pos++] = HEXMAP[b & 0x0F];
+					if ((b & 0x80) != 0) {
+						safeForNewLine = false;
+					}
+				}
+			}
+			buffer.position(pos - buffer.arrayOffset());
+			if (scratch.capacity() > RETAINED_CAPACITY) {
+				scratch = ByteBuffer.allocate(INITIAL_CAPACITY);
+			}
+		}
+		ensureCapacity(1);
+		buffer.put((byte) 0);
+	}
+
+	/**
+	 * Sends every queued packet.
+	 *
+	 * @param writeChannel the channel to the MTA.
+	 * <p>
+	 * @throws IOException on connection problems.
+	 */
+	void flush(final WritableByteChannel writeChannel) throws IOException {
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				writeChannel.write(buffer);
+			}
+		}
+		finally {
+			if (buffer.capacity() > RETAINED_CAPACITY) {
+				buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+			}
+			else {
+				buffer.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if packets are waiting for {@link #flush(WritableByteChannel)}.
+	 */
+	boolean hasPending() {
+		return buffer.position() > 0;
+	}
+
+	/**
+	 * Adds a packet with arbitrary data, like a reply.
+	 *
+	 * @param command the command.
+	 * @param data the data, or <code>null</code> for none. Not consumed.
+	 */
+	void packet(final int command, final ByteBuffer data) {
+		begin(command);
+		if (data != null) {
+			putBytes(data.duplicate());
+		}
+		end();
+	}
+
+	void addHeader(final String header, final String value) {
+		// char    name[]      Name of header, NUL terminated
+		// char    value[]     Value of header, NUL terminated
+		begin(MilterConstants.SMFIR_ADDHEADER);
+		putZeroTerminatedString(header);
+		putZeroTerminatedQuotedPrintable(value);
+		end();
+	}
+
+	void insertHeader(final String header, final String value) {
+		// char    name[]      Name of header, NUL terminated
+		// char    value[]     Value of header, NUL terminated
+		begin(MilterConstants.SMFIR_INSHEADER);
+		putZeroTerminatedString(header);
+		putZeroTerminatedString(value);
+		end();
+	}
+
+	void changeHeader(final int index, final String header, final String value) {
+		// uint32  index       Index of the occurrence of this header
+		// char    name[]      Name of header, NUL terminated
+		// char    value[]     Value of header, NUL terminated
+		begin(MilterConstants.SMFIR_CHGHEADER);
+		putInt(index);
+		putZeroTerminatedString(header);
+		putZeroTerminatedQuotedPrintable(value);
+		end();
+	}
+
+	void addRecipient(final String recipient) {
+		// char rcpt[]      New recipient, NUL terminated
+		begin(MilterConstants.SMFIR_ADDRCPT);
+		putZeroTerminatedString(recipient);
+		end();
+	}
+
+	void deleteRecipient(final String recipient) {
+		// char    rcpt[]      Recipient to remove, NUL terminated
+		//                     (string must match the one in SMFIC_RCPT exactly)
+		begin(MilterConstants.SMFIR_DELRCPT);
+		putZeroTerminatedString(recipient);
+		end();
+	}
+
+	private ByteBuffer encodeUtf8(final String string, ByteBuffer target) {
+		// UTF-8 never needs more than three bytes per UTF-16 char
+		final int needed = string.length() * 3;
+		if (target.remaining() < needed) {
+			if (target == buffer) {
+				ensureCapacity(needed);
+				target = buffer;
+			}
+			else {
+				target = grow(target, needed);
+			}
+		}
+		utf8.reset();
+		utf8.encode(CharBuffer.wrap(string), target, true);
+		utf8.flush(target);
+		return target;
+	}
+
+	private void ensureCapacity(final int needed) {
+		if (buffer.remaining() < needed) {
+			buffer = grow(buffer, needed);
+		}
+	}
+
+	private static ByteBuffer grow(final ByteBuffer source, final int needed) {
+		final int capacity = Math.max(source.capacity() * 2, source.position() + needed);
+		final ByteBuffer grown = ByteBuffer.allocate(capacity);
+		source.flip();
+		grown.put(source);
+		return grown;
+	}
+}
@@ -4,9 +4,10 @@
 package com.sendmail.milter.internal;
 
 import com.sendmail.milter.MilterConstants;
-import com.sendmail.milter.IMilterActions;
 import com.sendmail.milter.IMilterHandler;
 import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.runtime.HeaderBlock;
+import com.sendmail.milter.runtime.IMilterHeaderBlockHandler;
 import com.sendmail.milter.spi.IMilterHandlerFactory;
 
 import java.io.IOException;
@@ -17,6 +18,7 @@ import java.util.Arrays;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,19 +27,56 @@ import org.slf4j.LoggerFactory;
  * The guts of handling the filter side of the Milter protocol. If you have your own way that you like to handle
  * communicating with the MTA side of the Milter protocol, you can feed an instance of this class the bytes from the
  * MTA, and it will handle calling methods in a {@link IMilterHandler}, as well as sending data back to the MTA via an
- * arbitrary {@link WritableByteChannel}.
+ * arbitrary {@link WritableByteChannel}. An MTA running in the same JVM can instead use a {@link MilterLoopback}, or
+ * skip the wire format altogether with an {@link EmbeddedMilter}.
  */
 public class MilterProcessor {
 
 	private static final Logger LOG = LoggerFactory.getLogger(MilterProcessor.class);
+	private static final AtomicLong CONNECTION_IDS = new AtomicLong();
+	private static final int FAKE_PFLAGS = MilterConstants.SMFIP_NR_CONN
+			| MilterConstants.SMFIP_NR_HELO
+			| MilterConstants.SMFIP_NR_MAIL
+			| MilterConstants.SMFIP_NR_RCPT
+			| MilterConstants.SMFIP_NR_DATA
+			| MilterConstants.SMFIP_NR_UNKN
+			| MilterConstants.SMFIP_NR_HDR
+			| MilterConstants.SMFIP_NR_EOH
+			| MilterConstants.SMFIP_NR_BODY;
 
 	private IMilterHandler handler = null;
+	private final MilterContext context;
 	private final MilterPacket packet = new MilterPacket();
 	private Properties lastProperties = null;
 	private final WritableByteChannel writeChannel;
-	private final IMilterActions actions;
+	private final MilterActionsImpl actions;
+	private int mtaVersion;
 	private int mtaAflags;
 	private int mtaPflags;
+	// what was agreed with the MTA, which handlers of later conversations on the connection must keep to
+	private boolean negotiated = false;
+	private int negotiatedActions;
+	private int negotiatedProtocol;
+	private boolean renegotiate = false;
+	private HeaderBlock headerBlock = null;
+	private boolean headerNoReply = false;
+	private String clientAddress = null;
+	private final long connectionId = CONNECTION_IDS.incrementAndGet();
+	private ConversationTrace trace = null;
+	private final AuditRecord audit;
+	// when the current packet was read, for the audit timings
+	private long packetStarted;
+	// the command being processed, from the MTA or an embedder
+	private int command;
+	// set when the handler threw while processing the command, so the reply is not the handler's verdict
+	private boolean failed;
+	// set when driven by an embedder, which takes replies as objects rather than packets
+	private final EmbeddedMilter embedder;
+	private final BodyDigests.Digest digest;
+	// what the client was classified as at connect
+	private int connectPriority = PriorityPolicy.UNCLASSIFIED;
+	// the message data held for the current message, counted against the memory of the runner
+	private final MemoryGovernor.Account memory;
 
 	/**
 	 * Public constructor.
@@ -46,11 +85,70 @@ public class MilterProcessor {
 	 * @param factory the factory to create an {@link IMilterHandler} that will receive calls based on the Milter
 	 * conversation.
 	 */
-	@SuppressWarnings("LeakingThisInConstructor")
 	public MilterProcessor(final WritableByteChannel writeChannel, final IMilterHandlerFactory factory) {
-		this.handler = factory.newInstance();
+		this(writeChannel, new MilterContext(factory, null));
+	}
+
+	/**
+	 * Public constructor.
+	 *
+	 * @param writeChannel the data channel for communicating back to the MTA.
+	 * @param context the handler factory and services shared by the processors of a listener.
+	 */
+	public MilterProcessor(final WritableByteChannel writeChannel, final MilterContext context) {
+		this(writeChannel, context, new MilterActionsImpl(writeChannel, context.isActionJournal()), null);
+	}
+
+	/**
+	 * Creates a processor driven by an {@link EmbeddedMilter} instead of packets.
+	 *
+	 * @param context the handler factory and services.
+	 * @param actions the actions handed to the handler, which must be journaled.
+	 * @param embedder receives the replies.
+	 */
+	MilterProcessor(final MilterContext context, final MilterActionsImpl actions, final EmbeddedMilter embedder) {
+		this(null, context, actions, embedder);
+	}
+
+	@SuppressWarnings("LeakingThisInConstructor")
+	private MilterProcessor(final WritableByteChannel writeChannel, final MilterContext context,
+			final MilterActionsImpl actions, final EmbeddedMilter embedder) {
+		this.context = context;
+		this.handler = context.newHandler();
+		if (handler instanceof IMilterHeaderBlockHandler) {
+			headerBlock = new HeaderBlock();
+		}
 		this.writeChannel = writeChannel;
-		actions = new MilterActionsImpl(writeChannel);
+		this.actions = actions;
+		this.embedder = embedder;
+		final MilterTracer tracer = context.getTracer();
+		if (tracer != null) {
+			trace = tracer.start(connectionId);
+		}
+		audit = context.getAuditLog() == null ? null : new AuditRecord(context.getAuditLog());
+		digest = context.getBodyDigests() == null ? null : context.getBodyDigests().new Digest();
+		memory = context.getMemoryGovernor() == null ? null : context.getMemoryGovernor().open(context.getListener());
+	}
+
+	/**
+	 * @return the id of this conversation, unique within the runner, for correlating log records.
+	 */
+	public long getConnectionId() {
+		return connectionId;
+	}
+
+	/**
+	 * @return the actions agreed with the MTA, 0 before options negotiation.
+	 */
+	int getNegotiatedActions() {
+		return negotiatedActions;
+	}
+
+	/**
+	 * @return the protocol flags agreed with the MTA, 0 before options negotiation.
+	 */
+	int getNegotiatedProtocol() {
+		return negotiatedProtocol;
 	}
 
 	/**
@@ -79,134 +177,163 @@ public class MilterProcessor {
 
 	private boolean processCurrentPacket() throws IOException {
 		boolean returnCode = true;
-
-		if (LOG.isDebugEnabled()) {
-			// log.debug(">SMFIC command is '" + ((char) this.packet.getCommand()) + "', Raw packet data:" + Util.newline() +
-			// Util.hexDumpLong(this.packet.getData()));
-			LOG.debug(">SMFIC command is '" + (char) packet.getCommand() + "'");
+		final ByteBuffer data = packet.getData();
+		final int length = data == null ? 0 : data.remaining();
+		if (!begin(packet.getCommand(), length)) {
+			return false;
 		}
 
-		switch (packet.getCommand()) {
+		switch (command) {
 			case MilterConstants.SMFIC_CONNECT:
-				LOG.debug("SMFIC_CONNECT");
 				processConnectPacket();
 				break;
 
 			case MilterConstants.SMFIC_MACRO:
-				LOG.debug("SMFIC_MACRO");
 				processMacroPacket();
 				break;
 
 			case MilterConstants.SMFIC_HELO:
-				LOG.debug("SMFIC_HELO");
 				processHeloPacket();
 				break;
 
 			case MilterConstants.SMFIC_MAIL:
-				LOG.debug("SMFIC_MAIL");
 				processMailPacket();
 				break;
 
 			case MilterConstants.SMFIC_RCPT:
-				LOG.debug("SMFIC_RCPT");
 				processRcptPacket();
 				break;
 
 			case MilterConstants.SMFIC_BODYEOB:
-				LOG.debug("SMFIC_BODYEOB");
-				processBodyEOBPacket();
+				eom();
 				break;
 
 			case MilterConstants.SMFIC_HEADER:
-				LOG.debug("SMFIC_HEADER");
 				processHeaderPacket();
 				break;
 
 			case MilterConstants.SMFIC_EOH:
-				LOG.debug("SMFIC_EOH");
-				processEOHPacket();
+				eoh();
 				break;
 
 			case MilterConstants.SMFIC_OPTNEG:
-				LOG.debug("SMFIC_OPTNEG");
 				processOptnegPacket();
 				break;
 
 			case MilterConstants.SMFIC_QUIT_NC:
+				nextConversation();
+				break;
+
 			case MilterConstants.SMFIC_QUIT:
-				LOG.debug("SMFIC_QUIT");
 				returnCode = false;
 				break;
 
 			case MilterConstants.SMFIC_BODY:
-				LOG.debug("SMFIC_BODY");
 				processBodyPacket();
 				break;
 
 			case MilterConstants.SMFIC_UNKNOWN:
-				LOG.debug("SMFIC_UNKNOWN");
 				processUnknownPacket();
 				break;
 
 			case MilterConstants.SMFIC_ABORT:
-				LOG.debug("SMFIC_ABORT");
-				processAbortPacket();
+				abort();
 				break;
 			case MilterConstants.SMFIC_DATA:
 				// don't proccess should be skipped
-				processDataPacket();
+				data();
 				break;
 			default:
-				LOG.error("Unhandled case [" + packet.getCommand() + "]", new Exception());
+				LOG.error("Unhandled case [" + command + "]", new Exception());
 				MilterServerPacketUtil.sendPacket(writeChannel, MilterConstants.SMFIR_CONTINUE, (byte[]) null);
 				break;
 		}
+		end(length);
 
 		return returnCode;
 	}
 
+	/**
+	 * Starts processing a command.
+	 *
+	 * @param command the command.
+	 * @param length the length of its data.
+	 * <p>
+	 * @return <code>false</code> if the conversation cannot go on and the connection has to be closed.
+	 */
+	boolean begin(final int command, final int length) {
+		this.command = command;
+		failed = false;
+		packetStarted = audit == null ? 0 : System.nanoTime();
+
+		if (trace != null) {
+			trace.record(ConversationTrace.RECEIVED, command, length);
+		}
+		return !renegotiate || command == MilterConstants.SMFIC_OPTNEG || command == MilterConstants.SMFIC_QUIT
+				|| renegotiateHandler();
+	}
+
+	/**
+	 * Finishes processing the command passed to {@link #begin(int, int)}.
+	 *
+	 * @param length the length of its data.
+	 */
+	void end(final int length) {
+		if (audit != null) {
+			audit.processed(command, length, System.nanoTime() - packetStarted);
+		}
+	}
+
 	private boolean processOptnegPacket() throws IOException {
 		ByteBuffer data = packet.getData();
 		if (data.remaining() < 12) {
+			renegotiate = false;
 			LOG.error("Options negotiation comes without version data and flags", new Exception());
 			// minimum number of byte data in negotiation header as MILTER_OPTLEN in mfdef.h
-			processAbortPacket();
+			abort();
 			sendReplyPacket(IMilterStatus.SMFIS_TEMPFAIL);
 			return false;
 		}
-		int mtaProtVersion = data.getInt();
+		return negotiate(data.getInt(), data.getInt(), data.getInt());
+	}
+
+	/**
+	 * Negotiates the options of the connection with the handler.
+	 *
+	 * @param mtaProtVersion the protocol version of the MTA.
+	 * @param mtaActions the actions the MTA supports.
+	 * @param mtaProtocol the protocol flags the MTA supports.
+	 * <p>
+	 * @return <code>false</code> if the handler cannot work with the MTA, after replying with a temporary failure.
+	 * <p>
+	 * @throws IOException on connection problems.
+	 */
+	boolean negotiate(int mtaProtVersion, final int mtaActions, final int mtaProtocol) throws IOException {
+		renegotiate = false;
 		if (mtaProtVersion == 0) {
 			mtaProtVersion = 2;
 		}
+		mtaVersion = mtaProtVersion;
 		// MTA action flags
-		mtaAflags = data.getInt();
+		mtaAflags = mtaActions;
 		if (mtaAflags == 0) {
 			mtaAflags = MilterConstants.SMFI_V1_ACTS;
 		}
 
 		// MTA protocol flags
-		mtaPflags = data.getInt();
+		mtaPflags = mtaProtocol;
 		if (mtaPflags == 0) {
 			mtaPflags = MilterConstants.SMFI_V1_PROT;
 		}
-		int fakePflags = MilterConstants.SMFIP_NR_CONN
-				| MilterConstants.SMFIP_NR_HELO
-				| MilterConstants.SMFIP_NR_MAIL
-				| MilterConstants.SMFIP_NR_RCPT
-				| MilterConstants.SMFIP_NR_DATA
-				| MilterConstants.SMFIP_NR_UNKN
-				| MilterConstants.SMFIP_NR_HDR
-				| MilterConstants.SMFIP_NR_EOH
-				| MilterConstants.SMFIP_NR_BODY;
-
-		int fversion = handler.negotiateVersion(mtaProtVersion, mtaAflags, mtaPflags | fakePflags);
+
+		int fversion = handler.negotiateVersion(mtaProtVersion, mtaAflags, mtaPflags | FAKE_PFLAGS);
 		final int factions = handler.getActionFlags();
-		final int fprotocol = handler.getProtocolFlags();
+		final int fprotocol = filterProtocolFlags();
 
 		if (fversion < 2) {
 			// Why would you use version lower than 2 in this decade?
 			LOG.error("Filter reported version under 2", new Exception());
-			processAbortPacket();
+			abort();
 			sendReplyPacket(IMilterStatus.SMFIS_TEMPFAIL);
 			return false;
 		}
@@ -214,7 +341,7 @@ public class MilterProcessor {
 		if ((factions & mtaAflags) != factions) {
 			LOG.error("Filter actions flags not supported",
 					new Exception(String.format("MTA %08X FILTER %08X\n", mtaAflags, factions)));
-			processAbortPacket();
+			abort();
 			sendReplyPacket(IMilterStatus.SMFIS_TEMPFAIL);
 			return false;
 		}
@@ -222,15 +349,21 @@ public class MilterProcessor {
 		if ((fprotocol & mtaPflags) != fprotocol) {
 			LOG.error("Filter protocol flags not supported",
 					new Exception(String.format("MTA %08X FILTER %08X", mtaPflags, fprotocol)));
-			processAbortPacket();
+			abort();
 			sendReplyPacket(IMilterStatus.SMFIS_TEMPFAIL);
 			return false;
 		}
 		if (fversion > mtaProtVersion) {
 			fversion = mtaProtVersion;
 		}
-		LOG.debug("Supported flags " + Integer.toHexString(factions)
-				+ " maps to SMFIP_ flags " + Integer.toHexString(fprotocol));
+		headerNoReply = isBitSet(MilterConstants.SMFIP_NR_HDR, fprotocol);
+		negotiated = true;
+		negotiatedActions = factions;
+		negotiatedProtocol = fprotocol;
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("[{}] Supported flags {} maps to SMFIP_ flags {}", connectionId, Integer.toHexString(factions),
+					Integer.toHexString(fprotocol));
+		}
 		ByteBuffer bout = ByteBuffer.allocate(12);
 		bout.putInt(fversion);
 		bout.putInt(factions);
@@ -240,22 +373,119 @@ public class MilterProcessor {
 		Map<Integer, Set<String>> wantMacros = handler.getMacros();
 		// TODO: tell the MTA which macros we want.
 
-		MilterServerPacketUtil.sendPacket(writeChannel, MilterConstants.SMFIC_OPTNEG, bout);
+		if (embedder == null) {
+			MilterServerPacketUtil.sendPacket(writeChannel, MilterConstants.SMFIC_OPTNEG, bout);
+		}
+		traceReply(MilterConstants.SMFIC_OPTNEG);
+		return true;
+	}
+
+	private int filterProtocolFlags() {
+		int fprotocol = handler.getProtocolFlags();
+		if (headerBlock != null) {
+			// headers are collected by the runner, so there is no need to make the MTA wait for a reply to each one
+			fprotocol |= mtaPflags & MilterConstants.SMFIP_NR_HDR;
+		}
+		return fprotocol;
+	}
+
+	/**
+	 * Lets the handler of a conversation that followed {@link MilterConstants#SMFIC_QUIT_NC} without options
+	 * negotiation see the options of the connection.
+	 *
+	 * @return <code>false</code> if the handler asks for other options than were negotiated, and the connection has
+	 * to be closed.
+	 */
+	private boolean renegotiateHandler() {
+		renegotiate = false;
+		handler.negotiateVersion(mtaVersion, mtaAflags, mtaPflags | FAKE_PFLAGS);
+		final int factions = handler.getActionFlags();
+		final int fprotocol = filterProtocolFlags();
+		if (factions != negotiatedActions || fprotocol != negotiatedProtocol) {
+			LOG.error("[{}] Filter flags differ from those negotiated for the connection: actions {} protocol {}"
+					+ " instead of {} {}", connectionId, Integer.toHexString(factions), Integer.toHexString(fprotocol),
+					Integer.toHexString(negotiatedActions), Integer.toHexString(negotiatedProtocol));
+			return false;
+		}
 		return true;
 	}
 
+	/**
+	 * Ends the conversation on {@link MilterConstants#SMFIC_QUIT_NC}, keeping the connection for the next one: the
+	 * handler is released and a fresh one obtained, and everything learned from the MTA during the conversation is
+	 * forgotten. The MTA may negotiate options again; if it does not, the new handler is given the options of the
+	 * connection before its first callback.
+	 */
+	void nextConversation() {
+		final MilterTracer tracer = context.getTracer();
+		if (trace != null) {
+			tracer.finish(trace, clientAddress);
+			trace = null;
+		}
+		if (audit != null) {
+			audit.end(MilterConstants.SMFIC_QUIT_NC);
+			audit.connected(null);
+		}
+		context.releaseHandler(handler);
+		handler = context.newHandler();
+		headerBlock = handler instanceof IMilterHeaderBlockHandler ? new HeaderBlock() : null;
+		lastProperties = null;
+		clientAddress = null;
+		connectPriority = PriorityPolicy.UNCLASSIFIED;
+		if (actions.getJournal() != null) {
+			actions.getJournal().clear();
+		}
+		if (digest != null) {
+			digest.reset();
+		}
+		if (memory != null) {
+			memory.clear();
+		}
+		actions.reopen(writeChannel);
+		renegotiate = negotiated;
+		if (tracer != null) {
+			trace = tracer.start(connectionId);
+		}
+	}
+
 	private void processBodyPacket() throws IOException {
+		body(packet.getData());
+	}
+
+	void body(final ByteBuffer chunk) throws IOException {
 		final int consumes = handler.getProtocolFlags();
 		boolean returnCode = !isBitSet(MilterConstants.SMFIP_NR_BODY, consumes);
 		boolean simulateNoReturn = !isBitSet(MilterConstants.SMFIP_NR_BODY, mtaPflags);
+		final MemoryGovernor governor = context.getMemoryGovernor();
+		if (governor != null && !governor.admitBody()) {
+			LOG.info("[{}] Memory is short, refusing the rest of the body", connectionId);
+			if (trace != null) {
+				trace.record(ConversationTrace.SHED, command, 0);
+			}
+			if (audit != null) {
+				audit.flag(AuditRecord.SHED);
+			}
+			// the MTA sends no more of the body, nor the end of the message
+			sendReplyPacket(IMilterStatus.SMFIS_TEMPFAIL);
+			return;
+		}
+		if (memory != null) {
+			memory.add(chunk.remaining());
+		}
+		if (digest != null) {
+			digest.update(chunk);
+		}
 
 		IMilterStatus result;
 		try {
-			result = handler.body(packet.getData());
+			result = handler.body(chunk);
 		}
 		catch (Throwable t) {
-			LOG.error("Handler threw an unhandled exception", t);
-			result = IMilterStatus.SMFIS_TEMPFAIL;
+			result = handlerFailed(t);
+		}
+		if (digest != null && result != null && result.getCode() == MilterConstants.SMFIR_SKIP) {
+			// the MTA sends no more of the body
+			digest.incomplete();
 		}
 		if (returnCode || result != null && result != IMilterStatus.SMFIS_CONTINUE && result != IMilterStatus.SMFIS_NOREPLY) {
 			sendReplyPacket(result);
@@ -265,7 +495,7 @@ public class MilterProcessor {
 		}
 	}
 
-	private void processDataPacket() throws IOException {
+	void data() throws IOException {
 		final int consumes = handler.getProtocolFlags();
 		boolean returnCode = !isBitSet(MilterConstants.SMFIP_NR_DATA, consumes);
 		boolean simulateNoReturn = !isBitSet(MilterConstants.SMFIP_NR_DATA, mtaPflags);
@@ -275,8 +505,7 @@ public class MilterProcessor {
 			result = handler.data(lastProperties);
 		}
 		catch (Throwable t) {
-			LOG.error("Handler threw an unhandled exception", t);
-			result = IMilterStatus.SMFIS_TEMPFAIL;
+			result = handlerFailed(t);
 		}
 		if (returnCode || result != null && result != IMilterStatus.SMFIS_CONTINUE && result != IMilterStatus.SMFIS_NOREPLY) {
 			sendReplyPacket(result);
@@ -286,18 +515,30 @@ public class MilterProcessor {
 		}
 	}
 
-	private void processEOHPacket() throws IOException {
+	void eoh() throws IOException {
+		if (actions.getJournal() != null && !isBitSet(MilterConstants.SMFIP_NOHDRS, negotiatedProtocol)) {
+			// without the headers there are no counts, and indexes past them cannot be told apart
+			actions.getJournal().endOfHeaders();
+		}
 		final int consumes = handler.getProtocolFlags();
 		boolean returnCode = !isBitSet(MilterConstants.SMFIP_NR_EOH, consumes);
 		boolean simulateNoReturn = !isBitSet(MilterConstants.SMFIP_NR_EOH, mtaPflags);
 
 		IMilterStatus result;
 		try {
-			result = handler.eoh(actions, lastProperties);
+			if (headerBlock != null) {
+				result = ((IMilterHeaderBlockHandler) handler).eoh(headerBlock, actions, lastProperties);
+			}
+			else {
+				result = handler.eoh(actions, lastProperties);
+			}
 		}
 		catch (Throwable t) {
-			LOG.error("Handler threw an unhandled exception", t);
-			result = IMilterStatus.SMFIS_TEMPFAIL;
+			result = handlerFailed(t);
+		}
+		if (headerBlock != null && isFallback()) {
+			// an abandoned callback may still be reading the block: leave it to that callback, not cleared or reused
+			headerBlock = new HeaderBlock();
 		}
 		if (returnCode || result != null && result != IMilterStatus.SMFIS_CONTINUE && result != IMilterStatus.SMFIS_NOREPLY) {
 			sendReplyPacket(result);
@@ -308,19 +549,22 @@ public class MilterProcessor {
 	}
 
 	private void processUnknownPacket() throws IOException {
+		final ByteBuffer dataBuffer = packet.getData();
+		byte[] data = dataBuffer.array();
+		unknown(Arrays.copyOf(data, data.length));
+	}
+
+	void unknown(final byte[] data) throws IOException {
 		final int consumes = handler.getProtocolFlags();
 		boolean returnCode = !isBitSet(MilterConstants.SMFIP_NR_UNKN, consumes);
 		boolean simulateNoReturn = !isBitSet(MilterConstants.SMFIP_NR_UNKN, mtaPflags);
-		final ByteBuffer dataBuffer = packet.getData();
-		byte[] data = dataBuffer.array();
 
 		IMilterStatus result;
 		try {
-			result = handler.unknown(Arrays.copyOf(data, data.length), lastProperties);
+			result = handler.unknown(data, lastProperties);
 		}
 		catch (Throwable t) {
-			LOG.error("Handler threw an unhandled exception", t);
-			result = IMilterStatus.SMFIS_TEMPFAIL;
+			result = handlerFailed(t);
 		}
 		if (returnCode || result != null && result != IMilterStatus.SMFIS_CONTINUE && result != IMilterStatus.SMFIS_NOREPLY) {
 			sendReplyPacket(result);
@@ -331,9 +575,15 @@ public class MilterProcessor {
 	}
 
 	private void processHeaderPacket() throws IOException {
-		final int consumes = handler.getProtocolFlags();
-		boolean returnCode = !isBitSet(MilterConstants.SMFIP_NR_HDR, consumes);
-		boolean simulateNoReturn = !isBitSet(MilterConstants.SMFIP_NR_HDR, mtaPflags);
+		if (headerBlock != null) {
+			if (memory != null) {
+				memory.add(packet.getData().remaining());
+			}
+			headerBlock.append(packet.getData());
+			headerCollected();
+			return;
+		}
+
 		byte[] name;
 		byte[] value;
 		final ByteBuffer dataBuffer = packet.getData();
@@ -341,14 +591,42 @@ public class MilterProcessor {
 		name = MilterServerPacketUtil.getZeroTerminatedStringBytes(dataBuffer);
 
 		value = MilterServerPacketUtil.getZeroTerminatedStringBytes(dataBuffer);
+		header(name, value);
+	}
+
+	private void headerCollected() throws IOException {
+		if (actions.getJournal() != null) {
+			actions.getJournal().countHeader(headerBlock.getName(headerBlock.size() - 1));
+		}
+		if (!headerNoReply) {
+			sendReplyPacket(IMilterStatus.SMFIS_CONTINUE);
+		}
+	}
+
+	void header(final byte[] name, final byte[] value) throws IOException {
+		if (memory != null) {
+			memory.add(name.length + value.length + 2);
+		}
+		if (headerBlock != null) {
+			headerBlock.append(name, value);
+			headerCollected();
+			return;
+		}
+
+		final ActionJournal journal = actions.getJournal();
+		final int consumes = handler.getProtocolFlags();
+		boolean returnCode = !isBitSet(MilterConstants.SMFIP_NR_HDR, consumes);
+		boolean simulateNoReturn = !isBitSet(MilterConstants.SMFIP_NR_HDR, mtaPflags);
+		if (journal != null) {
+			journal.countHeader(new String(name, MilterServerPacketUtil.ISO8859));
+		}
 
 		IMilterStatus result;
 		try {
 			result = handler.header(name, value);
 		}
 		catch (Throwable t) {
-			LOG.error("Handler threw an unhandled exception", t);
-			result = IMilterStatus.SMFIS_TEMPFAIL;
+			result = handlerFailed(t);
 		}
 		if (returnCode || result != null && result != IMilterStatus.SMFIS_CONTINUE && result != IMilterStatus.SMFIS_NOREPLY) {
 			sendReplyPacket(result);
@@ -358,38 +636,76 @@ public class MilterProcessor {
 		}
 	}
 
-	private void processBodyEOBPacket() throws IOException {
-
-		IMilterStatus result;
-		try {
-			result = handler.eom(actions, lastProperties);
+	void eom() throws IOException {
+		final BodyDigests digests = context.getBodyDigests();
+		final String bodyDigest = digest == null || isBitSet(MilterConstants.SMFIP_NOBODY, negotiatedProtocol) ? null
+				: digest.finish();
+		final boolean cacheable = bodyDigest != null && digest.isCacheable();
+		Properties properties = lastProperties;
+		IMilterStatus result = null;
+		if (bodyDigest != null) {
+			properties = new Properties();
+			if (lastProperties != null) {
+				properties.putAll(lastProperties);
+			}
+			properties.setProperty(BodyDigests.MACRO, bodyDigest);
 		}
-		catch (Throwable t) {
-			LOG.error("Handler threw an unhandled exception", t);
-			result = IMilterStatus.SMFIS_TEMPFAIL;
+		if (cacheable) {
+			result = digests.lookup(bodyDigest);
+		}
+		if (result != null) {
+			LOG.debug("[{}] Replying with the cached verdict for body {}", connectionId, bodyDigest);
+			if (trace != null) {
+				trace.record(ConversationTrace.CACHED, command, 0);
+			}
+			if (audit != null) {
+				audit.flag(AuditRecord.CACHED);
+			}
+			// the handler does not see the end of the message, so it is told it ended here
+			handler.abort();
+		}
+		else {
+			try {
+				result = handler.eom(actions, properties);
+			}
+			catch (Throwable t) {
+				result = handlerFailed(t);
+			}
+			if (cacheable && isHandlerVerdict()) {
+				digests.record(bodyDigest, result, actions.modified);
+			}
+		}
+		if (actions.getJournal() != null) {
+			// the held back changes and the reply go out in one write
+			actions.sendWithReply(result);
+			traceReply(result.getCode());
+		}
+		else {
+			sendReplyPacket(result);
 		}
-		sendReplyPacket(result);
 		actions.finish(null);
+		clearHeaderBlock();
+		if (memory != null) {
+			memory.clear();
+		}
 	}
 
 	private void processRcptPacket() throws IOException {
+		// char args[][]
+		envrcpt(MilterServerPacketUtil.getZeroTerminatedStringBytesArray(packet.getData()));
+	}
+
+	void envrcpt(final byte[][] argv) throws IOException {
 		final int consumes = handler.getProtocolFlags();
 		boolean returnCode = !isBitSet(MilterConstants.SMFIP_NR_RCPT, consumes);
 		boolean simulateNoReturn = !isBitSet(MilterConstants.SMFIP_NR_RCPT, mtaPflags);
-		byte[][] argv;
-		final ByteBuffer dataBuffer = packet.getData();
-
-		// char args[][]
-		argv = MilterServerPacketUtil.getZeroTerminatedStringBytesArray(dataBuffer);
-		LOG.debug("Recipient is \"" + new String(argv[0], MilterServerPacketUtil.ISO8859) + "\"");
 
 		IMilterStatus result;
 		try {
 			result = handler.envrcpt(argv, lastProperties);
 		}
 		catch (Throwable t) {
-			LOG.error("Handler threw an unhandled exception", t);
-			result = IMilterStatus.SMFIS_TEMPFAIL;
+			result = handlerFailed(t);
 		}
 		if (returnCode || result != null && result != IMilterStatus.SMFIS_CONTINUE && result != IMilterStatus.SMFIS_NOREPLY) {
 			sendReplyPacket(result);
@@ -400,23 +716,72 @@ public class MilterProcessor {
 	}
 
 	private void processMailPacket() throws IOException {
+		// char args[][]
+		envfrom(MilterServerPacketUtil.getZeroTerminatedStringBytesArray(packet.getData()));
+	}
+
+	void envfrom(final byte[][] argv) throws IOException {
+		// finished at the end of the previous message
+		actions.reopen(writeChannel);
+		if (digest != null) {
+			digest.reset();
+		}
+		if (memory != null) {
+			memory.clear();
+		}
 		final int consumes = handler.getProtocolFlags();
 		boolean returnCode = !isBitSet(MilterConstants.SMFIP_NR_MAIL, consumes);
 		boolean simulateNoReturn = !isBitSet(MilterConstants.SMFIP_NR_MAIL, mtaPflags);
-		byte[][] argv;
-		final ByteBuffer dataBuffer = packet.getData();
+		final String sender = new String(argv[0], MilterServerPacketUtil.ISO8859);
+		if (audit != null) {
+			audit.begin(connectionId, sender, packetStarted);
+		}
+		final PriorityPolicy policy = context.getPriorityPolicy();
+		if (policy != null) {
+			// macros like {auth_authen} come with the sender
+			prioritize(Math.min(connectPriority, policy.classify(context.getListener(), null, lastProperties)));
+		}
 
-		// char args[][]
-		argv = MilterServerPacketUtil.getZeroTerminatedStringBytesArray(dataBuffer);
-		LOG.debug("Sender is \"" + new String(argv[0], MilterServerPacketUtil.ISO8859) + "\"");
+		final ConnectionRateLimiter limiter = context.getRateLimiter();
+		if (limiter != null && limiter.getKey() != ConnectionRateLimiter.Key.CLIENT_ADDRESS) {
+			final String limited = limiter.getKey() == ConnectionRateLimiter.Key.SENDER ? sender
+					: (lastProperties == null ? null : lastProperties.getProperty("{auth_authen}"));
+			if (limited != null && !limiter.tryAcquire(limited)) {
+				LOG.info("[{}] Rate limit exceeded by {}", connectionId, limited);
+				if (trace != null) {
+					trace.record(ConversationTrace.LIMITED, command, 0);
+				}
+				if (audit != null) {
+					audit.flag(AuditRecord.LIMITED);
+				}
+				sendReplyPacket(limiter.getOverLimitStatus());
+				return;
+			}
+		}
+
+		final VerdictCache verdicts = context.getVerdictCache();
+		final String verdictKey = verdicts == null ? null : verdicts.keyOf(clientAddress, sender);
+		IMilterStatus result = verdictKey == null ? null : verdicts.lookup(verdictKey);
+		if (result != null) {
+			LOG.debug("[{}] Replying with the cached verdict for {}", connectionId, verdictKey);
+			if (trace != null) {
+				trace.record(ConversationTrace.CACHED, command, 0);
+			}
+			if (audit != null) {
+				audit.flag(AuditRecord.CACHED);
+			}
+			sendReplyPacket(result);
+			return;
+		}
 
-		IMilterStatus result;
 		try {
 			result = handler.envfrom(argv, lastProperties);
 		}
 		catch (Throwable t) {
-			LOG.error("Handler threw an unhandled exception", t);
-			result = IMilterStatus.SMFIS_TEMPFAIL;
+			result = handlerFailed(t);
+		}
+		if (verdictKey != null && isHandlerVerdict()) {
+			verdicts.record(verdictKey, result);
 		}
 		if (returnCode || result != null && result != IMilterStatus.SMFIS_CONTINUE && result != IMilterStatus.SMFIS_NOREPLY) {
 			sendReplyPacket(result);
@@ -427,23 +792,23 @@ public class MilterProcessor {
 	}
 
 	private void processHeloPacket() throws IOException {
-		final int consumes = handler.getProtocolFlags();
-		boolean returnCode = !isBitSet(MilterConstants.SMFIP_NR_HELO, consumes);
-		boolean simulateNoReturn = !isBitSet(MilterConstants.SMFIP_NR_HELO, mtaPflags);
-		String helohost;
 		final ByteBuffer dataBuffer = packet.getData();
 
 		// char helo[]
-		helohost = new String(MilterServerPacketUtil.getZeroTerminatedStringBytes(dataBuffer), MilterServerPacketUtil.ISO8859);
-		LOG.debug("Client identifier parsed as \"" + helohost + "\"");
+		helo(new String(MilterServerPacketUtil.getZeroTerminatedStringBytes(dataBuffer), MilterServerPacketUtil.ISO8859));
+	}
+
+	void helo(final String helohost) throws IOException {
+		final int consumes = handler.getProtocolFlags();
+		boolean returnCode = !isBitSet(MilterConstants.SMFIP_NR_HELO, consumes);
+		boolean simulateNoReturn = !isBitSet(MilterConstants.SMFIP_NR_HELO, mtaPflags);
 
 		IMilterStatus result;
 		try {
 			result = handler.helo(helohost, lastProperties);
 		}
 		catch (Throwable t) {
-			LOG.error("Handler threw an unhandled exception", t);
-			result = IMilterStatus.SMFIS_TEMPFAIL;
+			result = handlerFailed(t);
 		}
 		if (returnCode || result != null && result != IMilterStatus.SMFIS_CONTINUE && result != IMilterStatus.SMFIS_NOREPLY) {
 			sendReplyPacket(result);
@@ -462,23 +827,27 @@ public class MilterProcessor {
 
 		// char nameval[][]
 		propertiesStrings = MilterServerPacketUtil.getZeroTerminatedStringBytesArray(dataBuffer);
-		lastProperties = new Properties();
+		final Properties properties = new Properties();
 
 		for (int counter = 0; counter < propertiesStrings.length; counter += 2) {
 			// presume UTF-8 for macros. It should be correct more often than not.
 			String name = new String(propertiesStrings[counter], MilterServerPacketUtil.UTF8);
 			String value = new String(propertiesStrings[counter + 1], MilterServerPacketUtil.UTF8);
-			LOG.debug("Setting property " + name + " = " + value);
-			lastProperties.setProperty(name, value);
+			properties.setProperty(name, value);
 		}
+		macros(properties);
+	}
+
+	/**
+	 * @param properties the macros passed to the callbacks that follow, in place of the previous ones.
+	 */
+	void macros(final Properties properties) {
+		lastProperties = properties;
 
 		// No reply at all...
 	}
 
 	private void processConnectPacket() throws IOException {
-		final int consumes = handler.getProtocolFlags();
-		boolean returnCode = !isBitSet(MilterConstants.SMFIP_NR_CONN, consumes);
-		boolean simulateNoReturn = !isBitSet(MilterConstants.SMFIP_NR_CONN, mtaPflags);
 		InetAddress address = null;
 		final ByteBuffer dataBuffer = packet.getData();
 		String hostname;
@@ -487,24 +856,77 @@ public class MilterProcessor {
 		hostname = new String(MilterServerPacketUtil.getZeroTerminatedStringBytes(dataBuffer), MilterServerPacketUtil.ISO8859);
 
 		// char family
-		if (dataBuffer.get() == MilterConstants.SMFIA_INET) {
+		final byte family = dataBuffer.hasRemaining() ? dataBuffer.get() : MilterConstants.SMFIA_UNKNOWN;
+		if (family == MilterConstants.SMFIA_INET || family == MilterConstants.SMFIA_INET6) {
 			// uint16 port
 
 			dataBuffer.getShort();
 
 			// char address[]
 			String stringAddress = new String(MilterServerPacketUtil.getZeroTerminatedStringBytes(dataBuffer), MilterServerPacketUtil.ISO8859);
-			LOG.debug("Parsed IP address is " + stringAddress);
-			address = InetAddress.getByName(stringAddress);
+			// handlers that need names use the shared resolver, the connect stage itself never does a lookup
+			address = MilterServerPacketUtil.parseAddressLiteral(hostname, stringAddress);
+			if (address == null) {
+				LOG.warn("[{}] MTA sent an invalid client address: {}", connectionId, stringAddress);
+			}
+		}
+		connect(hostname, address);
+	}
+
+	void connect(final String hostname, final InetAddress address) throws IOException {
+		final int consumes = handler.getProtocolFlags();
+		boolean returnCode = !isBitSet(MilterConstants.SMFIP_NR_CONN, consumes);
+		boolean simulateNoReturn = !isBitSet(MilterConstants.SMFIP_NR_CONN, mtaPflags);
+		clientAddress = address == null ? null : address.getHostAddress();
+		if (audit != null) {
+			audit.connected(address);
+		}
+		final PriorityPolicy policy = context.getPriorityPolicy();
+		if (policy != null) {
+			connectPriority = policy.classify(context.getListener(), address, lastProperties);
+			prioritize(connectPriority);
+		}
+
+		final ConnectionRateLimiter limiter = context.getRateLimiter();
+		if (limiter != null && limiter.getKey() == ConnectionRateLimiter.Key.CLIENT_ADDRESS && clientAddress != null
+				&& !limiter.tryAcquire(clientAddress)) {
+			LOG.info("[{}] Rate limit exceeded by {}", connectionId, clientAddress);
+			if (trace != null) {
+				trace.record(ConversationTrace.LIMITED, command, 0);
+			}
+			sendReplyPacket(limiter.getOverLimitStatus());
+			return;
+		}
+		final MemoryGovernor governor = context.getMemoryGovernor();
+		if (governor != null && !governor.admitConnection()) {
+			LOG.info("[{}] Memory is short, refusing {}", connectionId, clientAddress);
+			if (trace != null) {
+				trace.record(ConversationTrace.SHED, command, 0);
+			}
+			sendReplyPacket(IMilterStatus.SMFIS_TEMPFAIL);
+			return;
+		}
+
+		final VerdictCache verdicts = context.getVerdictCache();
+		final String verdictKey = verdicts == null ? null : verdicts.keyOf(clientAddress, null);
+		IMilterStatus result = verdictKey == null ? null : verdicts.lookup(verdictKey);
+		if (result != null) {
+			LOG.debug("[{}] Replying with the cached verdict for {}", connectionId, verdictKey);
+			if (trace != null) {
+				trace.record(ConversationTrace.CACHED, command, 0);
+			}
+			sendReplyPacket(result);
+			return;
 		}
 
-		IMilterStatus result;
 		try {
 			result = handler.connect(hostname, address, lastProperties);
 		}
 		catch (Throwable t) {
-			LOG.error("Handler threw an unhandled exception", t);
-			result = IMilterStatus.SMFIS_TEMPFAIL;
+			result = handlerFailed(t);
+		}
+		if (verdictKey != null && isHandlerVerdict()) {
+			verdicts.record(verdictKey, result);
 		}
 		if (returnCode || result != null && result != IMilterStatus.SMFIS_CONTINUE && result != IMilterStatus.SMFIS_NOREPLY) {
 			sendReplyPacket(result);
@@ -515,13 +937,80 @@ public class MilterProcessor {
 	}
 
 	private void sendReplyPacket(final IMilterStatus status) throws IOException {
+		if (embedder != null) {
+			embedder.replied(status);
+			traceReply(status.getCode());
+			return;
+		}
 		int statusCode = status.getCode();
 		ByteBuffer message = status.getMessage();
 		MilterServerPacketUtil.sendPacket(writeChannel, statusCode, message);
+		traceReply(statusCode);
 	}
 
-	private void processAbortPacket() throws IOException {
+	private void traceReply(final int statusCode) {
+		if (trace != null) {
+			trace.record(ConversationTrace.REPLIED, statusCode, 0);
+		}
+		if (audit != null) {
+			audit.replied(command, statusCode);
+		}
+	}
+
+	/**
+	 * Runs the callbacks of the conversation that are handed to a stage with a priority.
+	 */
+	private void prioritize(final int priority) {
+		if (handler instanceof GuardedMilterHandler) {
+			((GuardedMilterHandler) handler).setPriority(priority);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the last callback was answered by the {@link CallbackGuard} rather than the handler.
+	 */
+	private boolean isFallback() {
+		return handler instanceof GuardedMilterHandler && ((GuardedMilterHandler) handler).isFallback();
+	}
+
+	/**
+	 * @return <code>true</code> if the reply to the last callback is what the handler returned, rather than a fallback
+	 * or the temporary failure of a handler that threw, and so may be cached.
+	 */
+	private boolean isHandlerVerdict() {
+		return !failed && !isFallback();
+	}
+
+	private IMilterStatus handlerFailed(final Throwable t) {
+		failed = true;
+		LOG.error("[" + connectionId + "] Handler threw an unhandled exception", t);
+		if (trace != null) {
+			trace.record(ConversationTrace.FAILED, command, 0);
+		}
+		if (audit != null) {
+			audit.flag(AuditRecord.FAILED);
+		}
+		return IMilterStatus.SMFIS_TEMPFAIL;
+	}
+
+	private void clearHeaderBlock() {
+		if (headerBlock != null) {
+			headerBlock.clear();
+		}
+	}
+
+	void abort() {
 		handler.abort();
+		clearHeaderBlock();
+		if (memory != null) {
+			memory.clear();
+		}
+		if (digest != null) {
+			digest.reset();
+		}
+		if (actions.getJournal() != null) {
+			actions.getJournal().clear();
+		}
 
 		// No reply at all...
 	}
@@ -531,8 +1020,20 @@ public class MilterProcessor {
 	 * completed.
 	 */
 	public void close() {
+		if (trace != null) {
+			context.getTracer().finish(trace, clientAddress);
+			trace = null;
+		}
+		if (audit != null) {
+			audit.end(MilterConstants.SMFIC_QUIT);
+		}
 		packet.reset();
-		handler.close();
+		context.releaseHandler(handler);
 		lastProperties = null;
+		clientAddress = null;
+		clearHeaderBlock();
+		if (memory != null) {
+			memory.close();
+		}
 	}
 }
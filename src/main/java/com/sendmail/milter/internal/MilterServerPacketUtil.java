@@ -5,11 +5,14 @@ package com.sendmail.milter.internal;
 
 import com.sendmail.milter.MilterConstants;
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.OutputStream;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -21,6 +24,11 @@ public final class MilterServerPacketUtil {
 
 	private static final Logger LOG = LoggerFactory.getLogger(MilterServerPacketUtil.class);
 
+	/**
+	 * The largest body chunk an MTA accepts in one packet, MILTER_CHUNK_SIZE in libmilter.
+	 */
+	public static final int MAX_BODY_CHUNK = 65535;
+
 	private MilterServerPacketUtil() {
 	}
 
@@ -35,14 +43,11 @@ public final class MilterServerPacketUtil {
 
 		totalDataLength = (dataBuffer.remaining() + 1);
 
-		LOG.debug("Sending packet");
 		headerBuffer.putInt(totalDataLength);
 		headerBuffer.put((byte) command);
 		headerBuffer.flip();
 		writeChannel.write(headerBuffer);
 		writeChannel.write(dataBuffer);
-
-		LOG.debug("Done sending packet");
 	}
 
 	public static void sendPacket(WritableByteChannel writeChannel, int command, byte[] data)
@@ -60,14 +65,11 @@ public final class MilterServerPacketUtil {
 
 		totalDataLength = (dataBuffer.remaining() + 1);
 
-		LOG.debug("Sending packet");
 		headerBuffer.putInt(totalDataLength);
 		headerBuffer.put((byte) command);
 		headerBuffer.flip();
 		writeChannel.write(headerBuffer);
 		writeChannel.write(dataBuffer);
-
-		LOG.debug("Done sending packet");
 	}
 
 	public static Charset ISO8859 = Charset.forName("ISO-8859-1");
@@ -81,18 +83,11 @@ public final class MilterServerPacketUtil {
 		dataBuffer.write(0);
 	}
 
-	private static final byte[] HEXMAP = {
-		'0', '1', '2', '3', '4', '5', '6', '7',
-		'8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
-	};
-
 	private static final byte[] CRLF = {13, 10};
 
 	public static void writeZeroTerminatedQuotedPrintable(OutputStream dataBuffer, String string)
 			throws IOException {
 		byte[] unicodebuf = string.getBytes(UTF8);
-		byte high;
-		byte low;
 		byte b;
 		boolean safeForNewLine = true;
 		boolean addNewLine = false;
@@ -103,21 +98,18 @@ public final class MilterServerPacketUtil {
 				dataBuffer.write(CRLF, 0, 2);
 				addNewLine = false;
 			}
-			if (i % 900 == 0) {
+			if (i > 0 && i % 900 == 0) {
 				addNewLine = true;
 			}
 			b = unicodebuf[i];
-			if (b > 32 && b < 128 && b != '=' && b != '(' && b != ')' && b != '<' && b != '>' && b != '@' && b != ','
-					&& b != ';' && b != ':' && b != '\\' && b != '"' && b != '/' && b != '[' && b != ']' && b != '?') {
+			if (MilterPacketEncoder.isSafe(b)) {
 				dataBuffer.write(b);
 				safeForNewLine = true;
 			}
 			else {
 				dataBuffer.write('=');
-				high = (byte) ((b & (byte) 0xF0) >>> 4);
-				low = (byte) (b & (byte) 0x0F);
-				dataBuffer.write(HEXMAP[high]);
-				dataBuffer.write(HEXMAP[low]);
+				dataBuffer.write(MilterPacketEncoder.hexHigh(b));
+				dataBuffer.write(MilterPacketEncoder.hexLow(b));
 				if ((b & 0x80) != 0) {
 					safeForNewLine = false;
 				}
@@ -128,68 +120,132 @@ public final class MilterServerPacketUtil {
 
 	public static void sendAddRcptPacket(WritableByteChannel writeChannel, String recipient)
 			throws IOException {
-		ByteArrayOutputStream dataBuffer = new ByteArrayOutputStream((recipient == null ? 1 : recipient.length()) * 4);
-
-		// char rcpt[]      New recipient, NUL terminated
-		writeZeroTerminatedString(dataBuffer, recipient);
-
-		sendPacket(writeChannel, MilterConstants.SMFIR_ADDRCPT, dataBuffer.toByteArray());
+		MilterPacketEncoder encoder = new MilterPacketEncoder();
+		encoder.addRecipient(recipient);
+		encoder.flush(writeChannel);
 	}
 
 	public static void sendDelRcptPacket(WritableByteChannel writeChannel, String recipient)
 			throws IOException {
-		ByteArrayOutputStream dataBuffer = new ByteArrayOutputStream((recipient == null ? 1 : recipient.length()) * 4);
-
-		// char    rcpt[]      Recipient to remove, NUL terminated
-		//                     (string must match the one in SMFIC_RCPT exactly)
-		writeZeroTerminatedString(dataBuffer, recipient);
-
-		sendPacket(writeChannel, MilterConstants.SMFIR_DELRCPT, dataBuffer.toByteArray());
+		MilterPacketEncoder encoder = new MilterPacketEncoder();
+		encoder.deleteRecipient(recipient);
+		encoder.flush(writeChannel);
 	}
 
 	public static void sendAddHeaderPacket(WritableByteChannel writeChannel, String header, String value)
 			throws IOException {
-		ByteArrayOutputStream dataBuffer = new ByteArrayOutputStream((header.length() + (value == null ? 1 : value.length())) * 4);
-
-		// char    name[]      Name of header, NUL terminated
-		// char    value[]     Value of header, NUL terminated
-		writeZeroTerminatedString(dataBuffer, header);
-		writeZeroTerminatedQuotedPrintable(dataBuffer, value);
-
-		sendPacket(writeChannel, MilterConstants.SMFIR_ADDHEADER, dataBuffer.toByteArray());
+		MilterPacketEncoder encoder = new MilterPacketEncoder();
+		encoder.addHeader(header, value);
+		encoder.flush(writeChannel);
 	}
 
 	public static void sendInsertHeaderPacket(WritableByteChannel writeChannel, String header, String value)
 			throws IOException {
-		ByteArrayOutputStream dataBuffer = new ByteArrayOutputStream((header.length() + (value == null ? 1 : value.length())) * 4);
-
-		// char    name[]      Name of header, NUL terminated
-		// char    value[]     Value of header, NUL terminated
-		writeZeroTerminatedString(dataBuffer, header);
-		writeZeroTerminatedString(dataBuffer, value);
-
-		sendPacket(writeChannel, MilterConstants.SMFIR_INSHEADER, dataBuffer.toByteArray());
+		MilterPacketEncoder encoder = new MilterPacketEncoder();
+		encoder.insertHeader(header, value);
+		encoder.flush(writeChannel);
 	}
 
 	public static void sendChgHeaderPacket(WritableByteChannel writeChannel, int index, String header, String value)
 			throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream((header.length() + (value == null ? 1 : value.length())) * 4);
-
-		DataOutputStream dataBuffer = new DataOutputStream(baos);
-		// uint32  index       Index of the occurrence of this header
-		// char    name[]      Name of header, NUL terminated
-		// char    value[]     Value of header, NUL terminated
-		dataBuffer.writeInt(index);
-		writeZeroTerminatedString(dataBuffer, header);
-		writeZeroTerminatedQuotedPrintable(dataBuffer, value);
-		dataBuffer.flush();
-
-		sendPacket(writeChannel, MilterConstants.SMFIR_CHGHEADER, baos.toByteArray());
+		MilterPacketEncoder encoder = new MilterPacketEncoder();
+		encoder.changeHeader(index, header, value);
+		encoder.flush(writeChannel);
 	}
 
+	/**
+	 * Sends a replacement body, split into packets of at most {@link #MAX_BODY_CHUNK} bytes.
+	 *
+	 * @param writeChannel the channel to the MTA.
+	 * @param dataBuffer the new body. Consumed.
+	 * <p>
+	 * @throws IOException on connection problems.
+	 */
 	public static void sendReplBodyPacket(WritableByteChannel writeChannel, ByteBuffer dataBuffer)
 			throws IOException {
-		sendPacket(writeChannel, MilterConstants.SMFIR_REPLBODY, dataBuffer);
+		if (dataBuffer == null || dataBuffer.remaining() <= MAX_BODY_CHUNK) {
+			sendPacket(writeChannel, MilterConstants.SMFIR_REPLBODY, dataBuffer);
+			return;
+		}
+		final ByteBuffer chunk = dataBuffer.duplicate();
+		while (dataBuffer.hasRemaining()) {
+			final int length = Math.min(MAX_BODY_CHUNK, dataBuffer.remaining());
+			chunk.limit(dataBuffer.position() + length).position(dataBuffer.position());
+			sendPacket(writeChannel, MilterConstants.SMFIR_REPLBODY, chunk);
+			dataBuffer.position(dataBuffer.position() + length);
+		}
+	}
+
+	/**
+	 * Sends a region of a file as the replacement body, split into packets of at most {@link #MAX_BODY_CHUNK} bytes.
+	 * The data goes straight from the file to the channel with {@link FileChannel#transferTo(long, long,
+	 * WritableByteChannel)}, which for sockets usually means without being copied through the JVM.
+	 *
+	 * @param writeChannel the channel to the MTA.
+	 * @param body the file holding the new body. Its position is not changed.
+	 * @param position where the body starts in the file.
+	 * @param count the length of the body.
+	 * <p>
+	 * @throws IOException on connection or file problems, or if the file ends before <code>count</code> bytes.
+	 */
+	public static void sendReplBodyPackets(WritableByteChannel writeChannel, FileChannel body, long position,
+			long count) throws IOException {
+		final ByteBuffer headerBuffer = ByteBuffer.allocate(5);
+		final long end = position + count;
+		do {
+			final int length = (int) Math.min(MAX_BODY_CHUNK, end - position);
+			headerBuffer.clear();
+			headerBuffer.putInt(length + 1);
+			headerBuffer.put((byte) MilterConstants.SMFIR_REPLBODY);
+			headerBuffer.flip();
+			writeFully(writeChannel, headerBuffer);
+			final long chunkEnd = position + length;
+			while (position < chunkEnd) {
+				final long sent = body.transferTo(position, chunkEnd - position, writeChannel);
+				if (sent <= 0 && position >= body.size()) {
+					throw new IOException("Body file ended " + (end - position) + " bytes short");
+				}
+				position += sent;
+			}
+		}
+		while (position < end);
+	}
+
+	/**
+	 * Sends the rest of a channel as the replacement body, split into packets of at most {@link #MAX_BODY_CHUNK}
+	 * bytes. Only one chunk is held in memory at a time.
+	 *
+	 * @param writeChannel the channel to the MTA.
+	 * @param body the new body, read to its end.
+	 * @param scratch a buffer of at least {@link #MAX_BODY_CHUNK} bytes to read chunks into.
+	 * <p>
+	 * @throws IOException on connection or read problems.
+	 */
+	public static void sendReplBodyPackets(WritableByteChannel writeChannel, ReadableByteChannel body,
+			ByteBuffer scratch) throws IOException {
+		boolean sent = false;
+		boolean eof = false;
+		while (!eof) {
+			scratch.clear().limit(MAX_BODY_CHUNK);
+			while (scratch.hasRemaining()) {
+				if (body.read(scratch) < 0) {
+					eof = true;
+					break;
+				}
+			}
+			scratch.flip();
+			// an empty body still needs one packet, an exact multiple of the chunk size does not need an empty last one
+			if (scratch.hasRemaining() || !sent) {
+				sendPacket(writeChannel, MilterConstants.SMFIR_REPLBODY, scratch);
+				sent = true;
+			}
+		}
+	}
+
+	private static void writeFully(WritableByteChannel writeChannel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			writeChannel.write(buffer);
+		}
 	}
 
 	public static void sendProgressPacket(WritableByteChannel writeChannel)
@@ -221,4 +277,145 @@ public final class MilterServerPacketUtil {
 		return array.toArray(new byte[array.size()][]);
 	}
 
+	/**
+	 * Turns the textual address sent by the MTA in {@code SMFIC_CONNECT} into an {@link InetAddress} without any
+	 * name service lookup.
+	 *
+	 * @param hostname the host name sent by the MTA. Used as the host name of the result, unless it is a bracketed
+	 * address literal, which the MTA sends when the reverse lookup failed.
+	 * @param literal an IPv4 or IPv6 address, optionally prefixed with <code>IPv6:</code> and bracketed.
+	 * <p>
+	 * @return the address, or <code>null</code> if <code>literal</code> is not an IP address.
+	 */
+	public static InetAddress parseAddressLiteral(String hostname, String literal) {
+		String text = literal.trim();
+		if (text.startsWith("[") && text.endsWith("]")) {
+			text = text.substring(1, text.length() - 1);
+		}
+		if (text.regionMatches(true, 0, "IPv6:", 0, 5)) {
+			text = text.substring(5);
+		}
+		int zone = text.indexOf('%');
+		if (zone >= 0) {
+			text = text.substring(0, zone);
+		}
+		byte[] bytes = text.indexOf(':') >= 0 ? parseIPv6(text) : parseIPv4(text, 0, text.length());
+		if (bytes == null) {
+			return null;
+		}
+		try {
+			if (hostname == null || hostname.isEmpty() || hostname.charAt(0) == '[') {
+				return InetAddress.getByAddress(bytes);
+			}
+			return InetAddress.getByAddress(hostname, bytes);
+		}
+		catch (UnknownHostException ex) {
+			// only thrown for illegal address lengths
+			return null;
+		}
+	}
+
+	private static byte[] parseIPv4(String text, int start, int end) {
+		byte[] bytes = new byte[4];
+		int octet = 0;
+		int value = 0;
+		int digits = 0;
+		for (int i = start; i < end; ++i) {
+			char c = text.charAt(i);
+			if (c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				if (++digits > 3 || value > 255) {
+					return null;
+				}
+			}
+			else if (c == '.' && digits > 0 && octet < 3) {
+				bytes[octet++] = (byte) value;
+				value = 0;
+				digits = 0;
+			}
+			else {
+				return null;
+			}
+		}
+		if (octet != 3 || digits == 0) {
+			return null;
+		}
+		bytes[3] = (byte) value;
+		return bytes;
+	}
+
+	private static byte[] parseIPv6(String text) {
+		byte[] bytes = new byte[16];
+		int length = text.length();
+		int pos = 0;
+		int group = 0;
+		int compressAt = -1;
+		if (text.startsWith("::")) {
+			compressAt = 0;
+			pos = 2;
+		}
+		while (pos < length) {
+			if (group >= 8) {
+				return null;
+			}
+			int end = pos;
+			int value = 0;
+			while (end < length && Character.digit(text.charAt(end), 16) >= 0 && end - pos < 4) {
+				value = (value << 4) | Character.digit(text.charAt(end), 16);
+				++end;
+			}
+			if (end < length && text.charAt(end) == '.') {
+				// embedded IPv4 address in the last 32 bits
+				if (group > 6) {
+					return null;
+				}
+				byte[] v4 = parseIPv4(text, pos, length);
+				if (v4 == null) {
+					return null;
+				}
+				System.arraycopy(v4, 0, bytes, group * 2, 4);
+				group += 2;
+				pos = length;
+				break;
+			}
+			if (end == pos) {
+				return null;
+			}
+			bytes[group * 2] = (byte) (value >> 8);
+			bytes[group * 2 + 1] = (byte) value;
+			++group;
+			pos = end;
+			if (pos < length) {
+				if (text.charAt(pos) != ':') {
+					return null;
+				}
+				++pos;
+				if (pos < length && text.charAt(pos) == ':') {
+					if (compressAt >= 0) {
+						return null;
+					}
+					compressAt = group;
+					++pos;
+				}
+				else if (pos == length) {
+					// trailing single colon
+					return null;
+				}
+			}
+		}
+		if (compressAt >= 0) {
+			int shift = 8 - group;
+			if (shift <= 0) {
+				return null;
+			}
+			System.arraycopy(bytes, compressAt * 2, bytes, (compressAt + shift) * 2, (group - compressAt) * 2);
+			for (int i = compressAt * 2; i < (compressAt + shift) * 2; ++i) {
+				bytes[i] = 0;
+			}
+		}
+		else if (group != 8) {
+			return null;
+		}
+		return bytes;
+	}
 }
@@ -0,0 +1,301 @@
+package com.sendmail.milter.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of threads with a bounded queue, for one stage of the work: the conversations themselves, or the heavy
+ * handler callbacks handed off by the {@link CallbackGuard}. Reports how deep its queue is and how long tasks wait in
+ * it before a thread takes them. Tasks are taken in the order they came, or by priority with an
+ * {@link AgingPriorityQueue}.
+ */
+public class MilterStage extends ThreadPoolExecutor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MilterStage.class);
+
+	/**
+	 * Makes the submitting thread wait for room in the queue when it is full.
+	 */
+	public static final RejectedExecutionHandler WAIT = new RejectedExecutionHandler() {
+		@Override
+		public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("Stage is shut down");
+			}
+			try {
+				executor.getQueue().put(r);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted while waiting for room in the queue", e);
+			}
+		}
+	};
+
+	/**
+	 * A task with the time it was queued and its priority.
+	 */
+	static final class Queued implements Runnable {
+
+		private final Runnable task;
+		final long queued = System.nanoTime();
+		final int priority;
+		private long started;
+
+		Queued(final Runnable task, final int priority) {
+			this.task = task;
+			this.priority = priority;
+		}
+
+		@Override
+		public void run() {
+			task.run();
+		}
+	}
+
+	/**
+	 * Creates the threads of the stage, and keeps track of them.
+	 */
+	private static final class Workers implements ThreadFactory {
+
+		private final String name;
+		private final ThreadGroup group;
+		private final AtomicInteger count = new AtomicInteger();
+		private final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+		Workers(final String name) {
+			this.name = name;
+			this.group = new ThreadGroup(Thread.currentThread().getThreadGroup(), name);
+		}
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			final Thread th = new Thread(group, r);
+			th.setDaemon(true);
+			final String threadName = name + "-" + count.getAndIncrement();
+			th.setName(threadName);
+			LOG.debug("Created thread, {}", threadName);
+			threads.add(th);
+			return th;
+		}
+	}
+
+	private final String name;
+	private final Workers workers;
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong serviceNanos = new AtomicLong();
+
+	/**
+	 * @param name the name of the stage, also used for its threads.
+	 * @param threads the number of threads. Idle threads end after the keep-alive time.
+	 * @param queueCapacity the number of tasks that can wait for a thread.
+	 * @param keepAlive how long threads are kept idle.
+	 * @param unit the unit of <code>keepAlive</code>.
+	 * @param whenFull what to do with a task when the queue is full, like {@link #WAIT}.
+	 */
+	public MilterStage(final String name, final int threads, final int queueCapacity, final long keepAlive,
+			final TimeUnit unit, final RejectedExecutionHandler whenFull) {
+		this(name, threads, new ArrayBlockingQueue<Runnable>(queueCapacity), keepAlive, unit, whenFull);
+	}
+
+	/**
+	 * @param name the name of the stage, also used for its threads.
+	 * @param threads the number of threads. Idle threads end after the keep-alive time.
+	 * @param queue where tasks wait for a thread, bounded.
+	 * @param keepAlive how long threads are kept idle.
+	 * @param unit the unit of <code>keepAlive</code>.
+	 * @param whenFull what to do with a task when the queue is full, like {@link #WAIT}.
+	 */
+	public MilterStage(final String name, final int threads, final BlockingQueue<Runnable> queue, final long keepAlive,
+			final TimeUnit unit, final RejectedExecutionHandler whenFull) {
+		this(name, threads, queue, keepAlive, unit, whenFull, new Workers(name));
+	}
+
+	private MilterStage(final String name, final int threads, final BlockingQueue<Runnable> queue,
+			final long keepAlive, final TimeUnit unit, final RejectedExecutionHandler whenFull, final Workers workers) {
+		super(threads, threads, keepAlive, unit, queue, workers, whenFull);
+		this.name = name;
+		this.workers = workers;
+		allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Runs the stage with a number of threads, between the core and the maximum size of a plain thread pool. Tasks
+	 * wait in the queue when they are all busy.
+	 *
+	 * @param threads the new number of threads. Threads above it end when they are done with their current task.
+	 */
+	public synchronized void resize(final int threads) {
+		if (threads > getMaximumPoolSize()) {
+			setMaximumPoolSize(threads);
+			setCorePoolSize(threads);
+		}
+		else {
+			setCorePoolSize(threads);
+			setMaximumPoolSize(threads);
+		}
+	}
+
+	@Override
+	public void execute(final Runnable command) {
+		execute(command, PriorityPolicy.UNCLASSIFIED);
+	}
+
+	/**
+	 * Runs a task, ahead of less urgent ones if the stage has an {@link AgingPriorityQueue}.
+	 *
+	 * @param command the task.
+	 * @param priority its priority, 0 for the most urgent.
+	 */
+	public void execute(final Runnable command, final int priority) {
+		submitted.incrementAndGet();
+		super.execute(new Queued(command, priority));
+	}
+
+	/**
+	 * Interrupts the running tasks and drops the waiting ones, see {@link ThreadPoolExecutor#shutdownNow()}.
+	 *
+	 * @return the tasks that never ran, as they were handed to the stage, for whoever must close what they hold.
+	 */
+	@Override
+	public List<Runnable> shutdownNow() {
+		final List<Runnable> dropped = super.shutdownNow();
+		for (int i = 0; i < dropped.size(); i++) {
+			if (dropped.get(i) instanceof Queued) {
+				dropped.set(i, ((Queued) dropped.get(i)).task);
+			}
+		}
+		return dropped;
+	}
+
+	@Override
+	protected void beforeExecute(final Thread t, final Runnable r) {
+		if (r instanceof Queued) {
+			final Queued task = (Queued) r;
+			task.started = System.nanoTime();
+			final long wait = task.started - task.queued;
+			started.incrementAndGet();
+			waitNanos.addAndGet(wait);
+			long max = maxWaitNanos.get();
+			while (wait > max && !maxWaitNanos.compareAndSet(max, wait)) {
+				max = maxWaitNanos.get();
+			}
+		}
+		super.beforeExecute(t, r);
+	}
+
+	@Override
+	protected void afterExecute(final Runnable r, final Throwable t) {
+		super.afterExecute(r, t);
+		if (r instanceof Queued) {
+			completed.incrementAndGet();
+			serviceNanos.addAndGet(System.nanoTime() - ((Queued) r).started);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return tasks waiting for a thread.
+	 */
+	public int getQueueDepth() {
+		return getQueue().size();
+	}
+
+	/**
+	 * @return tasks handed to the stage.
+	 */
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	/**
+	 * @return tasks taken by a thread of the stage.
+	 */
+	public long getStarted() {
+		return started.get();
+	}
+
+	/**
+	 * @return the total time tasks waited in the queue, in nanoseconds.
+	 */
+	public long getWaitNanos() {
+		return waitNanos.get();
+	}
+
+	/**
+	 * @return tasks finished.
+	 */
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * @return the total time threads of the stage spent on the finished tasks, in nanoseconds.
+	 */
+	public long getServiceNanos() {
+		return serviceNanos.get();
+	}
+
+	/**
+	 * @return the live threads of the stage.
+	 */
+	public List<Thread> getWorkers() {
+		final List<Thread> live = new ArrayList<>(workers.threads.size());
+		for (Iterator<Thread> it = workers.threads.iterator(); it.hasNext();) {
+			final Thread worker = it.next();
+			if (worker.isAlive()) {
+				live.add(worker);
+			}
+			else if (worker.getState() == Thread.State.TERMINATED) {
+				it.remove();
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * @return the average time tasks waited in the queue, in milliseconds.
+	 */
+	public double getAverageWaitMillis() {
+		final long count = started.get();
+		return count == 0 ? 0 : waitNanos.get() / 1000000.0 / count;
+	}
+
+	/**
+	 * @return the longest time a task waited in the queue, in milliseconds.
+	 */
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1000000.0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "stage %s: threads=%d active=%d queued=%d started=%d waitAvgMillis=%.3f"
+				+ " waitMaxMillis=%.3f", name, getPoolSize(), getActiveCount(), getQueueDepth(), started.get(),
+				getAverageWaitMillis(), getMaxWaitMillis());
+	}
+}
@@ -0,0 +1,81 @@
+package com.sendmail.milter.internal;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Traces a sample of conversations, and optionally every conversation that takes too long, as one log record each.
+ * <p>
+ * Records go to the <code>com.sendmail.milter.trace</code> logger at the info level, so they can be routed apart from
+ * the rest of the log. Each conversation chosen for sampling keeps its most recent events in a ring of its own. If a
+ * slow threshold is set, every conversation keeps one, since its duration is only known at its end; otherwise
+ * conversations not sampled record nothing at all.
+ */
+public class MilterTracer {
+
+	private static final Logger TRACE = LoggerFactory.getLogger("com.sendmail.milter.trace");
+
+	private final double sampleRate;
+	private final long slowNanos;
+	private final int capacity;
+	private final AtomicLong emitted = new AtomicLong();
+
+	/**
+	 * @param sampleRate the fraction of conversations traced, between 0 and 1.
+	 * @param slow conversations taking at least this long are traced too. 0 to disable.
+	 * @param unit unit of <code>slow</code>.
+	 * @param capacity the number of most recent events kept per conversation.
+	 */
+	public MilterTracer(final double sampleRate, final long slow, final TimeUnit unit, final int capacity) {
+		if (sampleRate < 0 || sampleRate > 1 || slow < 0 || capacity < 1) {
+			throw new IllegalArgumentException("Sample rate must be between 0 and 1, slow threshold not negative, "
+					+ "capacity positive");
+		}
+		this.sampleRate = sampleRate;
+		this.slowNanos = unit.toNanos(slow);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @param id the connection id.
+	 * <p>
+	 * @return the trace of a new conversation, or <code>null</code> if it is not traced.
+	 */
+	ConversationTrace start(final long id) {
+		final boolean sampled = sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+		if (!sampled && slowNanos == 0) {
+			return null;
+		}
+		return new ConversationTrace(id, sampled, capacity);
+	}
+
+	/**
+	 * Emits the trace of an ended conversation if it was sampled or slow.
+	 *
+	 * @param trace the trace from {@link #start(long)}.
+	 * @param client the client address, or <code>null</code> if unknown.
+	 */
+	void finish(final ConversationTrace trace, final String client) {
+		if (trace.isSampled() || slowNanos > 0 && trace.getElapsedNanos() >= slowNanos) {
+			emitted.incrementAndGet();
+			TRACE.info(trace.format(client));
+		}
+	}
+
+	/**
+	 * @return the number of conversation traces emitted.
+	 */
+	public long getEmitted() {
+		return emitted.get();
+	}
+
+	@Override
+	public String toString() {
+		return "tracer: sampleRate=" + sampleRate + " slow=" + TimeUnit.NANOSECONDS.toMillis(slowNanos) + "ms emitted="
+				+ emitted.get();
+	}
+}
@@ -0,0 +1,30 @@
+package com.sendmail.milter.internal;
+
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.util.Properties;
+
+/**
+ * Decides how urgent the work of a conversation is, for the {@link AgingPriorityQueue} of the stages it runs on. A
+ * conversation is classified when it is accepted, from the listener alone, then again from the SMTP client address and
+ * the macros at connect and at each envelope sender, keeping the most urgent result.
+ * <p>
+ * Implementations must be thread-safe, and fast: they run on the accepting and conversation threads.
+ */
+public interface PriorityPolicy {
+
+	/**
+	 * The priority of work that was not classified: the lowest level of any queue.
+	 */
+	int UNCLASSIFIED = Integer.MAX_VALUE;
+
+	/**
+	 * @param listener the address the conversation was accepted on, or <code>null</code> if unknown.
+	 * @param client the address of the SMTP client, or <code>null</code> if unknown, as when the conversation is
+	 * accepted.
+	 * @param macros the macros the MTA sent for the stage, or <code>null</code> if there are none yet.
+	 * <p>
+	 * @return the priority, 0 for the most urgent.
+	 */
+	int classify(SocketAddress listener, InetAddress client, Properties macros);
+}
@@ -0,0 +1,157 @@
+package com.sendmail.milter.internal;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A {@link PriorityPolicy} given as a list of rules, each a condition and the priority of the conversations that meet
+ * it. The first rule met decides; conversations that meet none get the default priority.
+ * <p>
+ * Rules are separated by commas, and each is a condition followed by whitespace and the priority. The conditions are:
+ * <ul>
+ * <li><code>listener=</code><i>port</i> -- accepted on a listener with that port.</li>
+ * <li><code>address=</code><i>address</i>[<code>/</code><i>prefix length</i>] -- from a client in that network.</li>
+ * <li><i>macro</i><code>=</code><i>value</i> -- the MTA sent the macro, like <code>{daemon_name}</code>, with that
+ * value, or with any value but an empty one for <code>*</code>.</li>
+ * </ul>
+ * For example <code>{auth_authen}=* 0, {daemon_name}=MSA 0, address=10.0.0.0/8 1</code> puts authenticated
+ * submissions first, then internal relays, then everything else.
+ */
+public class RulePriorityPolicy implements PriorityPolicy {
+
+	private static final int LISTENER = 0;
+	private static final int ADDRESS = 1;
+	private static final int MACRO = 2;
+
+	/**
+	 * One condition and its priority.
+	 */
+	private static final class Rule {
+
+		final int kind;
+		final String name;
+		final String value;
+		final byte[] network;
+		final int prefix;
+		final int port;
+		final int priority;
+
+		Rule(final String text) {
+			final String[] parts = text.trim().split("\\s+");
+			final int equals = parts[0].indexOf('=');
+			if (parts.length != 2 || equals <= 0) {
+				throw new IllegalArgumentException("Bad priority rule: " + text);
+			}
+			this.name = parts[0].substring(0, equals);
+			this.value = parts[0].substring(equals + 1);
+			this.priority = Integer.parseInt(parts[1]);
+			if ("listener".equals(name)) {
+				kind = LISTENER;
+				port = Integer.parseInt(value);
+				network = null;
+				prefix = 0;
+			}
+			else if ("address".equals(name)) {
+				kind = ADDRESS;
+				port = 0;
+				final int slash = value.indexOf('/');
+				final InetAddress address = MilterServerPacketUtil.parseAddressLiteral(null,
+						slash < 0 ? value : value.substring(0, slash));
+				if (address == null) {
+					throw new IllegalArgumentException("Bad address in priority rule: " + text);
+				}
+				network = address.getAddress();
+				prefix = slash < 0 ? network.length * 8 : Integer.parseInt(value.substring(slash + 1));
+				if (prefix < 0 || prefix > network.length * 8) {
+					throw new IllegalArgumentException("Bad prefix length in priority rule: " + text);
+				}
+			}
+			else {
+				kind = MACRO;
+				port = 0;
+				network = null;
+				prefix = 0;
+			}
+		}
+
+		boolean matches(final SocketAddress listener, final InetAddress client, final Properties macros) {
+			switch (kind) {
+				case LISTENER:
+					return listener instanceof InetSocketAddress && ((InetSocketAddress) listener).getPort() == port;
+				case ADDRESS:
+					return client != null && inNetwork(client.getAddress());
+				default:
+					final String sent = macros == null ? null : macros.getProperty(name);
+					return sent != null && ("*".equals(value) ? !sent.isEmpty() : value.equals(sent));
+			}
+		}
+
+		private boolean inNetwork(final byte[] address) {
+			if (address.length != network.length) {
+				return false;
+			}
+			final int bytes = prefix / 8;
+			for (int i = 0; i < bytes; ++i) {
+				if (address[i] != network[i]) {
+					return false;
+				}
+			}
+			final int bits = prefix % 8;
+			if (bits == 0) {
+				return true;
+			}
+			final int mask = 0xFF00 >> bits & 0xFF;
+			return (address[bytes] & mask) == (network[bytes] & mask);
+		}
+	}
+
+	private final List<Rule> rules = new ArrayList<>();
+	private final int defaultPriority;
+	private final String text;
+
+	/**
+	 * @param rules the rules, in the format described above.
+	 * @param defaultPriority the priority of conversations that meet no rule.
+	 */
+	public RulePriorityPolicy(final String rules, final int defaultPriority) {
+		for (String rule : rules.split(",")) {
+			if (!rule.trim().isEmpty()) {
+				this.rules.add(new Rule(rule));
+			}
+		}
+		this.defaultPriority = defaultPriority;
+		this.text = rules.trim();
+	}
+
+	@Override
+	public int classify(final SocketAddress listener, final InetAddress client, final Properties macros) {
+		for (Rule rule : rules) {
+			if (rule.matches(listener, client, macros)) {
+				return rule.priority;
+			}
+		}
+		return defaultPriority;
+	}
+
+	/**
+	 * @return <code>true</code> if some rule is about the client address or a macro, which are only known once the
+	 * conversation has connected, so only decide for callbacks waiting for a content thread.
+	 */
+	public boolean hasClientRules() {
+		for (Rule rule : rules) {
+			if (rule.kind != LISTENER) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "priority rules [" + text + "] default " + defaultPriority;
+	}
+}
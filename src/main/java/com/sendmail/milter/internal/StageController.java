@@ -0,0 +1,221 @@
+package com.sendmail.milter.internal;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sizes the threads of a {@link MilterStage} to keep the time tasks wait in its queue under a target. Run it every few
+ * seconds; each run looks at what the stage did since the previous one.
+ * <p>
+ * The threads needed follow from Little's law: tasks arriving per second times the time a task takes, plus enough to
+ * work off the tasks already queued by the next run. When tasks wait longer than the target, the stage grows by a
+ * quarter, or to that estimate if it is higher, but only while its threads spend most of their time off the CPU and
+ * not blocked on locks: more threads do not help work that is short of processors, and make lock contention worse.
+ * When tasks wait less than half the target, the stage shrinks by a tenth, but not below the estimate. The size stays
+ * within the configured bounds.
+ */
+public class StageController implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StageController.class);
+
+	/**
+	 * Share of thread time on the CPU above which the stage is not grown.
+	 */
+	private static final double CPU_BOUND = 0.8;
+	/**
+	 * Share of thread time blocked on monitors above which the stage is not grown.
+	 */
+	private static final double LOCK_BOUND = 0.5;
+	/**
+	 * Threads kept on top of the estimate, for bursts.
+	 */
+	private static final double HEADROOM = 1.2;
+
+	private final MilterStage stage;
+	private final int minThreads;
+	private final int maxThreads;
+	private final long targetWaitNanos;
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final boolean cpuTime;
+	private final boolean contention;
+
+	private long lastRun = System.nanoTime();
+	private long lastSubmitted;
+	private long lastStarted;
+	private long lastWait;
+	private long lastCompleted;
+	private long lastService;
+	private double serviceNanos = 0;
+	private Map<Long, long[]> lastTimes = new HashMap<>();
+
+	private final AtomicLong grown = new AtomicLong();
+	private final AtomicLong shrunk = new AtomicLong();
+	private final AtomicLong held = new AtomicLong();
+	private volatile String last = "none";
+
+	/**
+	 * @param stage the stage to size. It is resized to <code>minThreads</code> right away.
+	 * @param minThreads the fewest threads.
+	 * @param maxThreads the most threads.
+	 * @param targetWait the longest tasks should wait in the queue on average.
+	 * @param unit the unit of <code>targetWait</code>.
+	 */
+	public StageController(final MilterStage stage, final int minThreads, final int maxThreads, final long targetWait,
+			final TimeUnit unit) {
+		if (minThreads < 1 || maxThreads < minThreads) {
+			throw new IllegalArgumentException("Bad thread bounds " + minThreads + ".." + maxThreads);
+		}
+		this.stage = stage;
+		this.minThreads = minThreads;
+		this.maxThreads = maxThreads;
+		this.targetWaitNanos = unit.toNanos(targetWait);
+		this.cpuTime = threads.isThreadCpuTimeSupported();
+		if (cpuTime && !threads.isThreadCpuTimeEnabled()) {
+			threads.setThreadCpuTimeEnabled(true);
+		}
+		this.contention = threads.isThreadContentionMonitoringSupported();
+		if (contention && !threads.isThreadContentionMonitoringEnabled()) {
+			threads.setThreadContentionMonitoringEnabled(true);
+		}
+		lastSubmitted = stage.getSubmitted();
+		lastStarted = stage.getStarted();
+		lastWait = stage.getWaitNanos();
+		lastCompleted = stage.getCompleted();
+		lastService = stage.getServiceNanos();
+		stage.resize(minThreads);
+	}
+
+	@Override
+	public synchronized void run() {
+		final long now = System.nanoTime();
+		final long wall = Math.max(now - lastRun, 1);
+		final long submittedNow = stage.getSubmitted();
+		final long startedNow = stage.getStarted();
+		final long waitNow = stage.getWaitNanos();
+		final long completedNow = stage.getCompleted();
+		final long serviceNow = stage.getServiceNanos();
+		final long started = startedNow - lastStarted;
+		final long completed = completedNow - lastCompleted;
+		final int queued = stage.getQueueDepth();
+		// tasks still queued have waited at least since the last run if none started
+		final double wait = started > 0 ? (double) (waitNow - lastWait) / started : queued > 0 ? wall : 0;
+		if (completed > 0) {
+			serviceNanos = (double) (serviceNow - lastService) / completed;
+		}
+		final double rate = (submittedNow - lastSubmitted) * 1e9 / wall;
+		final int estimate = (int) Math.ceil((rate * serviceNanos / 1e9 + queued * serviceNanos / wall) * HEADROOM);
+		final double[] busy = sampleWorkers(wall);
+		lastRun = now;
+		lastSubmitted = submittedNow;
+		lastStarted = startedNow;
+		lastWait = waitNow;
+		lastCompleted = completedNow;
+		lastService = serviceNow;
+
+		final int size = stage.getCorePoolSize();
+		int next = size;
+		String reason = null;
+		if (wait > targetWaitNanos) {
+			if (busy[0] >= CPU_BOUND) {
+				reason = "CPU bound";
+			}
+			else if (busy[1] >= LOCK_BOUND) {
+				reason = "lock bound";
+			}
+			else {
+				next = Math.max(size + Math.max(1, size / 4), estimate);
+			}
+		}
+		else if (wait < targetWaitNanos / 2 && queued == 0) {
+			next = Math.min(size, Math.max(size - Math.max(1, size / 10), estimate));
+		}
+		next = Math.max(minThreads, Math.min(maxThreads, next));
+
+		final String decision = String.format(Locale.ROOT, "%d -> %d threads: waitMillis=%.3f rate=%.1f/s"
+				+ " serviceMillis=%.3f estimate=%d cpu=%.2f blocked=%.2f queued=%d", size, next, wait / 1e6, rate,
+				serviceNanos / 1e6, estimate, busy[0], busy[1], queued);
+		if (next != size) {
+			stage.resize(next);
+			(next > size ? grown : shrunk).incrementAndGet();
+			last = decision;
+			LOG.info("Stage {}: {}", stage.getName(), decision);
+		}
+		else if (reason != null) {
+			held.incrementAndGet();
+			last = reason + ", " + decision;
+			LOG.info("Stage {}: not growing, {}", stage.getName(), last);
+		}
+		else {
+			LOG.debug("Stage {}: {}", stage.getName(), decision);
+		}
+	}
+
+	/**
+	 * @return the share of the busy threads' time spent on the CPU and blocked on monitors, since the last run.
+	 */
+	private double[] sampleWorkers(final long wall) {
+		final List<Thread> workers = stage.getWorkers();
+		final Map<Long, long[]> times = new HashMap<>(workers.size() * 2);
+		long cpu = 0;
+		long blocked = 0;
+		for (Thread worker : workers) {
+			final long id = worker.getId();
+			final long workerCpu = cpuTime ? threads.getThreadCpuTime(id) : -1;
+			final ThreadInfo info = contention ? threads.getThreadInfo(id) : null;
+			final long workerBlocked = info != null && info.getBlockedTime() >= 0
+					? TimeUnit.MILLISECONDS.toNanos(info.getBlockedTime()) : -1;
+			if (workerCpu < 0) {
+				continue;
+			}
+			final long[] previous = lastTimes.get(id);
+			if (previous != null) {
+				cpu += workerCpu - previous[0];
+				blocked += workerBlocked >= 0 && previous[1] >= 0 ? workerBlocked - previous[1] : 0;
+			}
+			times.put(id, new long[] {workerCpu, workerBlocked});
+		}
+		lastTimes = times;
+		final double busyTime = (double) Math.max(stage.getActiveCount(), 1) * wall;
+		return new double[] {Math.min(1, cpu / busyTime), Math.min(1, blocked / busyTime)};
+	}
+
+	public long getGrown() {
+		return grown.get();
+	}
+
+	public long getShrunk() {
+		return shrunk.get();
+	}
+
+	/**
+	 * @return the times the stage needed more threads but was not grown, because its threads were short of processors
+	 * or blocked on locks.
+	 */
+	public long getHeld() {
+		return held.get();
+	}
+
+	/**
+	 * @return the last decision that changed the size or held it back.
+	 */
+	public String getLastDecision() {
+		return last;
+	}
+
+	@Override
+	public String toString() {
+		return "controller of " + stage.getName() + ": threads=" + stage.getCorePoolSize() + " bounds=" + minThreads
+				+ ".." + maxThreads + " grown=" + grown.get() + " shrunk=" + shrunk.get() + " held=" + held.get()
+				+ " last=[" + last + "]";
+	}
+}
@@ -0,0 +1,136 @@
+package com.sendmail.milter.internal;
+
+import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.MilterConstants;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the terminal verdicts of a handler, so that repeat offenders are answered without calling the handler
+ * again. Only rejections, temporary failures and discards are cached, together with their reply message.
+ * <p>
+ * Verdicts are looked up and recorded at the stage where the whole key is known: at connect when the key is the client
+ * address only, otherwise at the envelope sender. The cache is bounded, with the eviction policy of
+ * {@link ExpiringCache}.
+ */
+public class VerdictCache {
+
+	/**
+	 * What the verdicts are keyed on.
+	 */
+	public enum Key {
+		CLIENT_ADDRESS,
+		SENDER,
+		CLIENT_ADDRESS_AND_SENDER;
+
+		/**
+		 * @param name <code>address</code>, <code>sender</code> or <code>address+sender</code>.
+		 * <p>
+		 * @return the key type.
+		 */
+		public static Key parse(final String name) {
+			if ("address".equalsIgnoreCase(name)) {
+				return CLIENT_ADDRESS;
+			}
+			if ("sender".equalsIgnoreCase(name)) {
+				return SENDER;
+			}
+			if ("address+sender".equalsIgnoreCase(name)) {
+				return CLIENT_ADDRESS_AND_SENDER;
+			}
+			throw new IllegalArgumentException("Unknown verdict cache key: " + name);
+		}
+	}
+
+	private final Key key;
+	private final long ttlMillis;
+	private final ExpiringCache<String, IMilterStatus> cache;
+
+	/**
+	 * @param key what the verdicts are keyed on.
+	 * @param capacity maximum number of verdicts held.
+	 * @param ttl how long a verdict is reused.
+	 * @param unit unit of <code>ttl</code>.
+	 */
+	public VerdictCache(final Key key, final int capacity, final long ttl, final TimeUnit unit) {
+		this.key = key;
+		this.ttlMillis = unit.toMillis(ttl);
+		this.cache = new ExpiringCache<>(capacity, 16);
+	}
+
+	public Key getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the underlying cache, for its hit, miss and eviction counters.
+	 */
+	public ExpiringCache<String, IMilterStatus> getCache() {
+		return cache;
+	}
+
+	/**
+	 * @param status a handler result.
+	 * <p>
+	 * @return <code>true</code> if the result ends the conversation or transaction with a rejection, temporary failure
+	 * or discard.
+	 */
+	public static boolean isTerminal(final IMilterStatus status) {
+		if (status == null) {
+			return false;
+		}
+		switch (status.getCode()) {
+			case MilterConstants.SMFIR_REJECT:
+			case MilterConstants.SMFIR_TEMPFAIL:
+			case MilterConstants.SMFIR_DISCARD:
+			case MilterConstants.SMFIR_REPLYCODE:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * @param address the client address, or <code>null</code> if unknown.
+	 * @param sender the envelope sender, or <code>null</code> at the connect stage.
+	 * <p>
+	 * @return the cache key, or <code>null</code> if the parts it needs are not known (yet).
+	 */
+	String keyOf(final String address, final String sender) {
+		switch (key) {
+			case CLIENT_ADDRESS:
+				return sender == null ? address : null;
+			case SENDER:
+				return sender == null ? null : sender.toLowerCase(Locale.ROOT);
+			default:
+				return address == null || sender == null ? null : address + ' ' + sender.toLowerCase(Locale.ROOT);
+		}
+	}
+
+	/**
+	 * @param cacheKey a key built by {@link #keyOf(String, String)}.
+	 * <p>
+	 * @return the cached verdict, or <code>null</code>.
+	 */
+	IMilterStatus lookup(final String cacheKey) {
+		return cacheKey == null ? null : cache.get(cacheKey);
+	}
+
+	/**
+	 * Remembers a handler result if it is {@linkplain #isTerminal(IMilterStatus) terminal}.
+	 *
+	 * @param cacheKey a key built by {@link #keyOf(String, String)}.
+	 * @param status the handler result.
+	 */
+	void record(final String cacheKey, final IMilterStatus status) {
+		if (cacheKey != null && isTerminal(status)) {
+			cache.put(cacheKey, status, ttlMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "verdict cache by " + key + ": " + cache;
+	}
+}
@@ -0,0 +1,170 @@
+package com.sendmail.milter.runtime;
+
+import com.sendmail.milter.IMilterActions;
+import com.sendmail.milter.IMilterStatus;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * A handler that judges whole messages. Every callback up to end-of-message continues and collects what the MTA sends
+ * into a {@link MilterMessage}; at end-of-message the message is handed to {@link #evaluate(MilterMessage,
+ * IMilterActions)}, whose result is the reply.
+ * <p>
+ * The message and its body buffer belong to the handler and are reused for every message it sees. Handlers from an
+ * {@link IPooledMilterHandlerFactory} keep them across conversations too, since they are reset rather than closed.
+ * <p>
+ * No actions are requested from the MTA by default; subclasses that change messages override
+ * {@link #getActionFlags()}. Subclasses overriding other callbacks must call the implementation here.
+ */
+public abstract class AbstractMessageHandler implements IMilterHeaderBlockHandler, IResettableMilterHandler {
+
+	private final MilterMessage message;
+
+	/**
+	 * Starts with a 64K body buffer and keeps one of up to 1M between messages.
+	 */
+	protected AbstractMessageHandler() {
+		this(64 * 1024, 1024 * 1024);
+	}
+
+	/**
+	 * @param initialBodyCapacity the initial size of the body buffer.
+	 * @param retainedBodyCapacity the body buffer is dropped back to its initial size after a message that made it grow
+	 * past this.
+	 */
+	protected AbstractMessageHandler(final int initialBodyCapacity, final int retainedBodyCapacity) {
+		message = new MilterMessage(initialBodyCapacity, retainedBodyCapacity);
+	}
+
+	/**
+	 * Judges a complete message.
+	 *
+	 * @param message the message. Only valid until this method returns.
+	 * @param actions the actions available at end-of-message.
+	 * <p>
+	 * @return the status to reply with.
+	 */
+	protected abstract IMilterStatus evaluate(MilterMessage message, IMilterActions actions);
+
+	@Override
+	public int negotiateVersion(final int mtaVersion, final int actionFlags, final int protocolFlags) {
+		return mtaVersion;
+	}
+
+	@Override
+	public int getActionFlags() {
+		return 0;
+	}
+
+	@Override
+	public int getProtocolFlags() {
+		return 0;
+	}
+
+	@Override
+	public Map<Integer, Set<String>> getMacros() {
+		return Collections.emptyMap();
+	}
+
+	@Override
+	public IMilterStatus connect(final String hostname, final InetAddress hostaddr, final Properties properties) {
+		message.endConnection();
+		message.connect(hostname, hostaddr);
+		message.addMacros(properties);
+		return IMilterStatus.SMFIS_CONTINUE;
+	}
+
+	@Override
+	public IMilterStatus helo(final String helohost, final Properties properties) {
+		message.helo(helohost);
+		message.addMacros(properties);
+		return IMilterStatus.SMFIS_CONTINUE;
+	}
+
+	@Override
+	public IMilterStatus envfrom(final byte[][] argv, final Properties properties) {
+		message.endTransaction();
+		message.sender(argv);
+		message.addMacros(properties);
+		return IMilterStatus.SMFIS_CONTINUE;
+	}
+
+	@Override
+	public IMilterStatus envrcpt(final byte[][] argv, final Properties properties) {
+		message.recipient(argv);
+		message.addMacros(properties);
+		return IMilterStatus.SMFIS_CONTINUE;
+	}
+
+	@Override
+	public IMilterStatus data(final Properties properties) {
+		message.addMacros(properties);
+		return IMilterStatus.SMFIS_CONTINUE;
+	}
+
+	/**
+	 * Not called: the runner collects headers for {@link #eoh(HeaderBlock, IMilterActions, Properties)}.
+	 */
+	@Override
+	public IMilterStatus header(final byte[] headerf, final byte[] headerv) {
+		return IMilterStatus.SMFIS_CONTINUE;
+	}
+
+	/**
+	 * Not called: see {@link #eoh(HeaderBlock, IMilterActions, Properties)}.
+	 */
+	@Override
+	public IMilterStatus eoh(final IMilterActions actions, final Properties properties) {
+		return IMilterStatus.SMFIS_CONTINUE;
+	}
+
+	@Override
+	public IMilterStatus eoh(final HeaderBlock headers, final IMilterActions actions, final Properties properties) {
+		message.headers(headers);
+		message.addMacros(properties);
+		return IMilterStatus.SMFIS_CONTINUE;
+	}
+
+	@Override
+	public IMilterStatus body(final ByteBuffer bodyp) {
+		message.appendBody(bodyp);
+		return IMilterStatus.SMFIS_CONTINUE;
+	}
+
+	@Override
+	public IMilterStatus eom(final IMilterActions actions, final Properties properties) {
+		message.addMacros(properties);
+		try {
+			return evaluate(message, actions);
+		}
+		finally {
+			message.endTransaction();
+		}
+	}
+
+	@Override
+	public IMilterStatus unknown(final byte[] command, final Properties properties) {
+		return IMilterStatus.SMFIS_CONTINUE;
+	}
+
+	@Override
+	public void abort() {
+		message.endTransaction();
+	}
+
+	@Override
+	public void close() {
+		message.endConnection();
+	}
+
+	@Override
+	public boolean reset() {
+		message.endConnection();
+		return true;
+	}
+}
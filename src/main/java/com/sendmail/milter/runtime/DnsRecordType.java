@@ -0,0 +1,12 @@
+package com.sendmail.milter.runtime;
+
+/**
+ * DNS record types the {@link MilterResolver} can look up.
+ */
+public enum DnsRecordType {
+	A,
+	AAAA,
+	PTR,
+	TXT,
+	MX
+}
@@ -0,0 +1,274 @@
+package com.sendmail.milter.runtime;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * All headers of a single message, as sent by the MTA. Names and values are kept in a single backing buffer, indexed
+ * by offsets, so collecting a header costs no allocation once the buffer has grown to the usual message size.
+ * <p>
+ * Header names are compared case-insensitively. Values are the raw bytes the MTA sent, without the terminating NUL.
+ * The block is owned by the runner and reused for the next message, so handlers must not keep references to it or to
+ * the buffers it returns past the end of the current message.
+ */
+public final class HeaderBlock {
+
+	private static final Charset ISO8859 = Charset.forName("ISO-8859-1");
+
+	// three offsets per header: name start, value start, value end
+	private static final int SLOTS = 3;
+
+	private byte[] data = new byte[4096];
+	private int length = 0;
+	private int[] offsets = new int[32 * SLOTS];
+	private int count = 0;
+
+	/**
+	 * Appends one header from the payload of a {@code SMFIC_HEADER} packet: a NUL terminated name followed by a NUL
+	 * terminated value. The buffer position is moved past the consumed data.
+	 *
+	 * @param packetData the packet payload.
+	 */
+	public void append(final ByteBuffer packetData) {
+		append(packetData, packetData);
+	}
+
+	/**
+	 * Appends one header given as its name and value.
+	 *
+	 * @param name the name, without a terminating NUL.
+	 * @param value the value, without a terminating NUL.
+	 */
+	public void append(final byte[] name, final byte[] value) {
+		append(ByteBuffer.wrap(name), ByteBuffer.wrap(value));
+	}
+
+	private void append(final ByteBuffer name, final ByteBuffer value) {
+		final int nameStart = length;
+		copyZeroTerminated(name);
+		final int valueStart = length;
+		copyZeroTerminated(value);
+
+		if ((count + 1) * SLOTS > offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		final int slot = count * SLOTS;
+		offsets[slot] = nameStart;
+		offsets[slot + 1] = valueStart;
+		offsets[slot + 2] = length;
+		++count;
+	}
+
+	private void copyZeroTerminated(final ByteBuffer source) {
+		final int start = source.position();
+		final int limit = source.limit();
+		int end = start;
+		while (end < limit && source.get(end) != 0) {
+			++end;
+		}
+		final int size = end - start;
+		if (length + size > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, length + size));
+		}
+		source.get(data, length, size);
+		length += size;
+		if (source.hasRemaining()) {
+			// skip the terminating NUL
+			source.get();
+		}
+	}
+
+	/**
+	 * Forgets all collected headers, keeping the allocated buffers for the next message.
+	 */
+	public void clear() {
+		length = 0;
+		count = 0;
+	}
+
+	/**
+	 * @return the number of headers in the block.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the total number of name and value bytes held by the block.
+	 */
+	public int byteSize() {
+		return length;
+	}
+
+	/**
+	 * @param index header position, starting at 0, in the order the MTA sent them.
+	 * <p>
+	 * @return the header name.
+	 */
+	public String getName(final int index) {
+		final int slot = slot(index);
+		return new String(data, offsets[slot], offsets[slot + 1] - offsets[slot], ISO8859);
+	}
+
+	/**
+	 * @param index header position, starting at 0.
+	 * <p>
+	 * @return the header value, decoded as ISO-8859-1 so that no byte is lost.
+	 */
+	public String getValue(final int index) {
+		return getValue(index, ISO8859);
+	}
+
+	/**
+	 * @param index header position, starting at 0.
+	 * @param charset the charset to decode the value with.
+	 * <p>
+	 * @return the header value.
+	 */
+	public String getValue(final int index, final Charset charset) {
+		final int slot = slot(index);
+		return new String(data, offsets[slot + 1], offsets[slot + 2] - offsets[slot + 1], charset);
+	}
+
+	/**
+	 * @param index header position, starting at 0.
+	 * <p>
+	 * @return a read-only view of the header name bytes. Only valid until the end of the current message.
+	 */
+	public ByteBuffer getNameBytes(final int index) {
+		final int slot = slot(index);
+		return ByteBuffer.wrap(data, offsets[slot], offsets[slot + 1] - offsets[slot]).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * @param index header position, starting at 0.
+	 * <p>
+	 * @return a read-only view of the header value bytes. Only valid until the end of the current message.
+	 */
+	public ByteBuffer getValueBytes(final int index) {
+		final int slot = slot(index);
+		return ByteBuffer.wrap(data, offsets[slot + 1], offsets[slot + 2] - offsets[slot + 1]).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * @param name header name, compared case-insensitively.
+	 * <p>
+	 * @return the position of the first header with that name, or -1 if there is none.
+	 */
+	public int indexOf(final String name) {
+		return indexOf(name, 0);
+	}
+
+	/**
+	 * @param name header name, compared case-insensitively.
+	 * @param fromIndex the position to start searching from.
+	 * <p>
+	 * @return the position of the next header with that name, or -1 if there is none.
+	 */
+	public int indexOf(final String name, final int fromIndex) {
+		for (int i = Math.max(fromIndex, 0); i < count; ++i) {
+			if (nameEquals(i, name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param name header name, compared case-insensitively.
+	 * <p>
+	 * @return the value of the first header with that name, or <code>null</code> if there is none.
+	 */
+	public String getFirst(final String name) {
+		final int index = indexOf(name, 0);
+		return index < 0 ? null : getValue(index);
+	}
+
+	/**
+	 * @param name header name, compared case-insensitively.
+	 * <p>
+	 * @return the values of all headers with that name, in message order.
+	 */
+	public List<String> getAll(final String name) {
+		final List<String> values = new ArrayList<>(2);
+		for (int i = indexOf(name, 0); i >= 0; i = indexOf(name, i + 1)) {
+			values.add(getValue(i));
+		}
+		return values;
+	}
+
+	/**
+	 * @param name header name, compared case-insensitively.
+	 * <p>
+	 * @return the number of headers with that name.
+	 */
+	public int count(final String name) {
+		int found = 0;
+		for (int i = 0; i < count; ++i) {
+			if (nameEquals(i, name)) {
+				++found;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Translates a block position into the 1-based occurrence index expected by
+	 * {@link com.sendmail.milter.IMilterActions#chgheader(String, int, String)}.
+	 *
+	 * @param index header position, starting at 0.
+	 * <p>
+	 * @return the occurrence of this header among the headers with the same name.
+	 */
+	public int occurrence(final int index) {
+		final int slot = slot(index);
+		final int nameLength = offsets[slot + 1] - offsets[slot];
+		int occurrence = 1;
+		for (int i = 0; i < index; ++i) {
+			final int other = i * SLOTS;
+			if (offsets[other + 1] - offsets[other] == nameLength
+					&& regionEqualsIgnoreCase(offsets[other], offsets[slot], nameLength)) {
+				++occurrence;
+			}
+		}
+		return occurrence;
+	}
+
+	private int slot(final int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("Header " + index + " of " + count);
+		}
+		return index * SLOTS;
+	}
+
+	private boolean nameEquals(final int index, final String name) {
+		final int slot = index * SLOTS;
+		final int start = offsets[slot];
+		final int nameLength = offsets[slot + 1] - start;
+		if (nameLength != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < nameLength; ++i) {
+			if (toLowerAscii(data[start + i] & 0xFF) != toLowerAscii(name.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean regionEqualsIgnoreCase(final int first, final int second, final int size) {
+		for (int i = 0; i < size; ++i) {
+			if (toLowerAscii(data[first + i] & 0xFF) != toLowerAscii(data[second + i] & 0xFF)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int toLowerAscii(final int c) {
+		return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+	}
+}
@@ -0,0 +1,28 @@
+package com.sendmail.milter.runtime;
+
+import com.sendmail.milter.IMilterActions;
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.IMilterStatus;
+
+import java.util.Properties;
+
+/**
+ * A handler that judges the headers of a message as a whole. The runner negotiates no-reply for headers with the MTA,
+ * collects every header of the message into a {@link HeaderBlock} and delivers it once at end-of-headers.
+ * <p>
+ * For these handlers {@link IMilterHandler#header(byte[], byte[])} and
+ * {@link IMilterHandler#eoh(IMilterActions, Properties)} are never called.
+ */
+public interface IMilterHeaderBlockHandler extends IMilterHandler {
+
+	/**
+	 * Called at end-of-headers with all headers of the current message.
+	 *
+	 * @param headers the headers of the message. Owned by the runner and only valid until the end of the message.
+	 * @param actions the actions available at this stage.
+	 * @param properties the last macros sent by the MTA.
+	 * <p>
+	 * @return the status to reply with.
+	 */
+	IMilterStatus eoh(HeaderBlock headers, IMilterActions actions, Properties properties);
+}
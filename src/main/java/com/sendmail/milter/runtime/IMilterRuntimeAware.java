@@ -0,0 +1,14 @@
+package com.sendmail.milter.runtime;
+
+/**
+ * Implemented by handlers that use the services shared by the runner, like the {@link MilterResolver}.
+ */
+public interface IMilterRuntimeAware {
+
+	/**
+	 * Called once, right after the handler has been created and before any other callback.
+	 *
+	 * @param runtime the services of the runner this handler is running in.
+	 */
+	void setRuntime(MilterRuntime runtime);
+}
@@ -0,0 +1,40 @@
+package com.sendmail.milter.runtime;
+
+import com.sendmail.milter.IMilterActions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Body replacement without holding the new body in memory. The actions passed to handlers by the runner implement
+ * this interface; handlers check with <code>instanceof</code>.
+ * <p>
+ * Like {@link IMilterActions#replacebody(ByteBuffer)}, these may only be called at end-of-message, and the body is
+ * sent to the MTA in packets of at most 65535 bytes before they return.
+ */
+public interface IMilterStreamingActions extends IMilterActions {
+
+	/**
+	 * Replaces the body with the rest of a channel. A {@link FileChannel} is sent from its position to its end, as by
+	 * {@link #replacebody(FileChannel, long, long)}, and its position is left unchanged. Other channels are read to
+	 * their end, one packet at a time, and must be blocking.
+	 *
+	 * @param body the new body.
+	 * <p>
+	 * @throws IOException on connection or read problems.
+	 */
+	void replacebody(ReadableByteChannel body) throws IOException;
+
+	/**
+	 * Replaces the body with a region of a file, sent straight from the file to the MTA where the platform allows.
+	 *
+	 * @param body the file holding the new body.
+	 * @param position where the body starts in the file.
+	 * @param count the length of the body.
+	 * <p>
+	 * @throws IOException on connection or file problems, or if the file is shorter than the region.
+	 */
+	void replacebody(FileChannel body, long position, long count) throws IOException;
+}
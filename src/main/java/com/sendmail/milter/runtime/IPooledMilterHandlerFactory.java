@@ -0,0 +1,16 @@
+package com.sendmail.milter.runtime;
+
+import com.sendmail.milter.spi.IMilterHandlerFactory;
+
+/**
+ * A factory whose handlers implement {@link IResettableMilterHandler}. The runner keeps up to
+ * {@link #getPoolSize()} idle handlers of such a factory and reuses them for new conversations instead of creating new
+ * ones. A handler is only ever used by one conversation at a time.
+ */
+public interface IPooledMilterHandlerFactory extends IMilterHandlerFactory {
+
+	/**
+	 * @return the maximum number of idle handlers kept for reuse.
+	 */
+	int getPoolSize();
+}
@@ -0,0 +1,19 @@
+package com.sendmail.milter.runtime;
+
+import com.sendmail.milter.IMilterHandler;
+
+/**
+ * A handler that can be reused for another conversation once its current one is over. Handlers created by an
+ * {@link IPooledMilterHandlerFactory} should implement it, otherwise they are closed and discarded like any other.
+ */
+public interface IResettableMilterHandler extends IMilterHandler {
+
+	/**
+	 * Called instead of {@link IMilterHandler#close()} when a conversation ends, whether it ended normally or not.
+	 * Must drop everything specific to the conversation, while keeping the expensive state that makes reuse
+	 * worthwhile, like compiled patterns or clients.
+	 *
+	 * @return <code>true</code> if the handler can be reused. If <code>false</code>, the runner closes and discards it.
+	 */
+	boolean reset();
+}
@@ -0,0 +1,20 @@
+package com.sendmail.milter.runtime;
+
+import java.io.IOException;
+
+/**
+ * Performs the actual DNS queries for a {@link MilterResolver}. Implementations must be thread-safe.
+ */
+public interface IResolverBackend {
+
+	/**
+	 * @param name the fully qualified name to query.
+	 * @param type the record type.
+	 * <p>
+	 * @return the answer. A name or record that does not exist is an empty answer, not an error.
+	 * <p>
+	 * @throws IOException if the query could not be answered, for example on timeouts or server failures. Failed
+	 * queries are not cached.
+	 */
+	ResolverAnswer lookup(String name, DnsRecordType type) throws IOException;
+}
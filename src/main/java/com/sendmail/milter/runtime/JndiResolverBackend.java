@@ -0,0 +1,96 @@
+package com.sendmail.milter.runtime;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+/**
+ * Queries DNS servers through the JNDI DNS provider that ships with the JDK. The provider does not report record
+ * TTLs, so every answer leaves the choice of TTL to the {@link MilterResolver}.
+ */
+public class JndiResolverBackend implements IResolverBackend {
+
+	private final Hashtable<String, String> environment = new Hashtable<>();
+
+	/**
+	 * @param servers space or comma separated list of servers, as <code>host</code> or <code>host:port</code>. If
+	 * <code>null</code> or empty the servers configured for the platform are used. Pointing this at a local stub server
+	 * makes the resolver testable.
+	 * @param timeoutMillis initial query timeout. The provider doubles it on each of its retries.
+	 */
+	public JndiResolverBackend(final String servers, final int timeoutMillis) {
+		environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+		if (servers != null && !servers.trim().isEmpty()) {
+			StringBuilder urls = new StringBuilder();
+			for (String server : servers.trim().split("[\\s,]+")) {
+				if (urls.length() > 0) {
+					urls.append(' ');
+				}
+				urls.append("dns://").append(server);
+			}
+			environment.put(Context.PROVIDER_URL, urls.toString());
+		}
+		environment.put("com.sun.jndi.dns.timeout.initial", Integer.toString(timeoutMillis));
+		environment.put("com.sun.jndi.dns.timeout.retries", "2");
+	}
+
+	@Override
+	public ResolverAnswer lookup(final String name, final DnsRecordType type) throws IOException {
+		final List<String> values = new ArrayList<>(2);
+		DirContext context = null;
+		try {
+			context = new InitialDirContext(environment);
+			final Attributes attributes = context.getAttributes(name, new String[]{type.name()});
+			final Attribute attribute = attributes.get(type.name());
+			if (attribute != null) {
+				final NamingEnumeration<?> all = attribute.getAll();
+				while (all.hasMore()) {
+					values.add(presentation(type, String.valueOf(all.next())));
+				}
+			}
+		}
+		catch (NameNotFoundException ex) {
+			// NXDOMAIN is an answer, not a failure
+		}
+		catch (NamingException ex) {
+			throw new IOException("Lookup of " + type + " " + name + " failed", ex);
+		}
+		finally {
+			if (context != null) {
+				try {
+					context.close();
+				}
+				catch (NamingException ex) {
+					// nothing left to release
+				}
+			}
+		}
+		return new ResolverAnswer(values, -1);
+	}
+
+	private static String presentation(final DnsRecordType type, final String value) {
+		switch (type) {
+			case TXT:
+				// the provider quotes character strings that contain spaces
+				if (value.length() > 1 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+					return value.substring(1, value.length() - 1).replace("\" \"", "");
+				}
+				return value;
+			case PTR:
+			case MX:
+				return value.endsWith(".") ? value.substring(0, value.length() - 1) : value;
+			default:
+				return value;
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package com.sendmail.milter.runtime;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Everything the MTA sent about one message: the connection, the envelope, the macros, the headers and the body,
+ * assembled by an {@link AbstractMessageHandler}.
+ * <p>
+ * The body is kept in a single buffer, reused from message to message, and handed out as read-only views of it; MIME
+ * parts are located in it {@linkplain #getMimeRoot() on demand}. The message, and everything obtained from it, is only
+ * valid during {@link AbstractMessageHandler#evaluate(MilterMessage, com.sendmail.milter.IMilterActions)}.
+ */
+public final class MilterMessage {
+
+	private static final Charset ISO8859 = Charset.forName("ISO-8859-1");
+	private static final HeaderBlock NO_HEADERS = new HeaderBlock();
+
+	private final int initialCapacity;
+	private final int retainedCapacity;
+
+	private String clientHostname = null;
+	private InetAddress clientAddress = null;
+	private String helo = null;
+	private final Properties macros = new Properties();
+
+	private String sender = null;
+	private final List<String> senderArguments = new ArrayList<>();
+	private final List<String> recipients = new ArrayList<>();
+	private HeaderBlock headers = NO_HEADERS;
+	private byte[] body;
+	private int bodyLength = 0;
+	private MimePart mimeRoot = null;
+
+	/**
+	 * @param initialCapacity the initial size of the body buffer.
+	 * @param retainedCapacity the body buffer is dropped back to its initial size after a message that made it grow
+	 * past this.
+	 */
+	MilterMessage(final int initialCapacity, final int retainedCapacity) {
+		this.initialCapacity = initialCapacity;
+		this.retainedCapacity = retainedCapacity;
+		this.body = new byte[initialCapacity];
+	}
+
+	public String getClientHostname() {
+		return clientHostname;
+	}
+
+	/**
+	 * @return the client address, or <code>null</code> if the MTA did not send one.
+	 */
+	public InetAddress getClientAddress() {
+		return clientAddress;
+	}
+
+	/**
+	 * @return the HELO or EHLO argument, or <code>null</code> if the client did not send one.
+	 */
+	public String getHelo() {
+		return helo;
+	}
+
+	/**
+	 * @param name a macro name, like <code>i</code> or <code>{auth_authen}</code>.
+	 * <p>
+	 * @return the most recent value the MTA sent for the macro during the connection, or <code>null</code>.
+	 */
+	public String getMacro(final String name) {
+		return macros.getProperty(name);
+	}
+
+	public Set<String> getMacroNames() {
+		return macros.stringPropertyNames();
+	}
+
+	/**
+	 * @return the envelope sender, as given in MAIL FROM, usually with angle brackets.
+	 */
+	public String getSender() {
+		return sender;
+	}
+
+	/**
+	 * @return the ESMTP arguments of MAIL FROM, like <code>SIZE=1024</code>.
+	 */
+	public List<String> getSenderArguments() {
+		return Collections.unmodifiableList(senderArguments);
+	}
+
+	/**
+	 * @return the envelope recipients accepted so far, as given in RCPT TO.
+	 */
+	public List<String> getRecipients() {
+		return Collections.unmodifiableList(recipients);
+	}
+
+	public HeaderBlock getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * @return the body, as a read-only view.
+	 */
+	public ByteBuffer getBody() {
+		return ByteBuffer.wrap(body, 0, bodyLength).slice().asReadOnlyBuffer();
+	}
+
+	public int getBodyLength() {
+		return bodyLength;
+	}
+
+	/**
+	 * @return the message as a MIME part, whose {@linkplain MimePart#getParts() parts} are parsed when first listed.
+	 */
+	public MimePart getMimeRoot() {
+		if (mimeRoot == null) {
+			mimeRoot = MimePart.root(body, bodyLength, headers);
+		}
+		return mimeRoot;
+	}
+
+	void connect(final String hostname, final InetAddress address) {
+		clientHostname = hostname;
+		clientAddress = address;
+	}
+
+	void helo(final String helohost) {
+		helo = helohost;
+	}
+
+	void addMacros(final Properties properties) {
+		if (properties != null) {
+			macros.putAll(properties);
+		}
+	}
+
+	void sender(final byte[][] argv) {
+		sender = new String(argv[0], ISO8859);
+		for (int i = 1; i < argv.length; ++i) {
+			senderArguments.add(new String(argv[i], ISO8859));
+		}
+	}
+
+	void recipient(final byte[][] argv) {
+		recipients.add(new String(argv[0], ISO8859));
+	}
+
+	void headers(final HeaderBlock block) {
+		headers = block;
+	}
+
+	void appendBody(final ByteBuffer chunk) {
+		final int length = chunk.remaining();
+		if (body.length - bodyLength < length) {
+			body = Arrays.copyOf(body, Math.max(body.length * 2, bodyLength + length));
+		}
+		chunk.duplicate().get(body, bodyLength, length);
+		bodyLength += length;
+	}
+
+	/**
+	 * Forgets the envelope, headers and body, keeping the body buffer for the next message.
+	 */
+	void endTransaction() {
+		sender = null;
+		senderArguments.clear();
+		recipients.clear();
+		headers = NO_HEADERS;
+		bodyLength = 0;
+		mimeRoot = null;
+		if (body.length > retainedCapacity) {
+			body = new byte[initialCapacity];
+		}
+	}
+
+	/**
+	 * Forgets everything, keeping the body buffer for the next connection.
+	 */
+	void endConnection() {
+		endTransaction();
+		clientHostname = null;
+		clientAddress = null;
+		helo = null;
+		macros.clear();
+	}
+}
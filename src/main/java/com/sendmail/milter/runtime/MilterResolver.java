@@ -0,0 +1,305 @@
+package com.sendmail.milter.runtime;
+
+import com.sendmail.milter.internal.ExpiringCache;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caching DNS resolver shared by all handlers of the runner.
+ * <p>
+ * Answers are kept in a bounded cache for the TTL reported by the backend, capped by the configured positive TTL, or
+ * for the configured negative TTL if the name or record does not exist. Failed queries are not cached. Concurrent
+ * lookups of the same question are coalesced into a single query, so a burst of connections from one client costs one
+ * round-trip to the DNS server.
+ */
+public class MilterResolver {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MilterResolver.class);
+
+	private final IResolverBackend backend;
+	private final Executor executor;
+	private final ExpiringCache<String, List<String>> cache;
+	private final ConcurrentMap<String, Lookup> inFlight = new ConcurrentHashMap<>();
+	private final long positiveTtl;
+	private final long negativeTtl;
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param backend performs the actual queries.
+	 * @param executor runs the queries.
+	 * @param capacity maximum number of cached answers.
+	 * @param positiveTtl maximum time in seconds an answer is cached.
+	 * @param negativeTtl time in seconds a non-existent name or record is cached.
+	 */
+	public MilterResolver(final IResolverBackend backend, final Executor executor, final int capacity,
+			final long positiveTtl, final long negativeTtl) {
+		this.backend = backend;
+		this.executor = executor;
+		this.cache = new ExpiringCache<>(capacity, 16);
+		this.positiveTtl = positiveTtl;
+		this.negativeTtl = negativeTtl;
+	}
+
+	/**
+	 * Creates a resolver running its queries on its own pool of daemon threads.
+	 *
+	 * @param backend performs the actual queries.
+	 * @param threads the number of queries that may run concurrently.
+	 * @param capacity maximum number of cached answers.
+	 * @param positiveTtl maximum time in seconds an answer is cached.
+	 * @param negativeTtl time in seconds a non-existent name or record is cached.
+	 */
+	public MilterResolver(final IResolverBackend backend, final int threads, final int capacity,
+			final long positiveTtl, final long negativeTtl) {
+		this(backend, new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+				new LinkedBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread th = new Thread(r, "Milter Resolver-" + count.getAndIncrement());
+						th.setDaemon(true);
+						return th;
+					}
+				}), capacity, positiveTtl, negativeTtl);
+	}
+
+	/**
+	 * Starts a lookup, or joins one already running for the same question.
+	 *
+	 * @param name the name to look up.
+	 * @param type the record type.
+	 * <p>
+	 * @return the future record data; empty if the name or record does not exist. The future fails with an
+	 * {@link IOException} cause if the query failed. It cannot be cancelled, since it may be shared.
+	 */
+	public Future<List<String>> lookupAsync(final String name, final DnsRecordType type) {
+		final String key = key(name, type);
+		final List<String> cached = cache.get(key);
+		if (cached != null) {
+			return new Answered(cached);
+		}
+
+		Lookup lookup = inFlight.get(key);
+		if (lookup == null) {
+			final Lookup created = new Lookup(key, name, type);
+			lookup = inFlight.putIfAbsent(key, created);
+			if (lookup == null) {
+				queries.incrementAndGet();
+				try {
+					executor.execute(created);
+				}
+				catch (RejectedExecutionException ex) {
+					// run it here rather than fail everyone waiting for it
+					LOG.warn("Resolver queue is full, querying on the calling thread");
+					created.run();
+				}
+				return created;
+			}
+		}
+		coalesced.incrementAndGet();
+		return lookup;
+	}
+
+	/**
+	 * Starts a reverse (PTR) lookup of an address.
+	 *
+	 * @param address the address.
+	 * <p>
+	 * @return the future host names, see {@link #lookupAsync(String, DnsRecordType)}.
+	 */
+	public Future<List<String>> reverseAsync(final InetAddress address) {
+		return lookupAsync(reverseName(address), DnsRecordType.PTR);
+	}
+
+	/**
+	 * Looks up a name, waiting at most the given time for the answer.
+	 *
+	 * @param name the name to look up.
+	 * @param type the record type.
+	 * @param timeout how long to wait.
+	 * @param unit unit of <code>timeout</code>.
+	 * <p>
+	 * @return the record data; empty if the name or record does not exist.
+	 * <p>
+	 * @throws IOException if the query failed or did not complete in time.
+	 */
+	public List<String> lookup(final String name, final DnsRecordType type, final long timeout, final TimeUnit unit)
+			throws IOException {
+		final Future<List<String>> future = lookupAsync(name, type);
+		try {
+			return future.get(timeout, unit);
+		}
+		catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			}
+			throw new IOException(ex.getCause());
+		}
+		catch (TimeoutException ex) {
+			throw new IOException("Lookup of " + type + " " + name + " timed out", ex);
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while looking up " + type + " " + name, ex);
+		}
+	}
+
+	/**
+	 * @param address an IPv4 or IPv6 address.
+	 * <p>
+	 * @return the <code>in-addr.arpa</code> or <code>ip6.arpa</code> name of the address.
+	 */
+	public static String reverseName(final InetAddress address) {
+		final byte[] bytes = address.getAddress();
+		final StringBuilder name = new StringBuilder(bytes.length * 4 + 9);
+		if (address instanceof Inet4Address) {
+			for (int i = bytes.length - 1; i >= 0; --i) {
+				name.append(bytes[i] & 0xFF).append('.');
+			}
+			return name.append("in-addr.arpa").toString();
+		}
+		for (int i = bytes.length - 1; i >= 0; --i) {
+			name.append(Character.forDigit(bytes[i] & 0x0F, 16)).append('.');
+			name.append(Character.forDigit((bytes[i] >> 4) & 0x0F, 16)).append('.');
+		}
+		return name.append("ip6.arpa").toString();
+	}
+
+	private static String key(final String name, final DnsRecordType type) {
+		String normalized = name.toLowerCase(Locale.ROOT);
+		if (normalized.endsWith(".")) {
+			normalized = normalized.substring(0, normalized.length() - 1);
+		}
+		return type.name() + ' ' + normalized;
+	}
+
+	/**
+	 * @return the number of queries sent to the backend.
+	 */
+	public long getQueries() {
+		return queries.get();
+	}
+
+	/**
+	 * @return the number of lookups that joined a query already in flight.
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * @return the number of failed queries.
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return the answer cache, for its counters.
+	 */
+	public ExpiringCache<String, List<String>> getCache() {
+		return cache;
+	}
+
+	private final class Lookup extends FutureTask<List<String>> {
+
+		private final String key;
+
+		Lookup(final String key, final String name, final DnsRecordType type) {
+			super(new Callable<List<String>>() {
+				@Override
+				public List<String> call() throws Exception {
+					final ResolverAnswer answer;
+					try {
+						answer = backend.lookup(name, type);
+					}
+					catch (IOException ex) {
+						failures.incrementAndGet();
+						LOG.debug("DNS query failed", ex);
+						throw ex;
+					}
+					final List<String> values = answer.getValues();
+					if (values.isEmpty()) {
+						cache.put(key, values, negativeTtl, TimeUnit.SECONDS);
+					}
+					else {
+						final long ttl = answer.getTtl() < 0 ? positiveTtl : Math.min(answer.getTtl(), positiveTtl);
+						cache.put(key, values, ttl, TimeUnit.SECONDS);
+					}
+					return values;
+				}
+			});
+			this.key = key;
+		}
+
+		@Override
+		protected void done() {
+			inFlight.remove(key, this);
+		}
+
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			// shared by every caller asking the same question
+			return false;
+		}
+	}
+
+	private static final class Answered implements Future<List<String>> {
+
+		private final List<String> values;
+
+		Answered(final List<String> values) {
+			this.values = values;
+		}
+
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return true;
+		}
+
+		@Override
+		public List<String> get() {
+			return values;
+		}
+
+		@Override
+		public List<String> get(final long timeout, final TimeUnit unit) {
+			return values;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.sendmail.milter.runtime;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Services the runner shares between all handlers of all listeners. Handlers get hold of it by implementing
+ * {@link IMilterRuntimeAware}. The runner configures it once at startup, before accepting connections.
+ */
+public class MilterRuntime {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MilterRuntime.class);
+
+	private static final Pattern STORE_NAME = Pattern.compile("[A-Za-z0-9_.-]+");
+
+	private MilterResolver resolver = null;
+	private Path storeDirectory = null;
+	private int storeCapacity = 0;
+	private int storeKeySize = 0;
+	private int storeValueSize = 0;
+	private final Map<String, MilterStore> stores = new HashMap<>();
+
+	/**
+	 * @return the shared caching resolver, or <code>null</code> if the runner has been started without one.
+	 */
+	public MilterResolver getResolver() {
+		return resolver;
+	}
+
+	public void setResolver(final MilterResolver resolver) {
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Enables stores, kept as files in a directory.
+	 *
+	 * @param directory where the files of the stores are.
+	 * @param capacity the default number of entries of a store.
+	 * @param keySize the default longest key, in bytes.
+	 * @param valueSize the default longest value, in bytes.
+	 */
+	public void setStoreDirectory(final Path directory, final int capacity, final int keySize, final int valueSize) {
+		this.storeDirectory = directory;
+		this.storeCapacity = capacity;
+		this.storeKeySize = keySize;
+		this.storeValueSize = valueSize;
+	}
+
+	/**
+	 * @param name the name of the store, made of letters, digits, <code>_</code>, <code>.</code> and
+	 * <code>-</code>. Handlers using the same name share the store.
+	 * <p>
+	 * @return the store, opened with the default sizes if it is not open yet, or <code>null</code> if the runner has
+	 * been started without stores.
+	 * <p>
+	 * @throws IOException if the store cannot be opened.
+	 */
+	public MilterStore getStore(final String name) throws IOException {
+		return getStore(name, storeCapacity, storeKeySize, storeValueSize);
+	}
+
+	/**
+	 * @param name the name of the store, see {@link #getStore(String)}.
+	 * @param capacity the number of entries, if the store is created.
+	 * @param keySize the longest key in bytes, if the store is created.
+	 * @param valueSize the longest value in bytes, if the store is created.
+	 * <p>
+	 * @return the store, or <code>null</code> if the runner has been started without stores.
+	 * <p>
+	 * @throws IOException if the store cannot be opened.
+	 */
+	public synchronized MilterStore getStore(final String name, final int capacity, final int keySize,
+			final int valueSize) throws IOException {
+		if (storeDirectory == null) {
+			return null;
+		}
+		if (!STORE_NAME.matcher(name).matches()) {
+			throw new IllegalArgumentException("Bad store name \"" + name + "\"");
+		}
+		MilterStore store = stores.get(name);
+		if (store == null) {
+			store = new MilterStore(storeDirectory.resolve(name + ".store"), capacity, keySize, valueSize);
+			stores.put(name, store);
+			LOG.info("Opened {}", store);
+		}
+		return store;
+	}
+
+	/**
+	 * @return the stores opened so far.
+	 */
+	public synchronized List<MilterStore> getStores() {
+		return new ArrayList<>(stores.values());
+	}
+
+	/**
+	 * Writes the stores to the disk and closes them. Called by the runner when it shuts down.
+	 */
+	public synchronized void close() {
+		for (MilterStore store : stores.values()) {
+			try {
+				store.close();
+			}
+			catch (IOException e) {
+				LOG.warn("Cannot close " + store, e);
+			}
+		}
+		stores.clear();
+	}
+}
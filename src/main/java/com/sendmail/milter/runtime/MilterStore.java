@@ -0,0 +1,620 @@
+package com.sendmail.milter.runtime;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Key/value store for filter state that outlives a conversation and the runner, like greylisting triplets or sender
+ * reputation, shared by all handlers. Handlers get one by name from {@link MilterRuntime#getStore(String)}.
+ * <p>
+ * The store is a hash table in a memory-mapped file, with a fixed number of fixed-size slots: nothing is allocated on
+ * the heap per entry, and the operating system writes changes to the file in the background. Keys are at most
+ * {@link #getKeySize()} bytes in UTF-8 and values at most {@link #getValueSize()} bytes. The table is split into
+ * segments with a lock each, so concurrent updates of different keys seldom wait for each other.
+ * <p>
+ * Entries may expire, at a time that is kept in the file, so it holds across restarts. Expired entries are not
+ * returned, and their slots are taken by new entries. Every entry carries a checksum, and entries whose checksum does
+ * not match when the file is opened, such as one being written when the machine went down, are dropped.
+ * <p>
+ * Removed entries leave no mark in the table: the later entries of their probe run are moved back into the slot, so
+ * that looking up a missing key stays short under churn. Expired entries are removed the same way as lookups pass
+ * them. An entry being moved when the machine goes down is found twice when the file is opened, and one copy is
+ * dropped.
+ */
+public final class MilterStore implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MilterStore.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long MAGIC = 0x4D696C7453746F72L; // "MiltStor"
+	private static final int VERSION = 1;
+	private static final int HEADER = 32;
+
+	private static final byte EMPTY = 0;
+	private static final byte USED = 1;
+	private static final byte DELETED = 2;
+
+	// slot layout
+	private static final int STATE = 0;
+	private static final int KEY_LENGTH = 2;
+	private static final int VALUE_LENGTH = 4;
+	private static final int EXPIRES = 8;
+	private static final int HASH = 16;
+	private static final int CRC = 20;
+	private static final int KEY = 24;
+
+	/**
+	 * A part of the table, and the lock of that part.
+	 */
+	private final class Segment {
+
+		private final int first;
+		private final int slots;
+		// a view of the file that only this segment positions, under its lock
+		private final ByteBuffer view;
+		private final byte[] record = new byte[slotSize];
+		private final CRC32 crc = new CRC32();
+		private int used = 0;
+
+		Segment(final int first, final int slots) {
+			this.first = first;
+			this.slots = slots;
+			this.view = buffer.duplicate();
+		}
+
+		private int offset(final int slot) {
+			return HEADER + (first + slot) * slotSize;
+		}
+
+		private int home(final int hash) {
+			return (hash & Integer.MAX_VALUE) % slots;
+		}
+
+		/**
+		 * Takes back the slots of the expired entries passed on the way.
+		 *
+		 * @return the slot holding the key in an entry that has not expired, or <code>-1</code>.
+		 */
+		private int find(final byte[] key, final int hash, final long now) {
+			int slot = home(hash);
+			int passed = 0;
+			while (passed < slots) {
+				final int offset = offset(slot);
+				final byte state = view.get(offset + STATE);
+				if (state == EMPTY) {
+					return -1;
+				}
+				if (state == USED && expired(offset, now)) {
+					// a later entry of the run may move into the slot: look at it again
+					delete(slot);
+					reclaimed.incrementAndGet();
+					continue;
+				}
+				if (state == USED && view.getInt(offset + HASH) == hash && keyEquals(offset, key)) {
+					return slot;
+				}
+				slot = (slot + 1) % slots;
+				++passed;
+			}
+			return -1;
+		}
+
+		/**
+		 * Empties a slot and moves the later entries of its probe run back into the hole, so that the run is as if the
+		 * entry had never been there. Each entry is copied before the slot it leaves is reused, so if the machine goes
+		 * down meanwhile, the entry is at worst found twice when the file is opened, and {@link #load()} drops the
+		 * copy lookups do not reach.
+		 */
+		private void delete(final int slot) {
+			view.put(offset(slot) + STATE, DELETED);
+			--used;
+			int hole = slot;
+			int next = slot;
+			for (int n = 1; n < slots; ++n) {
+				next = (next + 1) % slots;
+				final int offset = offset(next);
+				final byte state = view.get(offset + STATE);
+				if (state == EMPTY) {
+					break;
+				}
+				if (state != USED) {
+					continue;
+				}
+				// an entry whose home is after the hole, up to where it is, must stay after the hole
+				final int home = home(view.getInt(offset + HASH));
+				if (hole < next ? hole < home && home <= next : hole < home || home <= next) {
+					continue;
+				}
+				view.position(offset);
+				view.get(record);
+				view.put(offset(hole) + STATE, DELETED);
+				view.position(offset(hole) + KEY_LENGTH);
+				view.put(record, KEY_LENGTH, slotSize - KEY_LENGTH);
+				view.put(offset(hole) + STATE, USED);
+				hole = next;
+			}
+			view.put(offset(hole) + STATE, EMPTY);
+		}
+
+		private boolean keyEquals(final int offset, final byte[] key) {
+			if (view.getShort(offset + KEY_LENGTH) != key.length) {
+				return false;
+			}
+			for (int i = 0; i < key.length; ++i) {
+				if (view.get(offset + KEY + i) != key[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return a slot for a new key, or <code>-1</code> if the segment is full. Expired entries in the way were taken
+		 * back by {@link #find(byte[], int, long)}.
+		 */
+		private int free(final int hash) {
+			final int start = home(hash);
+			for (int i = 0; i < slots; ++i) {
+				final int slot = (start + i) % slots;
+				if (view.get(offset(slot) + STATE) != USED) {
+					return slot;
+				}
+			}
+			return -1;
+		}
+
+		private boolean expired(final int offset, final long now) {
+			final long expires = view.getLong(offset + EXPIRES);
+			return expires != 0 && expires <= now;
+		}
+
+		synchronized byte[] get(final byte[] key, final int hash, final long now) {
+			final int slot = find(key, hash, now);
+			if (slot < 0) {
+				return null;
+			}
+			final int offset = offset(slot);
+			final byte[] value = new byte[view.getInt(offset + VALUE_LENGTH)];
+			view.position(offset + KEY + keySize);
+			view.get(value);
+			return value;
+		}
+
+		synchronized boolean put(final byte[] key, final int hash, final byte[] value, final long expires,
+				final long now) {
+			int slot = find(key, hash, now);
+			if (slot < 0) {
+				slot = free(hash);
+				if (slot < 0) {
+					return false;
+				}
+				++used;
+			}
+			write(slot, key, hash, value, expires);
+			return true;
+		}
+
+		synchronized long increment(final byte[] key, final int hash, final long delta, final long expires,
+				final long now) {
+			int slot = find(key, hash, now);
+			long value = delta;
+			long until = expires;
+			if (slot >= 0) {
+				final int offset = offset(slot);
+				if (view.getInt(offset + VALUE_LENGTH) == 8) {
+					value += view.getLong(offset + KEY + keySize);
+					until = view.getLong(offset + EXPIRES);
+				}
+			}
+			else {
+				slot = free(hash);
+				if (slot < 0) {
+					throw new IllegalStateException("Store is full");
+				}
+				++used;
+			}
+			write(slot, key, hash, ByteBuffer.allocate(8).putLong(value).array(), until);
+			return value;
+		}
+
+		synchronized boolean remove(final byte[] key, final int hash, final long now) {
+			final int slot = find(key, hash, now);
+			if (slot < 0) {
+				return false;
+			}
+			delete(slot);
+			return true;
+		}
+
+		/**
+		 * Writes a record, the state last, so that a record cut short is either not there or fails its checksum.
+		 */
+		private void write(final int slot, final byte[] key, final int hash, final byte[] value, final long expires) {
+			final ByteBuffer r = ByteBuffer.wrap(record);
+			r.putShort(KEY_LENGTH, (short) key.length);
+			r.putInt(VALUE_LENGTH, value.length);
+			r.putLong(EXPIRES, expires);
+			r.putInt(HASH, hash);
+			System.arraycopy(key, 0, record, KEY, key.length);
+			System.arraycopy(value, 0, record, KEY + keySize, value.length);
+			r.putInt(CRC, checksum(crc, record));
+			final int offset = offset(slot);
+			view.position(offset + KEY_LENGTH);
+			view.put(record, KEY_LENGTH, KEY + key.length - KEY_LENGTH);
+			view.position(offset + KEY + keySize);
+			view.put(record, KEY + keySize, value.length);
+			view.put(offset + STATE, USED);
+		}
+
+		/**
+		 * Reads the segment after opening the file, dropping records that fail their checksum and copies left by a
+		 * move cut short.
+		 *
+		 * @return records dropped.
+		 */
+		int load() {
+			int dropped = 0;
+			for (int slot = 0; slot < slots; ++slot) {
+				final int offset = offset(slot);
+				final byte state = view.get(offset + STATE);
+				if (state == USED) {
+					view.position(offset);
+					view.get(record);
+					final ByteBuffer r = ByteBuffer.wrap(record);
+					final int keyLength = r.getShort(KEY_LENGTH);
+					final int valueLength = r.getInt(VALUE_LENGTH);
+					if (keyLength < 0 || keyLength > keySize || valueLength < 0 || valueLength > valueSize
+							|| r.getInt(CRC) != checksum(crc, record)) {
+						view.put(offset + STATE, DELETED);
+						++dropped;
+					}
+					else {
+						++used;
+					}
+				}
+				else if (state != EMPTY && state != DELETED) {
+					view.put(offset + STATE, DELETED);
+					++dropped;
+				}
+			}
+			// deleting moves later entries into the slot, so it is looked at again
+			int slot = 0;
+			while (slot < slots) {
+				final byte state = view.get(offset(slot) + STATE);
+				if (state == DELETED) {
+					++used;
+					delete(slot);
+				}
+				else if (state == USED && isCopy(slot)) {
+					delete(slot);
+				}
+				else {
+					++slot;
+				}
+			}
+			return dropped;
+		}
+
+		/**
+		 * @return <code>true</code> if the key of the entry in the slot is found before it.
+		 */
+		private boolean isCopy(final int slot) {
+			final int offset = offset(slot);
+			final int hash = view.getInt(offset + HASH);
+			for (int other = home(hash); other != slot; other = (other + 1) % slots) {
+				final int otherOffset = offset(other);
+				if (view.get(otherOffset + STATE) == USED && view.getInt(otherOffset + HASH) == hash
+						&& sameKey(offset, otherOffset)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean sameKey(final int offset, final int otherOffset) {
+			final short length = view.getShort(offset + KEY_LENGTH);
+			if (view.getShort(otherOffset + KEY_LENGTH) != length) {
+				return false;
+			}
+			for (int i = 0; i < length; ++i) {
+				if (view.get(offset + KEY + i) != view.get(otherOffset + KEY + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		synchronized int size() {
+			return used;
+		}
+	}
+
+	private final Path path;
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+	private final int keySize;
+	private final int valueSize;
+	private final int slotSize;
+	private final int capacity;
+	private final Segment[] segments;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong full = new AtomicLong();
+	private final AtomicLong reclaimed = new AtomicLong();
+
+	/**
+	 * Opens a store, creating the file if it does not exist. An existing file keeps the sizes it was created with.
+	 *
+	 * @param path the file.
+	 * @param capacity the number of slots, rounded up to a multiple of the number of segments. The table works best
+	 * below three quarters full.
+	 * @param keySize the longest key, in bytes.
+	 * @param valueSize the longest value, in bytes.
+	 * <p>
+	 * @throws IOException if the file cannot be opened or mapped, or is not a store.
+	 */
+	public MilterStore(final Path path, final int capacity, final int keySize, final int valueSize)
+			throws IOException {
+		this.path = path;
+		this.file = new RandomAccessFile(path.toFile(), "rw");
+		try {
+			final boolean created = file.length() == 0;
+			if (created) {
+				if (capacity < 1 || keySize < 1 || keySize > Short.MAX_VALUE || valueSize < 0) {
+					throw new IllegalArgumentException("Bad store geometry");
+				}
+				this.keySize = keySize;
+				this.valueSize = valueSize;
+				this.capacity = roundUp(capacity, segmentCount(capacity));
+			}
+			else {
+				final ByteBuffer header = ByteBuffer.allocate(HEADER);
+				file.getChannel().read(header, 0);
+				header.flip();
+				if (header.remaining() < HEADER || header.getLong() != MAGIC || header.getInt() != VERSION) {
+					throw new IOException(path + " is not a store");
+				}
+				this.capacity = header.getInt();
+				this.keySize = header.getInt();
+				this.valueSize = header.getInt();
+				if (this.capacity != roundUp(capacity, segmentCount(capacity)) || this.keySize != keySize
+						|| this.valueSize != valueSize) {
+					LOG.warn("Store {} keeps its sizes: {} slots, {} byte keys, {} byte values", path, this.capacity,
+							this.keySize, this.valueSize);
+				}
+			}
+			this.slotSize = roundUp(KEY + this.keySize + this.valueSize, 8);
+			final long size = HEADER + (long) this.capacity * slotSize;
+			if (size > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Store would be larger than 2 GiB");
+			}
+			this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			if (created) {
+				buffer.putLong(0, MAGIC).putInt(8, VERSION).putInt(12, this.capacity).putInt(16, this.keySize)
+						.putInt(20, this.valueSize);
+			}
+			final int count = segmentCount(this.capacity);
+			final int perSegment = this.capacity / count;
+			this.segments = new Segment[count];
+			int dropped = 0;
+			for (int i = 0; i < count; ++i) {
+				segments[i] = new Segment(i * perSegment, perSegment);
+				if (!created) {
+					dropped += segments[i].load();
+				}
+			}
+			if (dropped > 0) {
+				LOG.warn("Store {}: dropped {} damaged entries", path, dropped);
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	private static int segmentCount(final int capacity) {
+		return capacity >= 1024 ? 64 : 1;
+	}
+
+	private static int roundUp(final int value, final int multiple) {
+		return (value + multiple - 1) / multiple * multiple;
+	}
+
+	/**
+	 * @return the checksum of the lengths, expiry time, hash, key and value of a record with valid lengths.
+	 */
+	private int checksum(final CRC32 crc, final byte[] record) {
+		final ByteBuffer r = ByteBuffer.wrap(record);
+		crc.reset();
+		crc.update(record, KEY_LENGTH, CRC - KEY_LENGTH);
+		crc.update(record, KEY, r.getShort(KEY_LENGTH));
+		crc.update(record, KEY + keySize, r.getInt(VALUE_LENGTH));
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * @return the hash of a key, spread so that both the segment and the slot in it take from it.
+	 */
+	private static int hash(final byte[] key) {
+		int h = 0x811C9DC5;
+		for (byte b : key) {
+			h = (h ^ b) * 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	private Segment segment(final int hash) {
+		return segments[(hash >>> 26) % segments.length];
+	}
+
+	private byte[] key(final String key) {
+		final byte[] bytes = key.getBytes(UTF8);
+		if (bytes.length > keySize) {
+			throw new IllegalArgumentException("Key longer than " + keySize + " bytes");
+		}
+		return bytes;
+	}
+
+	private static long expires(final long ttl, final TimeUnit unit, final long now) {
+		return ttl <= 0 ? 0 : now + unit.toMillis(ttl);
+	}
+
+	/**
+	 * @param key the key.
+	 * <p>
+	 * @return the value, or <code>null</code> if there is none or it has expired.
+	 */
+	public byte[] get(final String key) {
+		final byte[] k = key(key);
+		final int hash = hash(k);
+		final byte[] value = segment(hash).get(k, hash, System.currentTimeMillis());
+		(value == null ? misses : hits).incrementAndGet();
+		return value;
+	}
+
+	/**
+	 * @param key the key.
+	 * <p>
+	 * @return the value stored by {@link #putLong(String, long, long, TimeUnit)} or
+	 * {@link #increment(String, long, long, TimeUnit)}, or <code>null</code> if there is none or it has expired.
+	 */
+	public Long getLong(final String key) {
+		final byte[] value = get(key);
+		return value == null || value.length != 8 ? null : ByteBuffer.wrap(value).getLong();
+	}
+
+	/**
+	 * Stores a value, replacing the one stored under the key.
+	 *
+	 * @param key the key.
+	 * @param value the value.
+	 * @param ttl how long the entry is kept, 0 for ever.
+	 * @param unit the unit of <code>ttl</code>.
+	 * <p>
+	 * @return <code>false</code> if the store is full.
+	 */
+	public boolean put(final String key, final byte[] value, final long ttl, final TimeUnit unit) {
+		if (value.length > valueSize) {
+			throw new IllegalArgumentException("Value longer than " + valueSize + " bytes");
+		}
+		final byte[] k = key(key);
+		final int hash = hash(k);
+		final long now = System.currentTimeMillis();
+		if (segment(hash).put(k, hash, value, expires(ttl, unit, now), now)) {
+			return true;
+		}
+		full.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Stores a number, replacing the value stored under the key.
+	 *
+	 * @see #put(String, byte[], long, TimeUnit)
+	 */
+	public boolean putLong(final String key, final long value, final long ttl, final TimeUnit unit) {
+		return put(key, ByteBuffer.allocate(8).putLong(value).array(), ttl, unit);
+	}
+
+	/**
+	 * Adds to the number stored under the key, in one step. A new entry, or one replacing an expired entry or a value
+	 * that is not a number, starts from 0 and expires after the TTL; an existing entry keeps its expiry time, so the
+	 * count covers a fixed window.
+	 *
+	 * @param key the key.
+	 * @param delta the number to add.
+	 * @param ttl how long a new entry is kept, 0 for ever.
+	 * @param unit the unit of <code>ttl</code>.
+	 * <p>
+	 * @return the new number.
+	 * <p>
+	 * @throws IllegalStateException if the store is full.
+	 */
+	public long increment(final String key, final long delta, final long ttl, final TimeUnit unit) {
+		if (valueSize < 8) {
+			throw new IllegalArgumentException("Values shorter than 8 bytes");
+		}
+		final byte[] k = key(key);
+		final int hash = hash(k);
+		final long now = System.currentTimeMillis();
+		try {
+			return segment(hash).increment(k, hash, delta, expires(ttl, unit, now), now);
+		}
+		catch (IllegalStateException e) {
+			full.incrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param key the key.
+	 * <p>
+	 * @return <code>true</code> if there was an entry that had not expired.
+	 */
+	public boolean remove(final String key) {
+		final byte[] k = key(key);
+		final int hash = hash(k);
+		return segment(hash).remove(k, hash, System.currentTimeMillis());
+	}
+
+	/**
+	 * @return the entries in the store, including expired ones whose slots have not been taken yet.
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getKeySize() {
+		return keySize;
+	}
+
+	public int getValueSize() {
+		return valueSize;
+	}
+
+	/**
+	 * Writes the changes to the disk, for when they must survive the machine going down, not just the runner.
+	 */
+	public void flush() {
+		buffer.force();
+	}
+
+	/**
+	 * Writes the changes to the disk and closes the file. The store must not be used afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+		file.close();
+	}
+
+	@Override
+	public String toString() {
+		return "store " + path.getFileName() + ": entries=" + size() + " slots=" + capacity + " hits=" + hits.get()
+				+ " misses=" + misses.get() + " full=" + full.get() + " reclaimed=" + reclaimed.get();
+	}
+}
@@ -0,0 +1,276 @@
+package com.sendmail.milter.runtime;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A MIME part of a {@link MilterMessage}, located by offsets into the message body. Nothing is parsed or copied until
+ * asked for: the headers of a part when one is first looked up, the parts of a multipart when they are first listed.
+ * <p>
+ * Like the message, a part is only valid until the end of the message it belongs to.
+ */
+public final class MimePart {
+
+	private static final Charset ISO8859 = Charset.forName("ISO-8859-1");
+	private static final String TEXT_PLAIN = "text/plain";
+	private static final String MESSAGE_RFC822 = "message/rfc822";
+
+	private final byte[] data;
+	private final int start;
+	private final int bodyStart;
+	private final int end;
+	private final HeaderBlock messageHeaders;
+	private final String defaultType;
+	// name, value, name, value...
+	private List<String> headers = null;
+	private List<MimePart> parts = null;
+
+	private MimePart(final byte[] data, final int start, final int bodyStart, final int end,
+			final HeaderBlock messageHeaders, final String defaultType) {
+		this.data = data;
+		this.start = start;
+		this.bodyStart = bodyStart;
+		this.end = end;
+		this.messageHeaders = messageHeaders;
+		this.defaultType = defaultType;
+	}
+
+	/**
+	 * @return the message itself as a part: the message headers and the whole body.
+	 */
+	static MimePart root(final byte[] body, final int length, final HeaderBlock headers) {
+		return new MimePart(body, 0, 0, length, headers, TEXT_PLAIN);
+	}
+
+	private static MimePart child(final byte[] data, final int start, final int end, final String defaultType) {
+		// the headers end at the first empty line, which may be the very first one
+		int bodyStart = end;
+		int line = start;
+		while (line < end) {
+			final int next = lineEnd(data, line, end);
+			if (next - line == 0 || next - line == 1 && data[line] == '\r') {
+				bodyStart = next < end ? next + 1 : end;
+				break;
+			}
+			line = next + 1;
+		}
+		return new MimePart(data, start, bodyStart, end, null, defaultType);
+	}
+
+	/**
+	 * @param name a header name, compared case-insensitively.
+	 * <p>
+	 * @return the value of the first header of that name, or <code>null</code>.
+	 */
+	public String getHeader(final String name) {
+		if (messageHeaders != null) {
+			return messageHeaders.getFirst(name);
+		}
+		final List<String> list = parseHeaders();
+		for (int i = 0; i < list.size(); i += 2) {
+			if (list.get(i).equalsIgnoreCase(name)) {
+				return list.get(i + 1);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the <code>Content-Type</code> header, or the default for the part, <code>text/plain</code> or
+	 * <code>message/rfc822</code> in a digest.
+	 */
+	public String getContentType() {
+		final String value = getHeader("Content-Type");
+		return value == null ? defaultType : value;
+	}
+
+	/**
+	 * @return the media type and subtype, lower case and without parameters, like <code>text/html</code>.
+	 */
+	public String getMimeType() {
+		final String value = getContentType();
+		final int semicolon = value.indexOf(';');
+		final String type = (semicolon < 0 ? value : value.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+		return type.isEmpty() || type.indexOf('/') < 0 ? defaultType : type;
+	}
+
+	/**
+	 * @param name a <code>Content-Type</code> parameter, like <code>charset</code>. Compared case-insensitively.
+	 * <p>
+	 * @return its value, unquoted, or <code>null</code>.
+	 */
+	public String getParameter(final String name) {
+		final String value = getContentType();
+		int pos = value.indexOf(';');
+		while (pos >= 0 && pos < value.length()) {
+			final int eq = value.indexOf('=', pos + 1);
+			if (eq < 0) {
+				return null;
+			}
+			final String key = value.substring(pos + 1, eq).trim();
+			int valueEnd;
+			String found;
+			int i = eq + 1;
+			while (i < value.length() && Character.isWhitespace(value.charAt(i))) {
+				++i;
+			}
+			if (i < value.length() && value.charAt(i) == '"') {
+				final StringBuilder sb = new StringBuilder();
+				for (++i; i < value.length() && value.charAt(i) != '"'; ++i) {
+					if (value.charAt(i) == '\\' && i + 1 < value.length()) {
+						++i;
+					}
+					sb.append(value.charAt(i));
+				}
+				found = sb.toString();
+				valueEnd = value.indexOf(';', i);
+			}
+			else {
+				valueEnd = value.indexOf(';', i);
+				found = (valueEnd < 0 ? value.substring(i) : value.substring(i, valueEnd)).trim();
+			}
+			if (key.equalsIgnoreCase(name)) {
+				return found;
+			}
+			pos = valueEnd;
+		}
+		return null;
+	}
+
+	public boolean isMultipart() {
+		return getMimeType().startsWith("multipart/");
+	}
+
+	/**
+	 * @return the content of the part, after its headers, as a read-only view of the message body.
+	 */
+	public ByteBuffer getBody() {
+		return ByteBuffer.wrap(data, bodyStart, end - bodyStart).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return where the content of the part starts in the message body.
+	 */
+	public int getBodyOffset() {
+		return bodyStart;
+	}
+
+	public int getBodyLength() {
+		return end - bodyStart;
+	}
+
+	/**
+	 * @return the parts of a multipart, in order, or an empty list if this is not one or has no boundary.
+	 */
+	public List<MimePart> getParts() {
+		if (parts == null) {
+			parts = isMultipart() ? split() : Collections.<MimePart>emptyList();
+		}
+		return parts;
+	}
+
+	private List<MimePart> split() {
+		final String boundary = getParameter("boundary");
+		if (boundary == null || boundary.isEmpty()) {
+			return Collections.emptyList();
+		}
+		final byte[] delimiter = ("--" + boundary).getBytes(ISO8859);
+		final String childType = "multipart/digest".equals(getMimeType()) ? MESSAGE_RFC822 : TEXT_PLAIN;
+		final List<MimePart> result = new ArrayList<>();
+		int partStart = -1;
+		int line = bodyStart;
+		while (line < end) {
+			final int next = lineEnd(data, line, end);
+			if (isDelimiter(line, next, delimiter)) {
+				if (partStart >= 0) {
+					// the line break before the delimiter belongs to it
+					int partEnd = line;
+					if (partEnd > partStart && data[partEnd - 1] == '\n') {
+						--partEnd;
+					}
+					if (partEnd > partStart && data[partEnd - 1] == '\r') {
+						--partEnd;
+					}
+					result.add(child(data, partStart, partEnd, childType));
+				}
+				final int after = line + delimiter.length;
+				if (after + 1 < next && data[after] == '-' && data[after + 1] == '-') {
+					partStart = -1;
+					break;
+				}
+				partStart = next < end ? next + 1 : end;
+			}
+			line = next + 1;
+		}
+		if (partStart >= 0 && partStart < end) {
+			// not closed, the last part runs to the end
+			result.add(child(data, partStart, end, childType));
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	private boolean isDelimiter(final int line, final int lineEnd, final byte[] delimiter) {
+		if (lineEnd - line < delimiter.length) {
+			return false;
+		}
+		for (int i = 0; i < delimiter.length; ++i) {
+			if (data[line + i] != delimiter[i]) {
+				return false;
+			}
+		}
+		// not just a longer boundary with the same start
+		if (line + delimiter.length == lineEnd) {
+			return true;
+		}
+		final byte b = data[line + delimiter.length];
+		return b == '-' || b == '\r' || b == ' ' || b == '\t';
+	}
+
+	private List<String> parseHeaders() {
+		if (headers == null) {
+			final List<String> list = new ArrayList<>();
+			int line = start;
+			while (line < bodyStart) {
+				int next = lineEnd(data, line, bodyStart);
+				int contentEnd = next > line && data[next - 1] == '\r' ? next - 1 : next;
+				if (contentEnd == line) {
+					break;
+				}
+				if ((data[line] == ' ' || data[line] == '\t') && !list.isEmpty()) {
+					// folded continuation of the previous value
+					final int last = list.size() - 1;
+					list.set(last, list.get(last) + ' ' + new String(data, line, contentEnd - line, ISO8859).trim());
+				}
+				else {
+					int colon = line;
+					while (colon < contentEnd && data[colon] != ':') {
+						++colon;
+					}
+					if (colon < contentEnd) {
+						list.add(new String(data, line, colon - line, ISO8859).trim());
+						list.add(new String(data, colon + 1, contentEnd - colon - 1, ISO8859).trim());
+					}
+				}
+				line = next + 1;
+			}
+			headers = list;
+		}
+		return headers;
+	}
+
+	/**
+	 * @return the position of the LF ending the line starting at <code>from</code>, or <code>end</code>.
+	 */
+	private static int lineEnd(final byte[] data, final int from, final int end) {
+		for (int i = from; i < end; ++i) {
+			if (data[i] == '\n') {
+				return i;
+			}
+		}
+		return end;
+	}
+}
@@ -0,0 +1,33 @@
+package com.sendmail.milter.runtime;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The answer to a single DNS question, as returned by an {@link IResolverBackend}.
+ */
+public final class ResolverAnswer {
+
+	private final List<String> values;
+	private final long ttl;
+
+	/**
+	 * @param values the record data, in presentation format. Empty if the name or record does not exist.
+	 * @param ttl time to live in seconds, or a negative number if the backend does not know it.
+	 */
+	public ResolverAnswer(final List<String> values, final long ttl) {
+		this.values = Collections.unmodifiableList(values);
+		this.ttl = ttl;
+	}
+
+	public List<String> getValues() {
+		return values;
+	}
+
+	/**
+	 * @return time to live in seconds, or a negative number if unknown.
+	 */
+	public long getTtl() {
+		return ttl;
+	}
+}
@@ -0,0 +1,6 @@
+/**
+ * Optional extensions offered by the runner to {@link com.sendmail.milter.IMilterHandler} implementations. A handler
+ * opts into a feature by implementing the corresponding interface from this package; handlers that do not are run
+ * exactly as before.
+ */
+package com.sendmail.milter.runtime;
@@ -0,0 +1,119 @@
+package com.sendmail.milter.standalone;
+
+import com.sendmail.milter.internal.AuditLog;
+import com.sendmail.milter.internal.AuditRecord;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Prints the records of audit log segments as CSV or as JSON, one object per line, for loading into other tools.
+ */
+public class AuditReader {
+
+	private static void usage() {
+		System.out.println("Usage: [ -j ] <segment file or directory>...");
+		System.out.println();
+		System.out.println("       -j -- print JSON, one object per line, instead of CSV.");
+		System.out.println("       Directories are read for their segments, oldest first.");
+		System.out.println();
+	}
+
+	/**
+	 * Prints the records of a segment.
+	 *
+	 * @param segment the segment file.
+	 * @param json print JSON instead of CSV.
+	 * @param out where to print.
+	 * <p>
+	 * @return the number of records printed.
+	 * <p>
+	 * @throws IOException if the file cannot be read or is not a segment.
+	 */
+	static long read(final File segment, final boolean json, final Writer out) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+			final ByteBuffer records = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			if (records.limit() < AuditLog.HEADER || records.getLong(0) != AuditLog.MAGIC) {
+				throw new IOException(segment + " is not an audit segment");
+			}
+			if (records.getInt(8) != AuditLog.VERSION || records.getInt(12) != AuditRecord.SIZE) {
+				throw new IOException(segment + " has an unknown format");
+			}
+			final StringBuilder line = new StringBuilder(512);
+			long count = 0;
+			for (int offset = AuditLog.HEADER; offset + AuditRecord.SIZE <= records.limit()
+					&& AuditRecord.exists(records, offset); offset += AuditRecord.SIZE) {
+				line.setLength(0);
+				if (json) {
+					AuditRecord.appendJson(line, records, offset);
+				}
+				else {
+					AuditRecord.appendCsv(line, records, offset);
+				}
+				out.write(line.append('\n').toString());
+				++count;
+			}
+			return count;
+		}
+	}
+
+	public static void main(final String[] args) throws IOException {
+		boolean json = false;
+		final List<File> segments = new ArrayList<>();
+		for (String arg : args) {
+			if ("-j".equals(arg)) {
+				json = true;
+				continue;
+			}
+			final File file = new File(arg);
+			if (file.isDirectory()) {
+				final File[] files = file.listFiles();
+				if (files != null) {
+					Arrays.sort(files);
+					for (File f : files) {
+						if (f.getName().endsWith(AuditLog.SUFFIX)) {
+							segments.add(f);
+						}
+					}
+				}
+			}
+			else {
+				segments.add(file);
+			}
+		}
+		if (segments.isEmpty()) {
+			usage();
+			System.exit(1);
+		}
+
+		final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, Charset.forName("UTF-8")), 65536);
+		if (!json) {
+			out.write(AuditRecord.csvHeader());
+			out.write('\n');
+		}
+		boolean failed = false;
+		for (File segment : segments) {
+			try {
+				read(segment, json, out);
+			}
+			catch (IOException e) {
+				System.err.println(e.getMessage());
+				failed = true;
+			}
+		}
+		out.flush();
+		if (failed) {
+			System.exit(2);
+		}
+	}
+}
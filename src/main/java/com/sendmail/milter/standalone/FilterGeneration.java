@@ -0,0 +1,73 @@
+package com.sendmail.milter.standalone;
+
+import com.sendmail.milter.internal.MilterContext;
+import com.sendmail.milter.internal.MilterHandlerPool;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The context a listener hands to new conversations, counting the conversations still using it. A listener holds one
+ * reference to its current generation; conversations hold one each. When the listener moves on to a new generation
+ * and the last conversation of the old one ends, the old one is disposed of, releasing its filter jar.
+ */
+final class FilterGeneration {
+
+	private static final Logger LOG = LoggerFactory.getLogger(FilterGeneration.class);
+
+	private final MilterContext context;
+	private final FilterJar.Version version;
+	// starts with the reference held by the listener
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	/**
+	 * @param context the context for conversations of this generation.
+	 * @param version the loaded jar the factory comes from, or <code>null</code> if it is not managed by the runner.
+	 */
+	FilterGeneration(final MilterContext context, final FilterJar.Version version) {
+		this.context = context;
+		this.version = version;
+		if (version != null) {
+			version.retain();
+		}
+	}
+
+	MilterContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Adds a conversation.
+	 *
+	 * @return <code>false</code> if the generation has already been disposed of and the caller must use the current one.
+	 */
+	boolean retain() {
+		while (true) {
+			final int current = references.get();
+			if (current == 0) {
+				return false;
+			}
+			if (references.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Removes a conversation, or the listener reference.
+	 */
+	void release() {
+		if (references.decrementAndGet() == 0) {
+			LOG.debug("Generation drained, disposing of it");
+			final MilterHandlerPool pool = context.getHandlerPool();
+			if (pool != null) {
+				pool.clear();
+			}
+			if (version != null) {
+				version.release();
+			}
+		}
+	}
+}
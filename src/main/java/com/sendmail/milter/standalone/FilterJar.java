@@ -0,0 +1,222 @@
+package com.sendmail.milter.standalone;
+
+import com.sendmail.milter.runtime.MilterRuntime;
+import com.sendmail.milter.spi.IMilterHandlerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A filter jar and the listeners serving it. The jar is loaded from a private copy, so it can be replaced on disk
+ * while in use. When it changes, {@link #reloadIfChanged()} loads the new version in a fresh class loader and moves
+ * the listeners over to it: new conversations use the new version, conversations in progress finish on the old one,
+ * and the old class loader is closed once they have all ended.
+ * <p>
+ * Listeners configured with the same jar share one instance, and so one class loader and one handler factory: the
+ * classes are loaded, warmed up and compiled once, and whatever the filter keeps in statics is shared by all of them.
+ */
+final class FilterJar {
+
+	private static final Logger LOG = LoggerFactory.getLogger(FilterJar.class);
+
+	private final File jar;
+	private final MilterRuntime runtime;
+	private final List<SimpleMilterServer> listeners = new ArrayList<>();
+	private Version current = null;
+	private long loadedStamp;
+	private long seenStamp;
+
+	/**
+	 * A loaded version of the jar, shared by the generations of all listeners of the jar.
+	 */
+	static final class Version {
+
+		private final URLClassLoader loader;
+		private final Path copy;
+		private final IMilterHandlerFactory factory;
+		private final AtomicInteger references = new AtomicInteger();
+
+		private Version(final URLClassLoader loader, final Path copy, final IMilterHandlerFactory factory) {
+			this.loader = loader;
+			this.copy = copy;
+			this.factory = factory;
+		}
+
+		IMilterHandlerFactory getFactory() {
+			return factory;
+		}
+
+		void retain() {
+			references.incrementAndGet();
+		}
+
+		void release() {
+			if (references.decrementAndGet() == 0) {
+				LOG.info("Releasing filter class loader for " + copy);
+				try {
+					loader.close();
+				}
+				catch (IOException ex) {
+					LOG.warn("Cannot close filter class loader", ex);
+				}
+				try {
+					Files.deleteIfExists(copy);
+				}
+				catch (IOException ex) {
+					LOG.warn("Cannot delete " + copy, ex);
+				}
+			}
+		}
+	}
+
+	FilterJar(final File jar, final MilterRuntime runtime) {
+		this.jar = jar;
+		this.runtime = runtime;
+	}
+
+	File getFile() {
+		return jar;
+	}
+
+	/**
+	 * @param jar a filter jar.
+	 * <p>
+	 * @return the key under which listeners share the loaded jar: its canonical path and the SHA-256 of its content.
+	 * <p>
+	 * @throws IOException if the jar cannot be read.
+	 */
+	static String sharingKey(final File jar) throws IOException {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException ex) {
+			// every Java platform has it
+			throw new IllegalStateException(ex);
+		}
+		try (InputStream in = Files.newInputStream(jar.toPath())) {
+			final byte[] buffer = new byte[65536];
+			for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return jar.getCanonicalPath() + '#' + String.format("%064x", new BigInteger(1, digest.digest()));
+	}
+
+	private long stamp() {
+		// size in the low bits catches rewrites within the timestamp resolution
+		return jar.lastModified() * 31 + jar.length();
+	}
+
+	/**
+	 * Loads the jar as it is on disk now.
+	 *
+	 * @return the loaded version, or <code>null</code> if the jar holds no filter implementation.
+	 * <p>
+	 * @throws IOException if the jar cannot be copied or read.
+	 */
+	private Version load() throws IOException {
+		final long stamp = stamp();
+		final Path copy = Files.createTempFile("milter-", ".jar");
+		Files.copy(jar.toPath(), copy, StandardCopyOption.REPLACE_EXISTING);
+		copy.toFile().deleteOnExit();
+
+		final URLClassLoader loader = URLClassLoader.newInstance(new URL[]{copy.toUri().toURL()});
+		final Iterator<IMilterHandlerFactory> it = ServiceLoader.load(IMilterHandlerFactory.class, loader).iterator();
+		if (!it.hasNext()) {
+			loader.close();
+			Files.deleteIfExists(copy);
+			return null;
+		}
+		final Version version = new Version(loader, copy, it.next());
+		loadedStamp = stamp;
+		seenStamp = stamp;
+		return version;
+	}
+
+	/**
+	 * Loads the jar for the first time.
+	 *
+	 * @return the factory, or <code>null</code> if the jar holds no filter implementation.
+	 * <p>
+	 * @throws IOException if the jar cannot be copied or read.
+	 */
+	synchronized IMilterHandlerFactory initialize() throws IOException {
+		current = load();
+		return current == null ? null : current.getFactory();
+	}
+
+	/**
+	 * @return the version loaded last.
+	 */
+	synchronized Version getVersion() {
+		return current;
+	}
+
+	/**
+	 * Registers a listener serving this jar, so it is moved along on reloads.
+	 */
+	synchronized void addListener(final SimpleMilterServer listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Reloads the jar if it has changed and has stayed the same since the previous check, so a jar that is still being
+	 * written is not picked up.
+	 */
+	synchronized void reloadIfChanged() {
+		final long stamp = stamp();
+		if (stamp == loadedStamp || !jar.isFile()) {
+			return;
+		}
+		if (stamp != seenStamp) {
+			seenStamp = stamp;
+			return;
+		}
+		reload();
+	}
+
+	/**
+	 * Loads the jar again and moves all listeners to the new version.
+	 */
+	synchronized void reload() {
+		final Version next;
+		try {
+			next = load();
+		}
+		catch (IOException | RuntimeException | LinkageError ex) {
+			LOG.error("Cannot reload " + jar.getAbsolutePath() + ", keeping the running version", ex);
+			loadedStamp = stamp();
+			return;
+		}
+		if (next == null) {
+			LOG.error("The file " + jar.getAbsolutePath() + " does not contain a Milter implementation anymore,"
+					+ " keeping the running version");
+			return;
+		}
+		LOG.info("Reloaded " + jar.getAbsolutePath());
+		current = next;
+		for (SimpleMilterServer listener : listeners) {
+			listener.replaceGeneration(new FilterGeneration(
+					SimpleMilterServer.createContext(next.getFactory(), runtime, listener.getSocketAddress(),
+							listener.getContext()), next));
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package com.sendmail.milter.standalone;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listening sockets handed to the runner by whatever started it, so that they outlive the JVM and connections queue up
+ * in the kernel during a restart instead of being refused.
+ * <p>
+ * Two sources are supported: {@link System#inheritedChannel()}, which is what systemd passes with
+ * <code>StandardInput=socket</code> and inetd with <code>wait</code>, and the <code>LISTEN_FDS</code> protocol of
+ * systemd socket activation. The JDK has no public way to wrap an arbitrary file descriptor, so the latter goes
+ * through JDK internals; on Java 9 and later it needs
+ * <code>--add-opens java.base/sun.nio.ch=ALL-UNNAMED --add-opens java.base/java.io=ALL-UNNAMED</code>.
+ */
+final class InheritedChannels {
+
+	private static final Logger LOG = LoggerFactory.getLogger(InheritedChannels.class);
+
+	// first descriptor passed by systemd, SD_LISTEN_FDS_START
+	private static final int LISTEN_FDS_START = 3;
+
+	private final List<ServerSocketChannel> channels = new ArrayList<>();
+
+	private InheritedChannels() {
+	}
+
+	/**
+	 * Collects the listening sockets passed to this process.
+	 *
+	 * @return the sockets, possibly none.
+	 */
+	static InheritedChannels collect() {
+		final InheritedChannels inherited = new InheritedChannels();
+		try {
+			final Channel channel = System.inheritedChannel();
+			if (channel instanceof ServerSocketChannel) {
+				inherited.channels.add((ServerSocketChannel) channel);
+			}
+		}
+		catch (IOException | SecurityException ex) {
+			LOG.warn("Cannot get the inherited channel", ex);
+		}
+
+		final String fds = System.getenv("LISTEN_FDS");
+		final String pid = System.getenv("LISTEN_PID");
+		if (fds != null && (pid == null || pid.equals(ownPid()))) {
+			try {
+				final int count = Integer.parseInt(fds.trim());
+				for (int fd = LISTEN_FDS_START; fd < LISTEN_FDS_START + count; ++fd) {
+					inherited.channels.add(open(fd));
+				}
+			}
+			catch (NumberFormatException ex) {
+				LOG.error("Invalid LISTEN_FDS: " + fds);
+			}
+			catch (IOException | ReflectiveOperationException | RuntimeException ex) {
+				LOG.error("Cannot use the sockets passed in LISTEN_FDS. Use StandardInput=socket for a single socket,"
+						+ " or open up the JDK internals, see the README", ex);
+			}
+		}
+
+		for (ServerSocketChannel channel : inherited.channels) {
+			LOG.info("Inherited listening socket " + channel.socket().getLocalSocketAddress());
+		}
+		return inherited;
+	}
+
+	private static String ownPid() {
+		// "pid@host" on every JVM that matters
+		final String name = ManagementFactory.getRuntimeMXBean().getName();
+		final int at = name.indexOf('@');
+		return at > 0 ? name.substring(0, at) : name;
+	}
+
+	private static ServerSocketChannel open(final int fd) throws IOException, ReflectiveOperationException {
+		final FileDescriptor descriptor = new FileDescriptor();
+		final Field field = FileDescriptor.class.getDeclaredField("fd");
+		field.setAccessible(true);
+		field.setInt(descriptor, fd);
+
+		final Class<?> impl = Class.forName("sun.nio.ch.ServerSocketChannelImpl");
+		final Constructor<?> constructor = impl.getDeclaredConstructor(SelectorProvider.class, FileDescriptor.class,
+				boolean.class);
+		constructor.setAccessible(true);
+		return (ServerSocketChannel) constructor.newInstance(SelectorProvider.provider(), descriptor, true);
+	}
+
+	/**
+	 * Takes the inherited socket listening on an endpoint, if any.
+	 *
+	 * @param endpoint the configured endpoint of a listener.
+	 * <p>
+	 * @return the socket, configured for blocking accepts, or <code>null</code> if none matches.
+	 * <p>
+	 * @throws IOException if the socket cannot be configured.
+	 */
+	ServerSocketChannel take(final InetSocketAddress endpoint) throws IOException {
+		for (Iterator<ServerSocketChannel> it = channels.iterator(); it.hasNext();) {
+			final ServerSocketChannel channel = it.next();
+			final SocketAddress bound = channel.socket().getLocalSocketAddress();
+			if (!(bound instanceof InetSocketAddress)) {
+				continue;
+			}
+			final InetSocketAddress local = (InetSocketAddress) bound;
+			if (local.getPort() == endpoint.getPort()
+					&& (local.getAddress().isAnyLocalAddress() || local.getAddress().equals(endpoint.getAddress()))) {
+				it.remove();
+				channel.configureBlocking(true);
+				return channel;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Warns about inherited sockets no listener is configured for. They are left open, so the MTA keeps queueing
+	 * connections on them rather than seeing them refused.
+	 */
+	void warnUnused() {
+		for (ServerSocketChannel channel : channels) {
+			LOG.warn("No listener configured for inherited socket " + channel.socket().getLocalSocketAddress());
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package com.sendmail.milter.standalone;
+
+import com.sendmail.milter.MilterConstants;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * One Milter packet as it goes over the wire, length included, read into a buffer that is reused for the next one.
+ * The proxy forwards packets without looking into them beyond the command and, for option negotiation, the flags.
+ */
+final class MilterFrame {
+
+	/**
+	 * Longest packet accepted, far above anything an MTA or the runner sends.
+	 */
+	static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+	private byte[] data = new byte[4096];
+	private int length = 0;
+
+	/**
+	 * Reads the next packet.
+	 *
+	 * @param in the stream to read from.
+	 * <p>
+	 * @return <code>false</code> if the stream ended before the packet started.
+	 * <p>
+	 * @throws IOException on read problems, a stream ending within a packet, or a bad packet length.
+	 */
+	boolean read(final DataInputStream in) throws IOException {
+		final int packetLength;
+		try {
+			packetLength = in.readInt();
+		}
+		catch (EOFException e) {
+			return false;
+		}
+		if (packetLength < 1 || packetLength > MAX_LENGTH) {
+			throw new IOException("Bad packet length " + packetLength);
+		}
+		length = packetLength + 4;
+		if (data.length < length) {
+			data = new byte[Math.max(length, data.length * 2)];
+		}
+		ByteBuffer.wrap(data).putInt(packetLength);
+		in.readFully(data, 4, packetLength);
+		return true;
+	}
+
+	int getCommand() {
+		return data[4] & 0xFF;
+	}
+
+	/**
+	 * @param offset an offset into the packet data, after the command.
+	 * <p>
+	 * @return the 32 bit integer at the offset, or 0 if the data is shorter.
+	 */
+	int getInt(final int offset) {
+		return length < 5 + offset + 4 ? 0 : ByteBuffer.wrap(data, 5 + offset, 4).getInt();
+	}
+
+	/**
+	 * @return the data of the packet, after the command.
+	 */
+	byte[] getData() {
+		return Arrays.copyOfRange(data, 5, length);
+	}
+
+	/**
+	 * @return the whole packet.
+	 */
+	byte[] copy() {
+		return Arrays.copyOf(data, length);
+	}
+
+	void writeTo(final OutputStream out) throws IOException {
+		out.write(data, 0, length);
+	}
+
+	void writeTo(final WritableByteChannel channel) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if this reply ends the answer to a command, rather than being a change or progress
+	 * report that comes before the end.
+	 */
+	boolean isFinalReply() {
+		switch (getCommand()) {
+			case MilterConstants.SMFIR_ADDRCPT:
+			case MilterConstants.SMFIR_DELRCPT:
+			case MilterConstants.SMFIR_ADDRCPT_PAR:
+			case MilterConstants.SMFIR_REPLBODY:
+			case MilterConstants.SMFIR_CHGFROM:
+			case MilterConstants.SMFIR_ADDHEADER:
+			case MilterConstants.SMFIR_INSHEADER:
+			case MilterConstants.SMFIR_SETSYMLIST:
+			case MilterConstants.SMFIR_CHGHEADER:
+			case MilterConstants.SMFIR_PROGRESS:
+			case MilterConstants.SMFIR_QUARANTINE:
+				return false;
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * @param command a command or reply code.
+	 * @param data the data, possibly empty.
+	 * <p>
+	 * @return the packet.
+	 */
+	static byte[] packet(final int command, final byte... data) {
+		final ByteBuffer packet = ByteBuffer.allocate(5 + data.length);
+		packet.putInt(data.length + 1).put((byte) command).put(data);
+		return packet.array();
+	}
+
+	/**
+	 * @param command a command sent by the MTA.
+	 * @param protocol the protocol flags the filter negotiated.
+	 * <p>
+	 * @return <code>true</code> if the filter answers the command.
+	 */
+	static boolean expectsReply(final int command, final int protocol) {
+		switch (command) {
+			case MilterConstants.SMFIC_OPTNEG:
+			case MilterConstants.SMFIC_BODYEOB:
+				return true;
+			case MilterConstants.SMFIC_CONNECT:
+				return (protocol & MilterConstants.SMFIP_NR_CONN) == 0;
+			case MilterConstants.SMFIC_HELO:
+				return (protocol & MilterConstants.SMFIP_NR_HELO) == 0;
+			case MilterConstants.SMFIC_MAIL:
+				return (protocol & MilterConstants.SMFIP_NR_MAIL) == 0;
+			case MilterConstants.SMFIC_RCPT:
+				return (protocol & MilterConstants.SMFIP_NR_RCPT) == 0;
+			case MilterConstants.SMFIC_DATA:
+				return (protocol & MilterConstants.SMFIP_NR_DATA) == 0;
+			case MilterConstants.SMFIC_HEADER:
+				return (protocol & MilterConstants.SMFIP_NR_HDR) == 0;
+			case MilterConstants.SMFIC_EOH:
+				return (protocol & MilterConstants.SMFIP_NR_EOH) == 0;
+			case MilterConstants.SMFIC_BODY:
+				return (protocol & MilterConstants.SMFIP_NR_BODY) == 0;
+			case MilterConstants.SMFIC_UNKNOWN:
+				return (protocol & MilterConstants.SMFIP_NR_UNKN) == 0;
+			default:
+				// macros, abort and quit
+				return false;
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package com.sendmail.milter.standalone;
+
+import com.sendmail.milter.internal.MilterStage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Accepts MTA connections and forwards each conversation to one of several runners, the one with the fewest
+ * conversations in progress. Runners that fail are left out until a probe finds them up again; conversations on a
+ * runner that fails before their first transaction move to another one.
+ */
+public class MilterProxy implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MilterProxy.class);
+
+	private final ServerSocketChannel serverSocketChannel;
+	private final List<ProxyBackend> backends;
+	private final AtomicInteger next = new AtomicInteger();
+	private volatile boolean shutdown = false;
+	/**
+	 * pool for forwarding, one thread per MTA connection
+	 */
+	private final MilterStage pool = new MilterStage("Milter ProxyWorker",
+			Integer.getInteger("milter.io.threads", 50), Integer.getInteger("milter.io.queue", 10000), 30,
+			TimeUnit.MINUTES, new ThreadPoolExecutor.CallerRunsPolicy());
+
+	/**
+	 * @param endpoint the address to listen on.
+	 * @param backends the runners, <code>host:port</code> each.
+	 * <p>
+	 * @throws IOException if the address cannot be bound.
+	 */
+	public MilterProxy(final SocketAddress endpoint, final List<InetSocketAddress> backends) throws IOException {
+		if (backends.isEmpty()) {
+			throw new IllegalArgumentException("No backends");
+		}
+		final int connectTimeout = Integer.getInteger("milter.proxy.connectTimeout", 2000);
+		final int replyTimeout = Integer.getInteger("milter.proxy.replyTimeout", 0);
+		final int maxIdle = Integer.getInteger("milter.proxy.idle", 8);
+		final List<ProxyBackend> list = new ArrayList<>();
+		for (InetSocketAddress address : backends) {
+			list.add(new ProxyBackend(address, connectTimeout, replyTimeout, maxIdle));
+		}
+		this.backends = Collections.unmodifiableList(list);
+		serverSocketChannel = ServerSocketChannel.open();
+		serverSocketChannel.configureBlocking(true);
+		serverSocketChannel.socket().bind(endpoint);
+		LOG.debug("Proxy bound to {}", getSocketAddress());
+	}
+
+	@Override
+	public void run() {
+		while (!shutdown) {
+			try {
+				final SocketChannel connection = serverSocketChannel.accept();
+				if (shutdown) {
+					connection.close();
+					break;
+				}
+				final ProxyConversation command;
+				try {
+					command = new ProxyConversation(this, connection);
+				}
+				catch (final IOException e) {
+					connection.close();
+					LOG.error("Cannot set up a conversation", e);
+					continue;
+				}
+				pool.execute(command);
+			}
+			catch (final ClosedChannelException e) {
+				if (!shutdown) {
+					LOG.error("Listening socket closed unexpectedly", e);
+				}
+				break;
+			}
+			catch (final IOException e) {
+				LOG.debug("Unexpected exception", e);
+			}
+		}
+		LOG.info("Stopped accepting connections on " + getSocketAddress());
+	}
+
+	/**
+	 * Picks the runner for a conversation: the healthy one with the fewest conversations in progress, taking turns
+	 * among equals. If no runner is healthy, one that is not is tried anyway, as it may have come up since the last
+	 * probe.
+	 *
+	 * @param tried runners that already failed the conversation.
+	 * <p>
+	 * @return the runner, or <code>null</code> if all were tried.
+	 */
+	ProxyBackend choose(final Set<ProxyBackend> tried) {
+		final int size = backends.size();
+		final int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+		ProxyBackend best = null;
+		ProxyBackend down = null;
+		for (int i = 0; i < size; ++i) {
+			final ProxyBackend backend = backends.get((start + i) % size);
+			if (tried.contains(backend)) {
+				continue;
+			}
+			if (!backend.isHealthy()) {
+				if (down == null) {
+					down = backend;
+				}
+			}
+			else if (best == null || backend.getOutstanding() < best.getOutstanding()) {
+				best = backend;
+			}
+		}
+		return best != null ? best : down;
+	}
+
+	/**
+	 * Probes every runner once.
+	 */
+	public void probe() {
+		for (ProxyBackend backend : backends) {
+			backend.probe();
+		}
+	}
+
+	/**
+	 * Stops accepting connections. Conversations in progress go on, see {@link #awaitTermination(long, TimeUnit)}.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		pool.shutdown();
+		try {
+			serverSocketChannel.close();
+		}
+		catch (final IOException e) {
+			LOG.debug("Unexpected exception", e);
+		}
+	}
+
+	/**
+	 * Waits for the conversations in progress after a {@link #shutdown()} to finish, then closes the idle connections
+	 * to the runners. Conversations still going on after the timeout are interrupted.
+	 *
+	 * @param timeout how long to wait.
+	 * @param unit unit of <code>timeout</code>.
+	 * <p>
+	 * @return <code>true</code> if all conversations finished in time.
+	 * <p>
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		boolean done = pool.awaitTermination(timeout, unit);
+		if (!done) {
+			final int active = pool.getActiveCount();
+			pool.shutdownNow();
+			LOG.warn("[" + getSocketAddress() + "] Interrupted " + active + " conversation(s) still in progress");
+		}
+		for (ProxyBackend backend : backends) {
+			backend.close();
+		}
+		return done;
+	}
+
+	/**
+	 * Logs the state of the runners and the forwarding pool.
+	 */
+	public void logStatistics() {
+		for (ProxyBackend backend : backends) {
+			LOG.info("[" + getSocketAddress() + "] " + backend);
+		}
+		LOG.info("[" + getSocketAddress() + "] " + pool);
+	}
+
+	public SocketAddress getSocketAddress() {
+		return serverSocketChannel.socket().getLocalSocketAddress();
+	}
+
+	private static void usage() {
+		System.out.println("Usage: [ -h <address> ] -p <port number> -b <host:port>[,<host:port>...]");
+		System.out.println();
+		System.out.println("       -h <address> -- address to bind to. Default is \"localhost\".");
+		System.out.println("       -p <port number> -- the port to listen on.");
+		System.out.println("       -b <host:port>,... -- the runners to forward conversations to.");
+		System.out.println();
+	}
+
+	private static List<InetSocketAddress> parseBackends(final String list) {
+		final List<InetSocketAddress> backends = new ArrayList<>();
+		for (String item : list.split(",")) {
+			item = item.trim();
+			final int colon = item.lastIndexOf(':');
+			if (colon <= 0) {
+				throw new IllegalArgumentException("Backend must be host:port, not \"" + item + "\"");
+			}
+			backends.add(new InetSocketAddress(item.substring(0, colon), Integer.parseInt(item.substring(colon + 1))));
+		}
+		return backends;
+	}
+
+	public static void main(final String[] args) throws IOException {
+		final SimpleMilterServer.SimpleGetopt options = new SimpleMilterServer.SimpleGetopt(args, "p:h:b:");
+		String host = "localhost";
+		String port = null;
+		String backendList = null;
+
+		while (true) {
+			final int option = options.nextopt();
+
+			if (option == -1) {
+				break;
+			}
+
+			switch (option) {
+				case 'p':
+					port = options.getOptarg();
+					break;
+
+				case 'h':
+					host = options.getOptarg();
+					break;
+
+				case 'b':
+					backendList = options.getOptarg();
+					break;
+			}
+		}
+
+		if (port == null || backendList == null) {
+			usage();
+			System.exit(1);
+		}
+
+		final MilterProxy proxy;
+		try {
+			proxy = new MilterProxy(new InetSocketAddress(host, Integer.parseInt(port)), parseBackends(backendList));
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			usage();
+			System.exit(1);
+			return;
+		}
+
+		final long probeInterval = Long.getLong("milter.proxy.probe.interval", 5) * 1000;
+		final Timer timer = new Timer("Milter Proxy Probes", true);
+		if (probeInterval > 0) {
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					proxy.probe();
+				}
+			}, 0, probeInterval);
+		}
+
+		final long statsInterval = Long.getLong("milter.stats.interval", 0) * 1000;
+		if (statsInterval > 0) {
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					proxy.logStatistics();
+				}
+			}, statsInterval, statsInterval);
+		}
+
+		final long shutdownTimeout = Long.getLong("milter.shutdown.timeout", 30) * 1000;
+		Runtime.getRuntime().addShutdownHook(new Thread("Milter Shutdown") {
+			@Override
+			public void run() {
+				proxy.shutdown();
+				try {
+					proxy.awaitTermination(shutdownTimeout, TimeUnit.MILLISECONDS);
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				LOG.info("Shut down");
+			}
+		});
+
+		new Thread(proxy, "Milter Proxy").start();
+		System.out.printf("Proxying %s to %s.\n", proxy.getSocketAddress(), backendList);
+	}
+}
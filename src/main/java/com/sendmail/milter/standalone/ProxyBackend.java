@@ -0,0 +1,253 @@
+package com.sendmail.milter.standalone;
+
+import com.sendmail.milter.MilterConstants;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A runner the {@link MilterProxy} forwards conversations to. Keeps idle connections for reuse, ended with
+ * {@link MilterConstants#SMFIC_QUIT_NC} so that the runner starts a fresh conversation on them, and its health as seen
+ * by probes and by the conversations.
+ */
+final class ProxyBackend {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ProxyBackend.class);
+
+	private static final byte[] QUIT = MilterFrame.packet(MilterConstants.SMFIC_QUIT);
+	private static final byte[] QUIT_NC = MilterFrame.packet(MilterConstants.SMFIC_QUIT_NC);
+	// version 6, every action and protocol flag an MTA may offer
+	private static final byte[] PROBE = MilterFrame.packet(MilterConstants.SMFIC_OPTNEG,
+			ByteBuffer.allocate(12).putInt(6).putInt(0x000001FF).putInt(0x001FFFFF).array());
+
+	/**
+	 * A connection to the runner.
+	 */
+	final class Connection {
+
+		private final Socket socket;
+		private final DataInputStream in;
+		private final OutputStream out;
+
+		private Connection(final Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 8192));
+			this.out = socket.getOutputStream();
+		}
+
+		ProxyBackend getBackend() {
+			return ProxyBackend.this;
+		}
+
+		void write(final MilterFrame frame) throws IOException {
+			frame.writeTo(out);
+		}
+
+		void write(final byte[] packet) throws IOException {
+			out.write(packet);
+		}
+
+		/**
+		 * @param frame the frame to read the reply into.
+		 * <p>
+		 * @throws IOException on connection problems, including the runner closing the connection.
+		 */
+		void read(final MilterFrame frame) throws IOException {
+			if (!frame.read(in)) {
+				throw new IOException("Connection closed by " + address);
+			}
+		}
+
+		/**
+		 * @return <code>true</code> if the runner sent something that was not read, which would be taken for a reply
+		 * in the next conversation.
+		 */
+		boolean hasPending() throws IOException {
+			return in.available() > 0;
+		}
+
+		void close() {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				LOG.debug("Closing a connection to {} failed", address, e);
+			}
+		}
+	}
+
+	private final InetSocketAddress address;
+	private final int connectTimeout;
+	private final int replyTimeout;
+	private final BlockingQueue<Connection> idle;
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private final AtomicLong conversations = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private volatile boolean healthy = true;
+
+	/**
+	 * @param address the address of the runner.
+	 * @param connectTimeout milliseconds to wait for a connection, and for the reply to a probe.
+	 * @param replyTimeout milliseconds to wait for a reply in a conversation, 0 for no limit.
+	 * @param maxIdle idle connections kept for reuse.
+	 */
+	ProxyBackend(final InetSocketAddress address, final int connectTimeout, final int replyTimeout,
+			final int maxIdle) {
+		this.address = address;
+		this.connectTimeout = connectTimeout;
+		this.replyTimeout = replyTimeout;
+		this.idle = new ArrayBlockingQueue<>(Math.max(maxIdle, 1));
+	}
+
+	InetSocketAddress getAddress() {
+		return address;
+	}
+
+	boolean isHealthy() {
+		return healthy;
+	}
+
+	/**
+	 * @return conversations currently forwarded to the runner.
+	 */
+	int getOutstanding() {
+		return outstanding.get();
+	}
+
+	private Socket connect(final int readTimeout) throws IOException {
+		final Socket socket = new Socket();
+		try {
+			socket.connect(address, connectTimeout);
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(readTimeout);
+		}
+		catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	/**
+	 * Gets a connection for a conversation, reusing an idle one if there is any.
+	 *
+	 * @return the connection.
+	 * <p>
+	 * @throws IOException if the runner cannot be reached.
+	 */
+	Connection acquire() throws IOException {
+		Connection connection = idle.poll();
+		if (connection == null) {
+			connection = new Connection(connect(replyTimeout));
+		}
+		outstanding.incrementAndGet();
+		conversations.incrementAndGet();
+		return connection;
+	}
+
+	/**
+	 * Ends the conversation on a connection and keeps it for reuse, or closes it.
+	 *
+	 * @param connection a connection obtained from {@link #acquire()}.
+	 */
+	void release(final Connection connection) {
+		outstanding.decrementAndGet();
+		try {
+			if (connection.hasPending()) {
+				LOG.warn("Backend {} sent replies that were not expected, closing the connection", address);
+				connection.close();
+				return;
+			}
+			connection.write(QUIT_NC);
+			if (idle.offer(connection)) {
+				return;
+			}
+			connection.write(QUIT);
+		}
+		catch (IOException e) {
+			LOG.debug("Ending a conversation with {} failed", address, e);
+		}
+		connection.close();
+	}
+
+	/**
+	 * Closes a connection that failed, and the idle ones, which are likely to have failed too.
+	 *
+	 * @param connection a connection obtained from {@link #acquire()}.
+	 */
+	void discard(final Connection connection) {
+		outstanding.decrementAndGet();
+		failures.incrementAndGet();
+		connection.close();
+		closeIdle();
+	}
+
+	/**
+	 * Marks the runner as down after a connection to it could not be made.
+	 *
+	 * @param cause why.
+	 */
+	void failed(final IOException cause) {
+		failures.incrementAndGet();
+		if (healthy) {
+			LOG.warn("Backend {} is down: {}", address, cause.toString());
+			healthy = false;
+		}
+		closeIdle();
+	}
+
+	private void closeIdle() {
+		Connection connection;
+		while ((connection = idle.poll()) != null) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Checks that the runner negotiates options on a new connection, and updates its health.
+	 */
+	void probe() {
+		try (Socket socket = connect(connectTimeout)) {
+			final OutputStream out = socket.getOutputStream();
+			out.write(PROBE);
+			final MilterFrame reply = new MilterFrame();
+			if (!reply.read(new DataInputStream(socket.getInputStream()))
+					|| reply.getCommand() != MilterConstants.SMFIC_OPTNEG) {
+				throw new IOException("No options negotiation reply");
+			}
+			out.write(QUIT);
+			if (!healthy) {
+				LOG.info("Backend {} is up", address);
+				healthy = true;
+			}
+		}
+		catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Closes the idle connections.
+	 */
+	void close() {
+		closeIdle();
+	}
+
+	@Override
+	public String toString() {
+		return "backend " + address + ": " + (healthy ? "up" : "down") + " outstanding=" + outstanding.get() + " idle="
+				+ idle.size() + " conversations=" + conversations.get() + " failures=" + failures.get();
+	}
+}
@@ -0,0 +1,267 @@
+package com.sendmail.milter.standalone;
+
+import com.sendmail.milter.MilterConstants;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forwards the conversations on one MTA connection to backends of a {@link MilterProxy}, packet by packet in step with
+ * the MTA: each command is sent to the backend, and if the filter answers it, the replies are relayed until the one
+ * that ends the answer.
+ * <p>
+ * Until the first envelope sender of a conversation has been answered, the packets of the conversation are kept. If
+ * the backend fails in that time, they are sent again to another backend, its replies to them discarded, and the
+ * conversation goes on there without the MTA noticing. After that, a backend failure ends the conversation, with a
+ * temporary failure if the MTA is waiting for a reply.
+ */
+final class ProxyConversation implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ProxyConversation.class);
+
+	/**
+	 * A problem writing to the MTA, which no other backend can help with.
+	 */
+	private static final class MtaException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		MtaException(final IOException cause) {
+			super(cause);
+		}
+	}
+
+	private static final byte[] TEMPFAIL = MilterFrame.packet(MilterConstants.SMFIR_TEMPFAIL);
+
+	private final MilterProxy proxy;
+	private final SocketChannel socket;
+	private final MilterFrame frame = new MilterFrame();
+	private final MilterFrame reply = new MilterFrame();
+	private ProxyBackend.Connection connection = null;
+	// packets of the conversation so far, while it can still move to another backend
+	private final List<byte[]> replay = new ArrayList<>();
+	private final Set<ProxyBackend> tried = new HashSet<>();
+	private boolean transaction = false;
+	// the options negotiation of the MTA, and the reply every backend of the conversation has to give to it
+	private byte[] optneg = null;
+	private byte[] negotiated = null;
+	private int protocol = 0;
+
+	ProxyConversation(final MilterProxy proxy, final SocketChannel socket) throws IOException {
+		this.proxy = proxy;
+		this.socket = socket;
+		this.socket.configureBlocking(true);
+	}
+
+	@Override
+	public void run() {
+		try {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(socket),
+					8192));
+			while (frame.read(in)) {
+				final int command = frame.getCommand();
+				if (command == MilterConstants.SMFIC_QUIT) {
+					break;
+				}
+				if (command == MilterConstants.SMFIC_QUIT_NC) {
+					endConversation();
+					continue;
+				}
+				if (!forward(command)) {
+					break;
+				}
+			}
+		}
+		catch (IOException e) {
+			LOG.debug("Unexpected exception, connection will be closed", e);
+		}
+		finally {
+			endConversation();
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				LOG.debug("Unexpected exception", e);
+			}
+		}
+	}
+
+	/**
+	 * Ends a conversation and releases its backend. The negotiated options stay, as the MTA does not negotiate again
+	 * for the next conversation on the connection: the next backend is brought up to it with the same negotiation.
+	 */
+	private void endConversation() {
+		if (connection != null) {
+			connection.getBackend().release(connection);
+			connection = null;
+		}
+		replay.clear();
+		tried.clear();
+		transaction = false;
+		if (optneg != null) {
+			replay.add(optneg);
+		}
+	}
+
+	/**
+	 * Sends the current packet to the backend and relays the answer, moving to another backend if possible.
+	 *
+	 * @return <code>false</code> if the conversation cannot go on.
+	 * <p>
+	 * @throws IOException on problems with the MTA connection.
+	 */
+	private boolean forward(final int command) throws IOException {
+		final boolean answered = MilterFrame.expectsReply(command, protocol);
+		if (command == MilterConstants.SMFIC_OPTNEG) {
+			replay.clear();
+			optneg = frame.copy();
+			negotiated = null;
+			protocol = 0;
+		}
+		if (!transaction) {
+			replay.add(command == MilterConstants.SMFIC_OPTNEG ? optneg : frame.copy());
+		}
+		while (true) {
+			if (connection == null && !connect()) {
+				LOG.error("No backend could take the conversation");
+				return fail(answered && command != MilterConstants.SMFIC_OPTNEG);
+			}
+			boolean relayed = false;
+			try {
+				connection.write(frame);
+				if (answered) {
+					do {
+						connection.read(reply);
+						if (command == MilterConstants.SMFIC_OPTNEG) {
+							negotiated(reply);
+						}
+						relayed = true;
+						relay(reply);
+					}
+					while (!reply.isFinalReply());
+				}
+				break;
+			}
+			catch (MtaException e) {
+				throw e;
+			}
+			catch (IOException e) {
+				final ProxyBackend backend = connection.getBackend();
+				backend.discard(connection);
+				connection = null;
+				if (transaction || relayed) {
+					LOG.warn("Backend {} failed during a transaction: {}", backend.getAddress(), e.toString());
+					return fail(answered && !relayed);
+				}
+				LOG.info("Backend {} failed, moving the conversation: {}", backend.getAddress(), e.toString());
+				tried.add(backend);
+			}
+		}
+		if (command == MilterConstants.SMFIC_MAIL) {
+			transaction = true;
+			replay.clear();
+		}
+		return true;
+	}
+
+	/**
+	 * Remembers the options negotiated by the first backend.
+	 */
+	private void negotiated(final MilterFrame optneg) {
+		if (negotiated == null) {
+			negotiated = optneg.getData();
+			protocol = optneg.getInt(8);
+		}
+	}
+
+	/**
+	 * Connects to a backend not tried yet in this conversation, and brings it up to where the conversation is by
+	 * replaying every packet but the current one.
+	 *
+	 * @return <code>false</code> if no backend is left.
+	 */
+	private boolean connect() {
+		while (true) {
+			final ProxyBackend backend = proxy.choose(tried);
+			if (backend == null) {
+				return false;
+			}
+			ProxyBackend.Connection candidate;
+			try {
+				candidate = backend.acquire();
+			}
+			catch (IOException e) {
+				backend.failed(e);
+				tried.add(backend);
+				continue;
+			}
+			try {
+				for (int i = 0; i < replay.size() - 1; ++i) {
+					final byte[] packet = replay.get(i);
+					final int command = packet[4] & 0xFF;
+					candidate.write(packet);
+					if (MilterFrame.expectsReply(command, protocol)) {
+						do {
+							candidate.read(reply);
+						}
+						while (!reply.isFinalReply());
+						if (command == MilterConstants.SMFIC_OPTNEG && !Arrays.equals(negotiated, reply.getData())) {
+							throw new IOException("Options negotiated differently from the first backend");
+						}
+					}
+				}
+				connection = candidate;
+				return true;
+			}
+			catch (IOException e) {
+				LOG.info("Backend {} could not take over the conversation: {}", backend.getAddress(), e.toString());
+				backend.discard(candidate);
+				tried.add(backend);
+			}
+		}
+	}
+
+	/**
+	 * Ends the conversation after a failure.
+	 *
+	 * @param reply whether the MTA is waiting for a reply.
+	 * <p>
+	 * @return <code>false</code>.
+	 * <p>
+	 * @throws IOException on problems with the MTA connection.
+	 */
+	private boolean fail(final boolean reply) throws IOException {
+		if (reply) {
+			writeFully(TEMPFAIL);
+		}
+		return false;
+	}
+
+	private void relay(final MilterFrame packet) throws MtaException {
+		try {
+			packet.writeTo(socket);
+		}
+		catch (IOException e) {
+			throw new MtaException(e);
+		}
+	}
+
+	private void writeFully(final byte[] packet) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(packet);
+		while (buffer.hasRemaining()) {
+			socket.write(buffer);
+		}
+	}
+}
@@ -11,7 +11,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.sendmail.milter.internal.MilterProcessor;
-import com.sendmail.milter.spi.IMilterHandlerFactory;
 
 /**
  * Sample implementation of a handler for a socket based Milter protocol connection.
@@ -22,17 +21,20 @@ class ServerRunnable implements Runnable {
 
 	private SocketChannel socket = null;
 	private MilterProcessor processor = null;
+	private final FilterGeneration generation;
 
 	/**
 	 * Constructor.
 	 *
 	 * @param socket the incoming socket from the MTA.
-	 * @param handler the handler containing callbacks for the milter protocol.
+	 * @param generation the filter generation serving this connection, already retained for it. Released when the
+	 * connection is closed.
 	 */
-	public ServerRunnable(final SocketChannel socket, final IMilterHandlerFactory factory) throws IOException {
+	public ServerRunnable(final SocketChannel socket, final FilterGeneration generation) throws IOException {
 		this.socket = socket;
+		this.generation = generation;
 		this.socket.configureBlocking(true);
-		processor = new MilterProcessor(socket, factory);
+		processor = new MilterProcessor(socket, generation.getContext());
 	}
 
 	@Override
@@ -42,28 +44,41 @@ class ServerRunnable implements Runnable {
 		try {
 			while (processor.process((ByteBuffer) dataBuffer.flip())) {
 				dataBuffer.compact();
-				log.debug("Going to read [" + hashCode() + "]");
 				if (socket.read(dataBuffer) == -1) {
-					log.debug("socket reports EOF, exiting read loop [" + hashCode() + "]");
+					log.debug("[{}] Socket reports EOF, exiting read loop", processor.getConnectionId());
 					break;
 				}
-				else {
-					log.debug("Back from read [" + hashCode() + "]");
-				}
 			}
 		}
 		catch (final IOException e) {
-			log.debug("Unexpected exception, connection will be closed [" + hashCode() + "]", e);
+			log.debug("[{}] Unexpected exception, connection will be closed", processor.getConnectionId(), e);
 		}
 		finally {
-			processor.close();
-			try {
-				socket.close();
-				log.info("Socket closed, work tok [" + hashCode() + "][" + (System.currentTimeMillis() - start) + "]");
-			}
-			catch (final IOException e) {
-				log.debug("Unexpected exception [" + hashCode() + "]", e);
+			close();
+			if (log.isDebugEnabled()) {
+				log.debug("[{}] Socket closed, work took {}ms", processor.getConnectionId(),
+						System.currentTimeMillis() - start);
 			}
 		}
 	}
+
+	/**
+	 * Closes the connection without running the conversation, as when it was still queued when the server was shut
+	 * down, and releases the filter generation.
+	 */
+	void cancel() {
+		close();
+		log.debug("[{}] Socket closed, conversation dropped before it started", processor.getConnectionId());
+	}
+
+	private void close() {
+		processor.close();
+		generation.release();
+		try {
+			socket.close();
+		}
+		catch (final IOException e) {
+			log.debug("[{}] Unexpected exception", processor.getConnectionId(), e);
+		}
+	}
 }
@@ -3,6 +3,25 @@
  */
 package com.sendmail.milter.standalone;
 
+import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.internal.AgingPriorityQueue;
+import com.sendmail.milter.internal.AuditLog;
+import com.sendmail.milter.internal.BodyDigests;
+import com.sendmail.milter.internal.CallbackGuard;
+import com.sendmail.milter.internal.ConnectionRateLimiter;
+import com.sendmail.milter.internal.MemoryGovernor;
+import com.sendmail.milter.internal.MilterContext;
+import com.sendmail.milter.internal.MilterHandlerPool;
+import com.sendmail.milter.internal.MilterStage;
+import com.sendmail.milter.internal.MilterTracer;
+import com.sendmail.milter.internal.PriorityPolicy;
+import com.sendmail.milter.internal.RulePriorityPolicy;
+import com.sendmail.milter.internal.StageController;
+import com.sendmail.milter.internal.VerdictCache;
+import com.sendmail.milter.runtime.JndiResolverBackend;
+import com.sendmail.milter.runtime.MilterResolver;
+import com.sendmail.milter.runtime.MilterRuntime;
+import com.sendmail.milter.runtime.MilterStore;
 import com.sendmail.milter.spi.IMilterHandlerFactory;
 
 import java.io.File;
@@ -10,22 +29,23 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.net.URL;
-import java.net.URLClassLoader;
 import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.ServiceLoader;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.Executor;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
@@ -41,66 +61,226 @@ public class SimpleMilterServer implements Runnable {
 
 	private static final Logger LOG = LoggerFactory.getLogger(SimpleMilterServer.class);
 
-	private ServerSocketChannel serverSocketChannel = null;
-	private IMilterHandlerFactory factory = null;
-	private boolean shutdown = false;
+	private final ServerSocketChannel serverSocketChannel;
+	private volatile FilterGeneration generation = null;
+	private volatile boolean shutdown = false;
 	/**
-	 * pool for event execution
+	 * pool for event execution, one thread per conversation
 	 */
-	private final Executor pool = new ThreadPoolExecutor(5, 50, 30, TimeUnit.MINUTES,
-			new ArrayBlockingQueue<Runnable>(10000), new ThreadFactory() {
-				/**
-				 * group
-				 */
-				private final ThreadGroup group = new ThreadGroup(Thread.currentThread().getThreadGroup(),
-						"Milter ConnectionWorker");
-				/**
-				 * incrementor
-				 */
-				private int count = 0;
-
-				@Override
-				public Thread newThread(final Runnable r) {
-					final Thread th = new Thread(group, r);
-					th.setDaemon(true);
-					final String name = "Milter ConnectionWorker-" + count++;
-					th.setName(name);
-					LOG.debug("Created thread, " + name);
-					return th;
-				}
-			}, new ThreadPoolExecutor.CallerRunsPolicy());
+	private final MilterStage pool = new MilterStage("Milter ConnectionWorker",
+			Integer.getInteger("milter.io.threads", 50), createQueue(Integer.getInteger("milter.io.queue", 10000)), 30,
+			TimeUnit.MINUTES, new ThreadPoolExecutor.CallerRunsPolicy());
+	/**
+	 * sizes the pool when <code>milter.io.adaptive</code> is set
+	 */
+	private final StageController poolController = createPoolController(pool);
+	private final TimerTask poolControl = schedule(poolController);
+	/**
+	 * runs the pool controllers of all listeners
+	 */
+	private static Timer controllerTimer = null;
+	/**
+	 * shared by the listeners, created with the first context that needs it
+	 */
+	private static MilterStage contentStage = null;
+	/**
+	 * shared by the listeners, created with the first context that needs it
+	 */
+	private static AuditLog auditLog = null;
+	/**
+	 * shared by the listeners, created with the first queue that needs it
+	 */
+	private static PriorityPolicy priorityPolicy = null;
+	/**
+	 * shared by the listeners, created with the first context that needs it
+	 */
+	private static MemoryGovernor memoryGovernor = null;
+	private static boolean priorityPolicyRead = false;
 
 	@Override
 	public void run() {
 		while (!shutdown) {
 			SocketChannel connection;
 			try {
-				LOG.debug("Wait for connection");
 				connection = serverSocketChannel.accept();
-				final ServerRunnable command = new ServerRunnable(connection, factory);
-				pool.execute(command);
-				LOG.debug("Start connection runnable Milter [" + connection.socket() + "][" + command.hashCode() + "]");
+				if (shutdown) {
+					connection.close();
+					break;
+				}
+				FilterGeneration current = generation;
+				while (!current.retain()) {
+					// replaced and drained between the read and the retain
+					current = generation;
+				}
+				final ServerRunnable command;
+				try {
+					command = new ServerRunnable(connection, current);
+				}
+				catch (final IOException | RuntimeException e) {
+					current.release();
+					connection.close();
+					LOG.error("Cannot set up a conversation", e);
+					continue;
+				}
+				final PriorityPolicy policy = getPriorityPolicy();
+				// only the listener is known yet: the peer is the MTA, not the SMTP client the policy is about
+				pool.execute(command, policy == null ? PriorityPolicy.UNCLASSIFIED
+						: policy.classify(getSocketAddress(), null, null));
+			}
+			catch (final ClosedChannelException e) {
+				if (!shutdown) {
+					LOG.error("Listening socket closed unexpectedly", e);
+				}
+				break;
 			}
 			catch (final IOException e) {
 				LOG.debug("Unexpected exception", e);
 			}
 		}
+		LOG.info("Stopped accepting connections on " + serverSocketChannel.socket().getLocalSocketAddress());
 	}
 
 	/**
-	 * blocking call waits for server termination
+	 * Stops accepting connections. Conversations in progress go on, see {@link #awaitTermination(long, TimeUnit)}.
+	 * <p>
+	 * If the listening socket was inherited, only this process's descriptor of it is closed: whoever passed it keeps it
+	 * open, and connections wait in its backlog for the next process to accept them.
 	 */
 	public void shutdown() {
 		shutdown = true;
+		if (poolControl != null) {
+			poolControl.cancel();
+		}
+		pool.shutdown();
+		try {
+			serverSocketChannel.close();
+		}
+		catch (final IOException e) {
+			LOG.debug("Unexpected exception", e);
+		}
+	}
+
+	/**
+	 * Waits for the conversations in progress after a {@link #shutdown()} to finish. Conversations still going on after
+	 * the timeout are interrupted, which closes their connections, and those still waiting for a thread are closed
+	 * without starting.
+	 *
+	 * @param timeout how long to wait.
+	 * @param unit unit of <code>timeout</code>.
+	 * <p>
+	 * @return <code>true</code> if all conversations finished in time.
+	 * <p>
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		if (pool.awaitTermination(timeout, unit)) {
+			return true;
+		}
+		final int active = pool.getActiveCount();
+		final List<Runnable> dropped = pool.shutdownNow();
+		for (Runnable command : dropped) {
+			if (command instanceof ServerRunnable) {
+				((ServerRunnable) command).cancel();
+			}
+		}
+		LOG.warn("[" + getSocketAddress() + "] Interrupted " + active + " conversation(s) still in progress, dropped "
+				+ dropped.size() + " waiting");
+		return false;
+	}
+
+	/**
+	 * @return the context new conversations are given.
+	 */
+	MilterContext getContext() {
+		return generation.getContext();
+	}
+
+	/**
+	 * Routes new conversations to a new generation of the filter. Conversations in progress finish on the old one.
+	 *
+	 * @param next the new generation, holding the listener reference.
+	 */
+	void replaceGeneration(final FilterGeneration next) {
+		final FilterGeneration old = generation;
+		generation = next;
+		old.release();
+	}
+
+	/**
+	 * Logs the counters of the optional features of this listener.
+	 */
+	public void logStatistics() {
+		final MilterContext context = generation.getContext();
+		final VerdictCache verdicts = context.getVerdictCache();
+		if (verdicts != null) {
+			LOG.info("[" + getSocketAddress() + "] " + verdicts);
+		}
+		final BodyDigests digests = context.getBodyDigests();
+		if (digests != null && digests.getCache() != null) {
+			LOG.info("[" + getSocketAddress() + "] " + digests);
+		}
+		final ConnectionRateLimiter limiter = context.getRateLimiter();
+		if (limiter != null) {
+			LOG.info("[" + getSocketAddress() + "] " + limiter);
+		}
+		final MilterHandlerPool handlers = context.getHandlerPool();
+		if (handlers != null) {
+			LOG.info("[" + getSocketAddress() + "] " + handlers);
+		}
+		final MemoryGovernor governor = context.getMemoryGovernor();
+		if (governor != null) {
+			LOG.info("[" + getSocketAddress() + "] message data " + (governor.getBuffered(getSocketAddress()) >> 10)
+					+ "K, " + governor);
+		}
+		final MilterTracer tracer = context.getTracer();
+		if (tracer != null) {
+			LOG.info("[" + getSocketAddress() + "] " + tracer);
+		}
+		final CallbackGuard guard = context.getCallbackGuard();
+		if (guard != null) {
+			LOG.info("[" + getSocketAddress() + "] " + guard);
+		}
+		LOG.info("[" + getSocketAddress() + "] " + pool);
+		if (pool.getQueue() instanceof AgingPriorityQueue) {
+			LOG.info("[" + getSocketAddress() + "] " + pool.getQueue());
+		}
+		if (poolController != null) {
+			LOG.info("[" + getSocketAddress() + "] " + poolController);
+		}
 	}
 
 	public SocketAddress getSocketAddress() {
 		return serverSocketChannel.socket().getLocalSocketAddress();
 	}
 
+	/**
+	 * Listener on an already bound socket, such as one passed in by systemd.
+	 *
+	 * @param channel the bound socket.
+	 * @param context the context of conversations.
+	 */
+	public SimpleMilterServer(final ServerSocketChannel channel, final MilterContext context) throws IOException {
+		this(channel, new FilterGeneration(context, null));
+	}
+
+	SimpleMilterServer(final ServerSocketChannel channel, final FilterGeneration generation) throws IOException {
+		this.generation = generation;
+		serverSocketChannel = channel;
+		serverSocketChannel.configureBlocking(true);
+		LOG.debug("Listening on inherited socket {}", getSocketAddress());
+	}
+
 	public SimpleMilterServer(final SocketAddress endpoint, final IMilterHandlerFactory factory) throws IOException,
 			ClassNotFoundException, InstantiationException, IllegalAccessException {
-		this.factory = factory;
+		this(endpoint, new MilterContext(factory, null));
+	}
+
+	public SimpleMilterServer(final SocketAddress endpoint, final MilterContext context) throws IOException {
+		this(endpoint, new FilterGeneration(context, null));
+	}
+
+	SimpleMilterServer(final SocketAddress endpoint, final FilterGeneration generation) throws IOException {
+		this.generation = generation;
 
 		// Fire up a test handler and immediately close it to make sure everything's OK.
 		LOG.debug("Opening socket");
@@ -163,7 +343,7 @@ public class SimpleMilterServer implements Runnable {
 		public final File jar;
 	}
 
-	private static class SimpleGetopt {
+	static class SimpleGetopt {
 
 		private String optstring = null;
 		private String[] args = null;
@@ -225,6 +405,250 @@ public class SimpleMilterServer implements Runnable {
 		System.out.println();
 	}
 
+	/**
+	 * Creates the services shared by all listeners, configured through <code>milter.*</code> system properties.
+	 */
+	private static MilterRuntime createRuntime() {
+		final MilterRuntime runtime = new MilterRuntime();
+		final JndiResolverBackend backend = new JndiResolverBackend(System.getProperty("milter.resolver.servers"),
+				Integer.getInteger("milter.resolver.timeout", 2000));
+		runtime.setResolver(new MilterResolver(backend,
+				Integer.getInteger("milter.resolver.threads", 4),
+				Integer.getInteger("milter.resolver.cacheSize", 10000),
+				Long.getLong("milter.resolver.positiveTtl", 300),
+				Long.getLong("milter.resolver.negativeTtl", 300)));
+		final String storeDirectory = System.getProperty("milter.store.dir");
+		if (storeDirectory != null) {
+			runtime.setStoreDirectory(Paths.get(storeDirectory),
+					Integer.getInteger("milter.store.capacity", 100000),
+					Integer.getInteger("milter.store.keySize", 128),
+					Integer.getInteger("milter.store.valueSize", 64));
+		}
+		return runtime;
+	}
+
+	/**
+	 * Creates the context of one listener, with the optional features enabled through <code>milter.*</code> system
+	 * properties.
+	 *
+	 * @param previous the context of the listener before its filter was reloaded, or <code>null</code>. Its rate
+	 * limiter, tracer and callback guard are kept, since they are about the clients and the listener rather than the
+	 * filter; its caches are not, since verdicts of the old filter need not hold for the new one.
+	 */
+	static MilterContext createContext(final IMilterHandlerFactory factory, final MilterRuntime runtime,
+			final SocketAddress listener, final MilterContext previous) {
+		final MilterContext context = new MilterContext(factory, runtime);
+		context.setListener(listener);
+		context.setPriorityPolicy(getPriorityPolicy());
+		final String verdictKey = System.getProperty("milter.verdictCache.key");
+		if (verdictKey != null) {
+			context.setVerdictCache(new VerdictCache(VerdictCache.Key.parse(verdictKey),
+					Integer.getInteger("milter.verdictCache.size", 10000),
+					Long.getLong("milter.verdictCache.ttl", 300), TimeUnit.SECONDS));
+		}
+		final String rateKey = System.getProperty("milter.rateLimit.key");
+		if (previous != null) {
+			context.setRateLimiter(previous.getRateLimiter());
+		}
+		else if (rateKey != null) {
+			final IMilterStatus overLimit = "reject".equalsIgnoreCase(System.getProperty("milter.rateLimit.action"))
+					? IMilterStatus.SMFIS_REJECT : IMilterStatus.SMFIS_TEMPFAIL;
+			context.setRateLimiter(new ConnectionRateLimiter(ConnectionRateLimiter.Key.parse(rateKey),
+					Double.parseDouble(System.getProperty("milter.rateLimit.rate", "1")),
+					Integer.getInteger("milter.rateLimit.burst", 20),
+					Integer.getInteger("milter.rateLimit.width", 16384),
+					Integer.getInteger("milter.rateLimit.depth", 4),
+					overLimit));
+		}
+		final String digestAlgorithm = System.getProperty("milter.bodyDigest");
+		if (digestAlgorithm != null) {
+			try {
+				context.setBodyDigests(new BodyDigests(digestAlgorithm, !Boolean.getBoolean("milter.bodyDigest.raw"),
+						Integer.getInteger("milter.bodyDigest.cacheSize", 0),
+						Long.getLong("milter.bodyDigest.cacheTtl", 300), TimeUnit.SECONDS,
+						Integer.getInteger("milter.bodyDigest.cacheMinBody", 256)));
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new IllegalArgumentException("Unknown body digest algorithm: " + digestAlgorithm, e);
+			}
+		}
+		context.setActionJournal(Boolean.getBoolean("milter.actions.journal"));
+		final double sampleRate = Double.parseDouble(System.getProperty("milter.trace.sample", "0"));
+		final long slow = Long.getLong("milter.trace.slow", 0);
+		if (previous != null) {
+			context.setTracer(previous.getTracer());
+		}
+		else if (sampleRate > 0 || slow > 0) {
+			context.setTracer(new MilterTracer(sampleRate, slow, TimeUnit.MILLISECONDS,
+					Integer.getInteger("milter.trace.events", 64)));
+		}
+		context.setCallbackGuard(previous != null ? previous.getCallbackGuard() : createCallbackGuard());
+		context.setAuditLog(getAuditLog());
+		context.setMemoryGovernor(getMemoryGovernor());
+		return context;
+	}
+
+	/**
+	 * @return the controller of a listener's pool configured by the <code>milter.io</code> properties, or
+	 * <code>null</code> if the pool has a fixed size.
+	 */
+	private static StageController createPoolController(final MilterStage pool) {
+		if (!Boolean.getBoolean("milter.io.adaptive")) {
+			return null;
+		}
+		return new StageController(pool, Math.min(Integer.getInteger("milter.io.minThreads", 5),
+				pool.getMaximumPoolSize()), pool.getMaximumPoolSize(),
+				Long.getLong("milter.io.targetWait", 10), TimeUnit.MILLISECONDS);
+	}
+
+	private static synchronized TimerTask schedule(final StageController controller) {
+		if (controller == null) {
+			return null;
+		}
+		if (controllerTimer == null) {
+			controllerTimer = new Timer("Milter Pool Controller", true);
+		}
+		final long interval = Math.max(Long.getLong("milter.io.adjustInterval", 5), 1) * 1000;
+		final TimerTask task = new TimerTask() {
+			@Override
+			public void run() {
+				controller.run();
+			}
+		};
+		controllerTimer.schedule(task, interval, interval);
+		return task;
+	}
+
+	/**
+	 * @return the callback guard configured by the <code>milter.budget</code>, <code>milter.breaker</code> and
+	 * <code>milter.content</code> properties, or <code>null</code> if no callback has a budget or a stage and no
+	 * breaker was asked for.
+	 */
+	private static CallbackGuard createCallbackGuard() {
+		final long budget = Long.getLong("milter.budget", 0);
+		final long[] budgets = new long[CallbackGuard.CALLBACKS.length];
+		boolean budgeted = false;
+		for (int i = 0; i < budgets.length; ++i) {
+			budgets[i] = Long.getLong("milter.budget." + CallbackGuard.CALLBACKS[i], budget);
+			budgeted |= budgets[i] > 0;
+		}
+		final Integer failures = Integer.getInteger("milter.breaker.failures");
+		final CallbackGuard guard = new CallbackGuard(
+				CallbackGuard.parseFallback(System.getProperty("milter.budget.fallback", "tempfail")),
+				failures != null ? failures : budgeted ? 5 : 0, Long.getLong("milter.breaker.open", 30),
+				TimeUnit.SECONDS);
+		for (int i = 0; i < budgets.length; ++i) {
+			if (budgets[i] > 0) {
+				guard.setBudget(CallbackGuard.CALLBACKS[i], budgets[i], TimeUnit.MILLISECONDS);
+			}
+		}
+		final MilterStage stage = getContentStage();
+		if (stage != null) {
+			for (String callback : System.getProperty("milter.content.callbacks", "body,eom").split("[\\s,]+")) {
+				if (!callback.isEmpty()) {
+					guard.setStage(callback, stage);
+				}
+			}
+		}
+		return budgeted || stage != null || failures != null && failures > 0 ? guard : null;
+	}
+
+	/**
+	 * @return the stage for content scanning callbacks configured by <code>milter.content.threads</code>, or
+	 * <code>null</code> if they run on the conversation threads.
+	 */
+	static synchronized MilterStage getContentStage() {
+		final int threads = Integer.getInteger("milter.content.threads", 0);
+		if (contentStage == null && threads > 0) {
+			contentStage = new MilterStage("Milter Content", threads,
+					createQueue(Integer.getInteger("milter.content.queue", 1000)), 60, TimeUnit.SECONDS, MilterStage.WAIT);
+		}
+		return contentStage;
+	}
+
+	/**
+	 * @return the log of transactions configured by the <code>milter.audit</code> properties, or <code>null</code> if
+	 * transactions are not logged or the log cannot be created.
+	 */
+	static synchronized AuditLog getAuditLog() {
+		final String directory = System.getProperty("milter.audit.dir");
+		if (auditLog == null && directory != null) {
+			try {
+				auditLog = new AuditLog(Paths.get(directory), Integer.getInteger("milter.audit.queue", 65536),
+						Long.getLong("milter.audit.segmentSize", 64) * 1024 * 1024,
+						Long.getLong("milter.audit.rotate", 3600), TimeUnit.SECONDS,
+						Integer.getInteger("milter.audit.keep", 0));
+			}
+			catch (IOException | RuntimeException e) {
+				LOG.error("Cannot create the audit log in " + directory + ", transactions are not logged", e);
+				System.clearProperty("milter.audit.dir");
+			}
+		}
+		return auditLog;
+	}
+
+	/**
+	 * @return the governor configured by the <code>milter.memory</code> properties, or <code>null</code> if memory is
+	 * not watched.
+	 */
+	static synchronized MemoryGovernor getMemoryGovernor() {
+		final int heap = Integer.getInteger("milter.memory.heap", 0);
+		final long direct = Long.getLong("milter.memory.direct", 0);
+		final long buffered = Long.getLong("milter.memory.buffered", 0);
+		if (memoryGovernor == null && (heap > 0 || direct > 0 || buffered > 0)) {
+			// direct buffers and message data stop being shed at 80% of their limit
+			memoryGovernor = new MemoryGovernor(heap / 100.0,
+					Integer.getInteger("milter.memory.heapLow", Math.max(0, heap - 10)) / 100.0,
+					direct * 1024 * 1024, buffered * 1024 * 1024, 0.8);
+		}
+		return memoryGovernor;
+	}
+
+	/**
+	 * @return the policy configured by the <code>milter.priority</code> properties, or <code>null</code> if work is
+	 * served in the order it comes.
+	 */
+	static synchronized PriorityPolicy getPriorityPolicy() {
+		if (!priorityPolicyRead) {
+			priorityPolicyRead = true;
+			final String className = System.getProperty("milter.priority.policy");
+			final String rules = System.getProperty("milter.priority.rules");
+			final int levels = Integer.getInteger("milter.priority.levels", 3);
+			if (className != null) {
+				try {
+					priorityPolicy = (PriorityPolicy) Class.forName(className).newInstance();
+				}
+				catch (ClassNotFoundException | InstantiationException | IllegalAccessException | ClassCastException e) {
+					throw new IllegalArgumentException("Cannot create the priority policy " + className, e);
+				}
+			}
+			else if (rules != null) {
+				priorityPolicy = new RulePriorityPolicy(rules, Integer.getInteger("milter.priority.default",
+						levels - 1));
+			}
+			if (priorityPolicy != null) {
+				LOG.info("Conversations are served by priority in {} levels: {}", levels, priorityPolicy);
+			}
+			if (priorityPolicy instanceof RulePriorityPolicy && ((RulePriorityPolicy) priorityPolicy).hasClientRules()
+					&& Integer.getInteger("milter.content.threads", 0) <= 0) {
+				LOG.warn("Priority rules on the client address or macros have no effect without milter.content.threads:"
+						+ " conversations are queued by their listener alone");
+			}
+		}
+		return priorityPolicy;
+	}
+
+	/**
+	 * @return the queue of a stage, by priority if a priority policy is configured.
+	 */
+	private static BlockingQueue<Runnable> createQueue(final int capacity) {
+		if (getPriorityPolicy() == null) {
+			return new ArrayBlockingQueue<>(capacity);
+		}
+		return new AgingPriorityQueue(capacity, Integer.getInteger("milter.priority.levels", 3),
+				Long.getLong("milter.priority.aging", 1000), TimeUnit.MILLISECONDS);
+	}
+
 	private static final Pattern CONF_READER = Pattern.compile("^\\s*(\\S+)\\s+(\\d+)\\s+(.+?)\\s*$");
 
 	public static void main(final String[] args)
@@ -336,21 +760,59 @@ public class SimpleMilterServer implements Runnable {
 			return;
 		}
 
+		final Path readyFile = System.getProperty("milter.ready.file") == null ? null
+				: Paths.get(System.getProperty("milter.ready.file"));
+		if (readyFile != null) {
+			Files.deleteIfExists(readyFile);
+		}
+		final int warmUpCount = Integer.getInteger("milter.warmup.conversations", 0);
+		final String replayPath = System.getProperty("milter.warmup.replay");
+		final byte[] replay = replayPath == null ? null : Files.readAllBytes(Paths.get(replayPath));
+		final boolean warmUpOnly = Boolean.getBoolean("milter.warmup.exit");
+
+		final MilterRuntime runtime = createRuntime();
+		final InheritedChannels inherited = InheritedChannels.collect();
 		List<Thread> threads = new ArrayList<>();
+		final List<SimpleMilterServer> listeners = new ArrayList<>();
+		final List<FilterJar> jars = new ArrayList<>();
+		// listeners of the same jar share its class loader and factory
+		final Map<String, FilterJar> shared = new HashMap<>();
 		for (ServerSetup ss : servers) {
 			jarFile = ss.jar;
 			LOG.debug("Filter jar file: " + jarFile.getAbsolutePath());
 			LOG.debug("Socket bound to address: " + host + ", port: " + port);
 
-			URL[] urls = new URL[]{
-				jarFile.toURI().toURL()
-			};
-			ClassLoader cl = URLClassLoader.newInstance(urls);
-			ServiceLoader<IMilterHandlerFactory> loader = ServiceLoader.load(IMilterHandlerFactory.class, cl);
-			Iterator<IMilterHandlerFactory> it = loader.iterator();
-			if (it.hasNext()) {
-				SocketAddress socketAddress = new InetSocketAddress(ss.addr, ss.port);
-				SimpleMilterServer sms = new SimpleMilterServer(socketAddress, it.next());
+			final String key = FilterJar.sharingKey(jarFile);
+			FilterJar filter = shared.get(key);
+			IMilterHandlerFactory factory;
+			if (filter != null) {
+				LOG.info("Listener " + ss.addr + ":" + ss.port + " shares the filter loaded from "
+						+ jarFile.getAbsolutePath());
+				factory = filter.getVersion().getFactory();
+			}
+			else {
+				filter = new FilterJar(jarFile, runtime);
+				factory = filter.initialize();
+				if (factory != null) {
+					shared.put(key, filter);
+					jars.add(filter);
+					if (warmUpCount > 0) {
+						new WarmUp(factory, runtime, replay).run(warmUpCount);
+					}
+				}
+			}
+			if (factory != null) {
+				if (warmUpOnly) {
+					continue;
+				}
+				InetSocketAddress socketAddress = new InetSocketAddress(ss.addr, ss.port);
+				FilterGeneration generation = new FilterGeneration(
+						createContext(factory, runtime, socketAddress, null), filter.getVersion());
+				ServerSocketChannel channel = inherited.take(socketAddress);
+				SimpleMilterServer sms = channel != null ? new SimpleMilterServer(channel, generation)
+						: new SimpleMilterServer(socketAddress, generation);
+				filter.addListener(sms);
+				listeners.add(sms);
 				threads.add(new Thread(sms));
 			}
 			else {
@@ -358,15 +820,97 @@ public class SimpleMilterServer implements Runnable {
 			}
 		}
 
+		if (warmUpOnly) {
+			System.out.println("Warm-up done, exiting.");
+			return;
+		}
+
 		if (threads.size() < servers.size()) {
 			System.err.println("Could not launch some Milters. Check the logs to see which.");
 			return;
 		}
+		inherited.warnUnused();
 
 		for (Thread t : threads) {
 			t.start();
 		}
 
+		final long shutdownTimeout = Long.getLong("milter.shutdown.timeout", 30) * 1000;
+		Runtime.getRuntime().addShutdownHook(new Thread("Milter Shutdown") {
+			@Override
+			public void run() {
+				if (readyFile != null) {
+					try {
+						Files.deleteIfExists(readyFile);
+					}
+					catch (IOException ex) {
+						LOG.warn("Cannot remove the readiness file " + readyFile, ex);
+					}
+				}
+				for (SimpleMilterServer sms : listeners) {
+					sms.shutdown();
+				}
+				final long deadline = System.currentTimeMillis() + shutdownTimeout;
+				try {
+					for (SimpleMilterServer sms : listeners) {
+						sms.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+					}
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				final AuditLog audit = getAuditLog();
+				if (audit != null) {
+					try {
+						audit.close(Math.max(0, deadline - System.currentTimeMillis()) + 1000, TimeUnit.MILLISECONDS);
+					}
+					catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				runtime.close();
+				LOG.info("Shut down");
+			}
+		});
+
+		final long reloadInterval = Long.getLong("milter.reload.interval", 0) * 1000;
+		if (reloadInterval > 0) {
+			new Timer("Milter Reloader", true).schedule(new TimerTask() {
+				@Override
+				public void run() {
+					for (FilterJar filter : jars) {
+						filter.reloadIfChanged();
+					}
+				}
+			}, reloadInterval, reloadInterval);
+		}
+
+		final long statsInterval = Long.getLong("milter.stats.interval", 0) * 1000;
+		if (statsInterval > 0) {
+			new Timer("Milter Statistics", true).schedule(new TimerTask() {
+				@Override
+				public void run() {
+					for (SimpleMilterServer sms : listeners) {
+						sms.logStatistics();
+					}
+					final MilterStage stage = getContentStage();
+					if (stage != null) {
+						LOG.info(stage.toString());
+					}
+					for (MilterStore store : runtime.getStores()) {
+						LOG.info(store.toString());
+					}
+					final AuditLog audit = getAuditLog();
+					if (audit != null) {
+						LOG.info(audit.toString());
+					}
+				}
+			}, statsInterval, statsInterval);
+		}
+
+		if (readyFile != null) {
+			Files.write(readyFile, (servers.size() + "\n").getBytes(Charset.forName("UTF-8")));
+		}
 		System.out.printf("Running with %d loaded filter(s).\n", servers.size());
 	}
 }
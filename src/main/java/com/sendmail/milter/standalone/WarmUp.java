@@ -0,0 +1,236 @@
+package com.sendmail.milter.standalone;
+
+import com.sendmail.milter.MilterConstants;
+import com.sendmail.milter.internal.MilterContext;
+import com.sendmail.milter.internal.MilterProcessor;
+import com.sendmail.milter.runtime.MilterRuntime;
+import com.sendmail.milter.spi.IMilterHandlerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs conversations through a filter before its listener accepts connections, so that the protocol code and the
+ * handler are compiled by the time real traffic arrives.
+ * <p>
+ * Conversations are either synthetic ones, a complete transaction with a few headers and a body, or replayed from a
+ * file holding what an MTA sent, as raw Milter packets. Replies are discarded. Warm-up conversations go through a
+ * context of their own, so they never reach the verdict cache or the rate limiter, and carry the
+ * <code>{warmup}</code> macro at every stage, so handlers can skip side effects like logging or calling out.
+ */
+final class WarmUp {
+
+	private static final Logger LOG = LoggerFactory.getLogger(WarmUp.class);
+
+	/**
+	 * Macro set to <code>1</code> in warm-up conversations.
+	 */
+	static final String MACRO = "{warmup}";
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	// what Sendmail 8.14 and later offer
+	private static final int MTA_VERSION = 6;
+	private static final int MTA_ACTIONS = 0x000001FF;
+	private static final int MTA_PROTOCOL = 0x001FFFFF;
+
+	private static final WritableByteChannel SINK = new WritableByteChannel() {
+		@Override
+		public int write(final ByteBuffer src) {
+			final int length = src.remaining();
+			src.position(src.limit());
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	private final MilterContext context;
+	private final byte[] replay;
+
+	/**
+	 * @param factory the filter to warm up.
+	 * @param runtime the services of the runner, may be <code>null</code>.
+	 * @param replay MTA to filter traffic to replay, or <code>null</code> for synthetic conversations.
+	 */
+	WarmUp(final IMilterHandlerFactory factory, final MilterRuntime runtime, final byte[] replay) {
+		this.context = new MilterContext(factory, runtime);
+		this.replay = replay;
+	}
+
+	/**
+	 * @param conversations the number of synthetic conversations, or of passes over the replayed traffic.
+	 * <p>
+	 * @return <code>false</code> if the warm-up was cut short by an error, which is logged.
+	 */
+	boolean run(final int conversations) {
+		final long start = System.currentTimeMillis();
+		try {
+			for (int i = 0; i < conversations; ++i) {
+				feed(replay != null ? replay : conversation(i));
+			}
+		}
+		catch (IOException | RuntimeException ex) {
+			LOG.error("Warm-up failed", ex);
+			return false;
+		}
+		finally {
+			if (context.getHandlerPool() != null) {
+				context.getHandlerPool().clear();
+			}
+		}
+		LOG.info("Warmed up with " + conversations + (replay != null ? " replay(s)" : " conversation(s)") + " in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		return true;
+	}
+
+	/**
+	 * Feeds a stream to processors the way a connection does, in socket-sized chunks, starting a new processor after
+	 * each quit.
+	 */
+	private void feed(final byte[] stream) throws IOException {
+		final ByteBuffer input = ByteBuffer.wrap(stream);
+		final ByteBuffer chunk = ByteBuffer.allocateDirect(4096);
+		MilterProcessor processor = null;
+		try {
+			while (true) {
+				final int length = Math.min(chunk.remaining(), input.remaining());
+				final ByteBuffer slice = input.duplicate();
+				slice.limit(input.position() + length);
+				chunk.put(slice);
+				input.position(input.position() + length);
+				chunk.flip();
+				if (!chunk.hasRemaining()) {
+					break;
+				}
+				if (processor == null) {
+					processor = new MilterProcessor(SINK, context);
+				}
+				final boolean more = processor.process(chunk);
+				chunk.compact();
+				if (!more) {
+					processor.close();
+					processor = null;
+				}
+				else if (length == 0) {
+					// nothing left but an incomplete packet, if anything
+					break;
+				}
+			}
+		}
+		finally {
+			if (processor != null) {
+				processor.close();
+			}
+		}
+	}
+
+	/**
+	 * Builds a complete synthetic conversation, varied a little by its number.
+	 */
+	private static byte[] conversation(final int n) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(2048);
+		final String address = "192.0.2." + (n % 254 + 1);
+		final String sender = "<warmup" + n + "@example.com>";
+		final String recipient = "<postmaster@example.net>";
+
+		final ByteBuffer optneg = ByteBuffer.allocate(12);
+		optneg.putInt(MTA_VERSION).putInt(MTA_ACTIONS).putInt(MTA_PROTOCOL);
+		packet(out, MilterConstants.SMFIC_OPTNEG, optneg.array());
+
+		macros(out, MilterConstants.SMFIC_CONNECT, "j", "mx.example.org", "{daemon_name}", "warmup");
+		final ByteArrayOutputStream connect = new ByteArrayOutputStream();
+		string(connect, "warmup" + n + ".example.com");
+		connect.write(MilterConstants.SMFIA_INET);
+		connect.write(0x1F);
+		connect.write(0x90);
+		string(connect, address);
+		packet(out, MilterConstants.SMFIC_CONNECT, connect.toByteArray());
+
+		macros(out, MilterConstants.SMFIC_HELO, "{tls_version}", "TLSv1.2");
+		packet(out, MilterConstants.SMFIC_HELO, strings("warmup" + n + ".example.com"));
+
+		macros(out, MilterConstants.SMFIC_MAIL, "i", "warmup" + n, "{mail_addr}", sender);
+		packet(out, MilterConstants.SMFIC_MAIL, strings(sender, "SIZE=1024", "BODY=8BITMIME"));
+
+		macros(out, MilterConstants.SMFIC_RCPT, "{rcpt_addr}", recipient);
+		packet(out, MilterConstants.SMFIC_RCPT, strings(recipient));
+
+		macros(out, MilterConstants.SMFIC_DATA);
+		packet(out, MilterConstants.SMFIC_DATA, new byte[0]);
+
+		header(out, "Received", "from warmup" + n + ".example.com ([" + address + "])\n\tby mx.example.org");
+		header(out, "From", sender);
+		header(out, "To", recipient);
+		header(out, "Subject", "Warm-up " + n);
+		header(out, "Date", "Mon, 1 Jan 2001 00:00:00 +0000");
+		header(out, "Message-ID", "<warmup" + n + "@example.com>");
+		header(out, "MIME-Version", "1.0");
+		header(out, "Content-Type", "text/plain; charset=us-ascii");
+		macros(out, MilterConstants.SMFIC_EOH);
+		packet(out, MilterConstants.SMFIC_EOH, new byte[0]);
+
+		final StringBuilder body = new StringBuilder();
+		for (int line = 0; line < 16 + n % 16; ++line) {
+			body.append("Warm-up line ").append(line).append(" of conversation ").append(n).append(".\r\n");
+		}
+		packet(out, MilterConstants.SMFIC_BODY, body.toString().getBytes(ASCII));
+
+		macros(out, MilterConstants.SMFIC_BODYEOB);
+		packet(out, MilterConstants.SMFIC_BODYEOB, new byte[0]);
+		packet(out, MilterConstants.SMFIC_QUIT, new byte[0]);
+		return out.toByteArray();
+	}
+
+	private static void packet(final ByteArrayOutputStream out, final int command, final byte[] data) {
+		final int length = data.length + 1;
+		out.write(length >>> 24);
+		out.write(length >>> 16);
+		out.write(length >>> 8);
+		out.write(length);
+		out.write(command);
+		out.write(data, 0, data.length);
+	}
+
+	private static void macros(final ByteArrayOutputStream out, final int stage, final String... pairs) {
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.write(stage);
+		string(data, MACRO);
+		string(data, "1");
+		for (String value : pairs) {
+			string(data, value);
+		}
+		packet(out, MilterConstants.SMFIC_MACRO, data.toByteArray());
+	}
+
+	private static void header(final ByteArrayOutputStream out, final String name, final String value) {
+		packet(out, MilterConstants.SMFIC_HEADER, strings(name, value));
+	}
+
+	private static byte[] strings(final String... values) {
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for (String value : values) {
+			string(data, value);
+		}
+		return data.toByteArray();
+	}
+
+	private static void string(final ByteArrayOutputStream out, final String value) {
+		final byte[] bytes = value.getBytes(ASCII);
+		out.write(bytes, 0, bytes.length);
+		out.write(0);
+	}
+}
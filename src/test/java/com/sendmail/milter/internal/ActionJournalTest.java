@@ -0,0 +1,93 @@
+package com.sendmail.milter.internal;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ActionJournalTest {
+
+	private static String describe(final List<ActionJournal.Action> actions) {
+		final StringBuilder text = new StringBuilder();
+		for (ActionJournal.Action action : actions) {
+			text.append(text.length() == 0 ? "" : " ").append(action.type).append(':').append(action.name)
+					.append(':').append(action.index).append(':').append(action.value);
+		}
+		return text.toString();
+	}
+
+	@Test
+	public void changesBeforeEndOfHeadersAreKept() {
+		// as when the MTA does not send the headers: nothing is known to be past the end
+		final ActionJournal journal = new ActionJournal();
+		journal.record(ActionJournal.CHANGE_HEADER, "Subject", 1, "new");
+		journal.record(ActionJournal.CHANGE_HEADER, "X-Old", 1, null);
+		assertEquals("2:Subject:1:new 2:X-Old:1:null", describe(journal.reduce()));
+	}
+
+	@Test
+	public void repeatedChangesOfAnOriginalHeaderLeaveTheLast() {
+		final ActionJournal journal = new ActionJournal();
+		journal.countHeader("Subject");
+		journal.endOfHeaders();
+		journal.record(ActionJournal.CHANGE_HEADER, "Subject", 1, "first");
+		journal.record(ActionJournal.CHANGE_HEADER, "subject", 1, "second");
+		assertEquals("2:subject:1:second", describe(journal.reduce()));
+	}
+
+	@Test
+	public void changePastTheLastHeaderAddsOne() {
+		final ActionJournal journal = new ActionJournal();
+		journal.countHeader("Subject");
+		journal.endOfHeaders();
+		journal.record(ActionJournal.CHANGE_HEADER, "Subject", 2, "extra");
+		journal.record(ActionJournal.CHANGE_HEADER, "X-None", 1, null);
+		assertEquals("0:Subject:2:extra", describe(journal.reduce()));
+	}
+
+	@Test
+	public void changesOfAnAddedHeaderFoldIntoTheAddition() {
+		final ActionJournal journal = new ActionJournal();
+		journal.countHeader("X-Spam");
+		journal.endOfHeaders();
+		journal.record(ActionJournal.ADD_HEADER, "X-Spam", 0, "maybe");
+		journal.record(ActionJournal.CHANGE_HEADER, "X-Spam", 2, "yes");
+		journal.record(ActionJournal.ADD_HEADER, "X-Tag", 0, "a");
+		journal.record(ActionJournal.CHANGE_HEADER, "X-Tag", 1, "");
+		assertEquals("0:X-Spam:0:yes", describe(journal.reduce()));
+	}
+
+	@Test
+	public void insertedHeadersAreSentAsMade() {
+		final ActionJournal journal = new ActionJournal();
+		journal.endOfHeaders();
+		journal.record(ActionJournal.INSERT_HEADER, "Received", 0, "by me");
+		journal.record(ActionJournal.CHANGE_HEADER, "Received", 1, "by you");
+		journal.record(ActionJournal.CHANGE_HEADER, "Received", 1, "by us");
+		assertEquals(3, journal.reduce().size());
+	}
+
+	@Test
+	public void deletedRecipientIsNotAdded() {
+		final ActionJournal journal = new ActionJournal();
+		journal.record(ActionJournal.ADD_RECIPIENT, "<a@example.com>", 0, null);
+		journal.record(ActionJournal.ADD_RECIPIENT, "<a@example.com>", 0, null);
+		journal.record(ActionJournal.DELETE_RECIPIENT, "<a@example.com>", 0, null);
+		journal.record(ActionJournal.DELETE_RECIPIENT, "<a@example.com>", 0, null);
+		assertEquals("4:<a@example.com>:0:null", describe(journal.reduce()));
+	}
+
+	@Test
+	public void clearForgetsCounts() {
+		final ActionJournal journal = new ActionJournal();
+		journal.countHeader("Subject");
+		journal.endOfHeaders();
+		journal.record(ActionJournal.CHANGE_HEADER, "Subject", 1, "new");
+		journal.clear();
+		assertTrue(journal.isEmpty());
+		journal.record(ActionJournal.CHANGE_HEADER, "Subject", 1, "new");
+		assertEquals("2:Subject:1:new", describe(journal.reduce()));
+	}
+}
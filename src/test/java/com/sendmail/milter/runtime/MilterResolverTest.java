@@ -0,0 +1,156 @@
+package com.sendmail.milter.runtime;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MilterResolverTest {
+
+	/**
+	 * Answers from a table, counting the queries for each name.
+	 */
+	private static final class StubBackend implements IResolverBackend {
+
+		private final Map<String, ResolverAnswer> answers = new ConcurrentHashMap<>();
+		private final Map<String, AtomicInteger> queries = new ConcurrentHashMap<>();
+
+		StubBackend answer(final String name, final long ttl, final String... values) {
+			answers.put(name, new ResolverAnswer(Arrays.asList(values), ttl));
+			return this;
+		}
+
+		int queries(final String name) {
+			final AtomicInteger count = queries.get(name);
+			return count == null ? 0 : count.get();
+		}
+
+		@Override
+		public ResolverAnswer lookup(final String name, final DnsRecordType type) throws IOException {
+			queries.putIfAbsent(name, new AtomicInteger());
+			queries.get(name).incrementAndGet();
+			final ResolverAnswer answer = answers.get(name);
+			if (answer == null) {
+				throw new IOException("SERVFAIL " + name);
+			}
+			return answer;
+		}
+	}
+
+	/**
+	 * Runs queries only when told to, so lookups can overlap.
+	 */
+	private static final class HeldExecutor implements Executor {
+
+		private final List<Runnable> held = new ArrayList<>();
+
+		@Override
+		public void execute(final Runnable command) {
+			held.add(command);
+		}
+
+		void runAll() {
+			for (Runnable command : held) {
+				command.run();
+			}
+			held.clear();
+		}
+	}
+
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(final Runnable command) {
+			command.run();
+		}
+	};
+
+	private static List<String> lookup(final MilterResolver resolver, final String name) throws IOException {
+		return resolver.lookup(name, DnsRecordType.A, 1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void concurrentLookupsShareOneQuery() throws Exception {
+		final StubBackend backend = new StubBackend().answer("mx.example.com", 60, "192.0.2.1");
+		final HeldExecutor executor = new HeldExecutor();
+		final MilterResolver resolver = new MilterResolver(backend, executor, 100, 300, 60);
+
+		final Future<List<String>> first = resolver.lookupAsync("mx.example.com", DnsRecordType.A);
+		final Future<List<String>> second = resolver.lookupAsync("MX.Example.COM.", DnsRecordType.A);
+		assertSame(first, second);
+		assertEquals(0, backend.queries("mx.example.com"));
+
+		executor.runAll();
+		assertEquals(Arrays.asList("192.0.2.1"), second.get());
+		assertEquals(1, backend.queries("mx.example.com"));
+		assertEquals(1, resolver.getQueries());
+		assertEquals(1, resolver.getCoalesced());
+
+		// answered from the cache now that the query is done
+		assertTrue(resolver.lookupAsync("mx.example.com", DnsRecordType.A).isDone());
+		assertEquals(1, backend.queries("mx.example.com"));
+	}
+
+	@Test
+	public void missingNamesAreCachedButFailuresAreNot() throws Exception {
+		final StubBackend backend = new StubBackend().answer("nx.example.com", -1);
+		final MilterResolver resolver = new MilterResolver(backend, DIRECT, 100, 1, 3600);
+
+		assertEquals(Collections.<String>emptyList(), lookup(resolver, "nx.example.com"));
+		assertEquals(Collections.<String>emptyList(), lookup(resolver, "nx.example.com"));
+		assertEquals(1, backend.queries("nx.example.com"));
+
+		for (int i = 0; i < 2; ++i) {
+			try {
+				lookup(resolver, "down.example.com");
+				fail("Failed query answered");
+			}
+			catch (IOException e) {
+				assertTrue(e.getMessage().contains("SERVFAIL"));
+			}
+		}
+		assertEquals(2, backend.queries("down.example.com"));
+		assertEquals(2, resolver.getFailures());
+	}
+
+	@Test
+	public void answersAreCachedForTheirTtlUpToThePositiveTtl() throws Exception {
+		// like the JNDI backend, which does not know TTLs
+		final StubBackend backend = new StubBackend().answer("unknown.example.com", -1, "192.0.2.1")
+				.answer("long.example.com", 3600, "192.0.2.2").answer("short.example.com", 1, "192.0.2.3");
+		final MilterResolver resolver = new MilterResolver(backend, DIRECT, 100, 3, 3600);
+		final String[] names = {"unknown.example.com", "long.example.com", "short.example.com"};
+		for (String name : names) {
+			lookup(resolver, name);
+			lookup(resolver, name);
+			assertEquals(1, backend.queries(name));
+		}
+
+		Thread.sleep(1500);
+		for (String name : names) {
+			lookup(resolver, name);
+		}
+		assertEquals(1, backend.queries("unknown.example.com"));
+		assertEquals(1, backend.queries("long.example.com"));
+		assertEquals(2, backend.queries("short.example.com"));
+
+		Thread.sleep(2000);
+		lookup(resolver, "unknown.example.com");
+		lookup(resolver, "long.example.com");
+		assertEquals(2, backend.queries("unknown.example.com"));
+		assertEquals(2, backend.queries("long.example.com"));
+	}
+}
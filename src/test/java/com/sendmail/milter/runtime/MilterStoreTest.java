@@ -0,0 +1,117 @@
+package com.sendmail.milter.runtime;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MilterStoreTest {
+
+	// the slot size of a store with 16 byte keys and 8 byte values, after the 32 byte file header
+	private static final int HEADER = 32;
+	private static final int SLOT = 48;
+
+	@Test
+	public void churnKeepsEntriesThroughReopen() throws IOException {
+		final Path path = Files.createTempFile("milter", ".store");
+		try {
+			final Map<String, Long> expected = new HashMap<>();
+			final Random random = new Random(43);
+			MilterStore store = new MilterStore(path, 64, 16, 8);
+			for (int i = 0; i < 20000; ++i) {
+				final String key = "k" + random.nextInt(48);
+				if (random.nextBoolean()) {
+					assertTrue(store.putLong(key, i, 0, TimeUnit.SECONDS));
+					expected.put(key, (long) i);
+				}
+				else {
+					assertEquals(expected.remove(key) != null, store.remove(key));
+				}
+				if (i % 5000 == 0) {
+					store.close();
+					store = new MilterStore(path, 64, 16, 8);
+				}
+			}
+			assertEquals(expected.size(), store.size());
+			store.close();
+
+			store = new MilterStore(path, 64, 16, 8);
+			assertEquals(expected.size(), store.size());
+			for (int i = 0; i < 48; ++i) {
+				assertEquals(expected.get("k" + i), store.getLong("k" + i));
+			}
+			store.close();
+		}
+		finally {
+			Files.delete(path);
+		}
+	}
+
+	@Test
+	public void expiredEntriesGiveBackTheirSlots() throws IOException, InterruptedException {
+		final Path path = Files.createTempFile("milter", ".store");
+		try (MilterStore store = new MilterStore(path, 16, 16, 8)) {
+			for (int round = 0; round < 3; ++round) {
+				for (int i = 0; i < 16; ++i) {
+					assertTrue(store.putLong(round + "-" + i, i, 5, TimeUnit.MILLISECONDS));
+				}
+				assertFalse(store.putLong("extra", 0, 5, TimeUnit.MILLISECONDS));
+				Thread.sleep(20);
+			}
+			assertNull(store.get("2-0"));
+		}
+		finally {
+			Files.delete(path);
+		}
+	}
+
+	@Test
+	public void copyLeftByAnInterruptedMoveIsDropped() throws IOException {
+		final Path path = Files.createTempFile("milter", ".store");
+		try {
+			MilterStore store = new MilterStore(path, 16, 16, 8);
+			store.putLong("a", 1, 0, TimeUnit.SECONDS);
+			store.close();
+			// as if the machine went down while the entry was being moved back: it is in two slots of its run
+			try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+				final byte[] slot = new byte[SLOT];
+				int used = 0;
+				while (true) {
+					file.seek(HEADER + used * SLOT);
+					file.readFully(slot);
+					if (slot[0] == 1) {
+						break;
+					}
+					++used;
+				}
+				file.seek(HEADER + (used + 1) % 16 * SLOT);
+				file.write(slot);
+			}
+
+			store = new MilterStore(path, 16, 16, 8);
+			assertEquals(1, store.size());
+			assertTrue(store.remove("a"));
+			assertNull(store.get("a"));
+			store.close();
+
+			store = new MilterStore(path, 16, 16, 8);
+			assertNull(store.get("a"));
+			assertEquals(0, store.size());
+			store.close();
+		}
+		finally {
+			Files.delete(path);
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package com.sendmail.milter.standalone;
+
+import com.sendmail.milter.IMilterHandler;
+import com.sendmail.milter.IMilterStatus;
+import com.sendmail.milter.MilterConstants;
+import com.sendmail.milter.spi.IMilterHandlerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MilterProxyTest {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * A runner on loopback whose handlers log the callbacks they get.
+	 */
+	private static final class Runner {
+
+		final List<String> callbacks = Collections.synchronizedList(new ArrayList<String>());
+		final SimpleMilterServer server;
+
+		Runner(final String name, final int protocolFlags) throws Exception {
+			this.server = new SimpleMilterServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+					new IMilterHandlerFactory() {
+						@Override
+						public IMilterHandler newInstance() {
+							return handler(protocolFlags);
+						}
+					});
+			new Thread(server, "Runner " + name).start();
+		}
+
+		private IMilterHandler handler(final int protocolFlags) {
+			return (IMilterHandler) java.lang.reflect.Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] {IMilterHandler.class}, new InvocationHandler() {
+						@Override
+						public Object invoke(final Object proxy, final Method method, final Object[] args) {
+							switch (method.getName()) {
+								case "negotiateVersion":
+									return 6;
+								case "getActionFlags":
+									return 0;
+								case "getProtocolFlags":
+									return protocolFlags;
+								case "connect":
+								case "helo":
+								case "envfrom":
+									callbacks.add(method.getName());
+									return IMilterStatus.SMFIS_CONTINUE;
+								default:
+									return method.getReturnType() == IMilterStatus.class ? IMilterStatus.SMFIS_CONTINUE
+											: null;
+							}
+						}
+					});
+		}
+
+		InetSocketAddress getAddress() {
+			return (InetSocketAddress) server.getSocketAddress();
+		}
+
+		/**
+		 * Stops at once, closing the conversations in progress.
+		 */
+		void kill() throws InterruptedException {
+			server.shutdown();
+			server.awaitTermination(0, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * The MTA end of a conversation through the proxy.
+	 */
+	private static final class Mta {
+
+		private final Socket socket;
+		private final OutputStream out;
+		private final DataInputStream in;
+		private final MilterFrame reply = new MilterFrame();
+
+		Mta(final MilterProxy proxy) throws IOException {
+			socket = new Socket();
+			socket.connect(proxy.getSocketAddress(), 2000);
+			socket.setSoTimeout(5000);
+			out = socket.getOutputStream();
+			in = new DataInputStream(socket.getInputStream());
+		}
+
+		/**
+		 * @return the command of the reply, or <code>-1</code> if the proxy closed the connection.
+		 */
+		private int send(final int command, final byte[] data) throws IOException {
+			out.write(MilterFrame.packet(command, data));
+			return reply.read(in) ? reply.getCommand() : -1;
+		}
+
+		int optneg() throws IOException {
+			return send(MilterConstants.SMFIC_OPTNEG, ByteBuffer.allocate(12).putInt(6).putInt(0x000001FF)
+					.putInt(0x001FFFFF).array());
+		}
+
+		int connect() throws IOException {
+			final ByteArrayOutputStream data = new ByteArrayOutputStream();
+			data.write("client.example.com\0".getBytes(ASCII));
+			data.write(MilterConstants.SMFIA_INET);
+			data.write(0x1F);
+			data.write(0x90);
+			data.write("192.0.2.1\0".getBytes(ASCII));
+			return send(MilterConstants.SMFIC_CONNECT, data.toByteArray());
+		}
+
+		int helo() throws IOException {
+			return send(MilterConstants.SMFIC_HELO, "client.example.com\0".getBytes(ASCII));
+		}
+
+		int mail() throws IOException {
+			return send(MilterConstants.SMFIC_MAIL, "<sender@example.com>\0".getBytes(ASCII));
+		}
+
+		/**
+		 * @return <code>true</code> if the proxy closed the connection, without sending anything more.
+		 */
+		boolean isClosed() throws IOException {
+			return in.read() == -1;
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	private static MilterProxy proxy(final Runner... runners) throws IOException {
+		final List<InetSocketAddress> backends = new ArrayList<>();
+		for (Runner runner : runners) {
+			backends.add(runner.getAddress());
+		}
+		final MilterProxy proxy = new MilterProxy(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+				backends);
+		new Thread(proxy, "Proxy").start();
+		return proxy;
+	}
+
+	private static void stop(final MilterProxy proxy, final Runner... runners) throws InterruptedException {
+		proxy.shutdown();
+		proxy.awaitTermination(1, TimeUnit.SECONDS);
+		for (Runner runner : runners) {
+			runner.kill();
+		}
+	}
+
+	@Test
+	public void conversationMovesWhenItsRunnerDiesBeforeMail() throws Exception {
+		final Runner first = new Runner("first", 0);
+		final Runner second = new Runner("second", 0);
+		final MilterProxy proxy = proxy(first, second);
+		try {
+			final Mta mta = new Mta(proxy);
+			assertEquals(MilterConstants.SMFIC_OPTNEG, mta.optneg());
+			assertEquals(MilterConstants.SMFIR_CONTINUE, mta.connect());
+			assertEquals(MilterConstants.SMFIR_CONTINUE, mta.helo());
+			final Runner serving = first.callbacks.isEmpty() ? second : first;
+			final Runner other = serving == first ? second : first;
+			assertEquals(Arrays.asList("connect", "helo"), serving.callbacks);
+
+			serving.kill();
+			assertEquals(MilterConstants.SMFIR_CONTINUE, mta.mail());
+			// the other runner was brought up to where the conversation was, then answered the sender
+			assertEquals(Arrays.asList("connect", "helo", "envfrom"), other.callbacks);
+			assertEquals(Arrays.asList("connect", "helo"), serving.callbacks);
+			mta.close();
+		}
+		finally {
+			stop(proxy, first, second);
+		}
+	}
+
+	@Test
+	public void conversationDoesNotMoveToARunnerNegotiatingDifferently() throws Exception {
+		final Runner first = new Runner("first", 0);
+		final Runner second = new Runner("second", MilterConstants.SMFIP_NOHDRS);
+		final MilterProxy proxy = proxy(first, second);
+		try {
+			final Mta mta = new Mta(proxy);
+			assertEquals(MilterConstants.SMFIC_OPTNEG, mta.optneg());
+			assertEquals(MilterConstants.SMFIR_CONTINUE, mta.connect());
+			final Runner serving = first.callbacks.isEmpty() ? second : first;
+			final Runner other = serving == first ? second : first;
+
+			serving.kill();
+			assertEquals(MilterConstants.SMFIR_TEMPFAIL, mta.helo());
+			assertTrue(mta.isClosed());
+			assertTrue(other.callbacks.isEmpty());
+			assertFalse(serving.callbacks.contains("helo"));
+			mta.close();
+		}
+		finally {
+			stop(proxy, first, second);
+		}
+	}
+}